@@ -18,6 +18,8 @@ public record ApplicationEvent(Type type, Object data) {
         END_CALL,
         MESSAGE,
         MESSAGES,
+        MESSAGE_HISTORY,
+        UNREAD_COUNTS,
         THEME_CHANGED,
         FILE_TRANSFER_COMPLETE,
         FILE_TRANSFER_ERROR,
@@ -14,13 +14,13 @@ public class ChatHeader extends ThemedPanel {
         this(title, null);
     }
 
-    public ChatHeader(String title, byte[] avatar) {
+    public ChatHeader(String title, String avatarHash) {
         super(Variant.SURFACE_ALT);
 
         setLayout(new FlowLayout(FlowLayout.CENTER, 5, 5));
 
-        if (avatar != null) {
-            JLabel icon = new ThemedIcon(avatar, AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
+        if (avatarHash != null) {
+            JLabel icon = new ThemedIcon(avatarHash, AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
             add(icon);
         }
         JLabel name = new ThemedLabel(title, ThemedLabel.Size.SMALLER, ThemedLabel.Variant.SURFACE_ALT);
@@ -36,7 +36,7 @@ public class DirectChatHeader extends ThemedPanel {
         userInfoPanel.setOpaque(false);
 
         // Add user avatar
-        JLabel avatarLabel = new ThemedIcon(user.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
+        JLabel avatarLabel = new ThemedIcon(user.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
         userInfoPanel.add(avatarLabel);
 
         // Add user display name
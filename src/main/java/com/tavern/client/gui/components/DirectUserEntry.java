@@ -102,7 +102,7 @@ public class DirectUserEntry extends ThemedPanel implements EventListener {
         }
 
         if (user != null) {
-            roomAvatarLabel = new ThemedIcon(user.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
+            roomAvatarLabel = new ThemedIcon(user.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
             roomNameLabel = new ThemedLabel(user.getDisplayName(), ThemedLabel.Size.SMALLER, ThemedLabel.Variant.SURFACE_ALT);
         } else {
             roomAvatarLabel = new JLabel();
@@ -26,7 +26,7 @@ public class MessageEntry extends ThemedPanel {
 
         c.gridx = 0;
         c.insets = new Insets(0, 0, 0, 10);
-        JLabel icon = new ThemedIcon(user.getAvatar(), 35, 35, ThemedIcon.Variant.CIRCLE);
+        JLabel icon = new ThemedIcon(user.getAvatarHash(), 35, 35, ThemedIcon.Variant.CIRCLE);
         wrapperPanel.add(icon, c);
 
         JPanel contentPanel = new JPanel();
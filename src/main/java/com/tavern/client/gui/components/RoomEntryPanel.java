@@ -88,7 +88,7 @@ public class RoomEntryPanel extends ThemedPanel implements EventListener {
             setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         }
 
-//        roomAvatarLabel = new ThemedIcon(room.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
+//        roomAvatarLabel = new ThemedIcon(room.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
         roomNameLabel = new ThemedLabel();
 
 //        add(roomAvatarLabel);
@@ -102,7 +102,7 @@ public class RoomEntryPanel extends ThemedPanel implements EventListener {
 //            ImageIcon avatarIcon = AvatarDisplayHelper.getAvatarImageIcon(room.getAvatar(), 40, 40);
 //            roomAvatarLabel.setIcon(avatarIcon);
 
-            roomAvatarLabel = new ThemedIcon(room.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
+            roomAvatarLabel = new ThemedIcon(room.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
             roomNameLabel.setText(room.getName());
         } else {
             roomAvatarLabel = new JLabel();
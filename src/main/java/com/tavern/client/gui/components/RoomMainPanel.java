@@ -127,7 +127,7 @@ public class RoomMainPanel extends ThemedPanel implements EventListener {
                     itemPanel.setMaximumSize(new Dimension(USERS_PANEL_WIDTH, itemPanel.getPreferredSize().height + 10));
                     itemPanel.setLayout(new FlowLayout(FlowLayout.LEFT, 10, 5));
 
-                    JLabel icon = new ThemedIcon(user.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
+                    JLabel icon = new ThemedIcon(user.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
                     itemPanel.add(icon);
 
                     String username = user.getDisplayName();
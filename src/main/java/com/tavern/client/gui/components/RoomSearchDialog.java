@@ -182,7 +182,7 @@ public class RoomSearchDialog extends JDialog implements ResponseHandler {
         panel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         
         // Avatar on the left
-        JLabel avatar = new ThemedIcon(room.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
+        JLabel avatar = new ThemedIcon(room.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.ROUNDED);
         panel.add(avatar, BorderLayout.WEST);
         
         // Room info in the center - make this panel transparent
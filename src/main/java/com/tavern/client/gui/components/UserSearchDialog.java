@@ -180,7 +180,7 @@ public class UserSearchDialog extends JDialog implements ResponseHandler {
         panel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         
         // Avatar on the left
-        JLabel avatar = new ThemedIcon(user.getAvatar(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
+        JLabel avatar = new ThemedIcon(user.getAvatarHash(), AVATAR_SIZE, AVATAR_SIZE, ThemedIcon.Variant.CIRCLE);
         panel.add(avatar, BorderLayout.WEST);
         
         // Username and display name in the center - make this panel transparent
@@ -1,10 +1,12 @@
 package com.tavern.client.gui.components.themed;
 
 import com.tavern.client.gui.themes.Theme;
+import com.tavern.client.handlers.ApplicationContext;
 import com.tavern.client.gui.themes.ThemeChangeListener;
 import com.tavern.client.gui.themes.ThemeManager;
 import com.tavern.client.gui.themes.ThemedComponent;
 import com.tavern.client.utils.AvatarDisplayHelper;
+import com.tavern.common.model.AvatarSize;
 
 import javax.swing.*;
 
@@ -30,6 +32,19 @@ public class ThemedIcon extends JLabel implements ThemedComponent, ThemeChangeLi
         applyTheme(ThemeManager.getCurrentTheme());
     }
 
+    /**
+     * Shows the avatar with the given hash, fetched at the smallest size that covers the icon. The
+     * default avatar is shown until it arrives.
+     */
+    public ThemedIcon(String avatarHash, int w, int h, Variant variant) {
+        this((byte[]) null, w, h, variant);
+
+        ApplicationContext.getAvatarHandler().request(avatarHash, AvatarSize.covering(Math.max(w, h)), avatar -> {
+            image = avatar;
+            setIconImage();
+        });
+    }
+
     private void setIconImage() {
         ImageIcon icon = AvatarDisplayHelper.getAvatarImageIcon(image, w, h);
         if (variant == Variant.SQUARE) {
@@ -54,7 +54,7 @@ public class ChatScreen extends JPanel implements EventListener {
                     remove(chatHeader);
                     Room room = (Room) event.data();
                     mainPanel = new RoomMainPanel(room);
-                    chatHeader = new ChatHeader(room.getName(), room.getAvatar());
+                    chatHeader = new ChatHeader(room.getName(), room.getAvatarHash());
                     add(chatHeader, BorderLayout.NORTH);
                     add(mainPanel, BorderLayout.CENTER);
                     revalidate();
@@ -16,6 +16,7 @@ public class ApplicationContext {
     private final MessageHandler messageHandler;
     private final VideoChatHandler videoChatHandler;
     private final FileTransferHandler fileTransferHandler;
+    private final AvatarHandler avatarHandler;
     private final EventBus eventBus;
     private final HashMap<NetworkMessage.MessageType, ResponseHandler> responseHandlers;
     private final PropertyFileLoader properties;
@@ -28,6 +29,7 @@ public class ApplicationContext {
         this.messageHandler = new MessageHandler(eventBus, userHandler, responseHandlers);
         this.videoChatHandler = new VideoChatHandler(eventBus, userHandler, responseHandlers);
         this.fileTransferHandler = new FileTransferHandler(eventBus, userHandler, responseHandlers);
+        this.avatarHandler = new AvatarHandler(responseHandlers);
         this.properties = new PropertyFileLoader("client/application.properties");
 
         this.client = new Client(responseHandlers);
@@ -72,6 +74,10 @@ public class ApplicationContext {
         return getInstance().fileTransferHandler;
     }
 
+    public static AvatarHandler getAvatarHandler() {
+        return getInstance().avatarHandler;
+    }
+
     public static PropertyFileLoader getProperties() {
         return getInstance().properties;
     }
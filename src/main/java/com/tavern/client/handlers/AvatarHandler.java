@@ -0,0 +1,162 @@
+package com.tavern.client.handlers;
+
+import com.tavern.client.utils.ConnectionManager;
+import com.tavern.common.model.AvatarSize;
+import com.tavern.common.model.network.GetAvatarRequest;
+import com.tavern.common.model.network.GetAvatarResponse;
+import com.tavern.common.model.network.NetworkMessage;
+import com.tavern.common.utils.AppDataManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches avatars from the server by hash and keeps them in memory and on disk. An avatar never
+ * changes under its hash, so cached images are never stale and are only fetched once.
+ */
+public class AvatarHandler implements ResponseHandler {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarHandler.class);
+    private static final int MEMORY_ENTRIES = 256;
+    // Hashes end up in file names, so anything but a SHA-256 in hex is refused
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    // A request whose response never came, say because the connection dropped, is sent again after this
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Path cacheDirectory;
+    private final Map<String, byte[]> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private final Map<String, Pending> pending = new HashMap<>();
+
+    private record Pending(long requestedAt, List<Consumer<byte[]>> callbacks) {
+        boolean expired(long now) {
+            return now - requestedAt > REQUEST_TIMEOUT_NANOS;
+        }
+    }
+
+    public AvatarHandler(HashMap<NetworkMessage.MessageType, ResponseHandler> responseHandlers) {
+        this.cacheDirectory = AppDataManager.getAppDataPath().resolve("avatars");
+        responseHandlers.put(NetworkMessage.MessageType.GET_AVATAR_RESPONSE, this);
+
+        try {
+            Files.createDirectories(cacheDirectory);
+        } catch (IOException e) {
+            logger.error("Failed to create avatar cache directory: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Gets an avatar at the given size. A cached avatar is handed to the callback right away,
+     * otherwise it is fetched and the callback runs on the event dispatch thread once it arrives.
+     * The callback never runs if there is no avatar with that hash.
+     */
+    public void request(String hash, AvatarSize size, Consumer<byte[]> callback) {
+        if (hash == null) {
+            return;
+        }
+        if (!HASH.matcher(hash).matches()) {
+            logger.warn("Ignoring avatar request for malformed hash {}", hash);
+            return;
+        }
+        String key = key(hash, size);
+        byte[] image;
+        synchronized (this) {
+            image = images.get(key);
+            if (image == null) {
+                image = readCached(key);
+                if (image != null) {
+                    images.put(key, image);
+                }
+            }
+            if (image == null) {
+                long now = System.nanoTime();
+                pending.values().removeIf(request -> request.expired(now));
+                Pending request = pending.get(key);
+                if (request != null) {
+                    request.callbacks().add(callback);
+                    return;
+                }
+                request = new Pending(now, new ArrayList<>());
+                request.callbacks().add(callback);
+                pending.put(key, request);
+            }
+        }
+
+        if (image != null) {
+            callback.accept(image);
+            return;
+        }
+        try {
+            ConnectionManager.getInstance().sendMessage(new GetAvatarRequest(hash, size));
+        } catch (IOException e) {
+            logger.error("Error requesting avatar {}: {}", hash, e.getMessage(), e);
+            synchronized (this) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void handleResponse(NetworkMessage message) {
+        if (message.getMessageType() != NetworkMessage.MessageType.GET_AVATAR_RESPONSE) {
+            return;
+        }
+        GetAvatarResponse response = (GetAvatarResponse) message;
+        if (response.hash() == null || !HASH.matcher(response.hash()).matches()) {
+            logger.warn("Ignoring avatar response for malformed hash {}", response.hash());
+            return;
+        }
+        String key = key(response.hash(), response.size());
+        byte[] image = response.image();
+        List<Consumer<byte[]>> callbacks;
+        synchronized (this) {
+            Pending request = pending.remove(key);
+            callbacks = request != null ? request.callbacks() : null;
+            if (image != null) {
+                images.put(key, image);
+            }
+        }
+        if (image == null) {
+            logger.debug("Server has no avatar {}", response.hash());
+            return;
+        }
+
+        try {
+            Files.write(cacheDirectory.resolve(key + ".png"), image);
+        } catch (IOException e) {
+            logger.warn("Could not cache avatar {}: {}", response.hash(), e.getMessage());
+        }
+        if (callbacks != null) {
+            SwingUtilities.invokeLater(() -> callbacks.forEach(callback -> callback.accept(image)));
+        }
+    }
+
+    private byte[] readCached(String key) {
+        Path file = cacheDirectory.resolve(key + ".png");
+        try {
+            return Files.exists(file) ? Files.readAllBytes(file) : null;
+        } catch (IOException e) {
+            logger.warn("Could not read cached avatar {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String key(String hash, AvatarSize size) {
+        return hash + "-" + size.getPixels();
+    }
+}
@@ -5,6 +5,8 @@ import com.tavern.client.core.EventBus;
 import com.tavern.client.repositories.FileTransferRepository;
 import com.tavern.client.gui.components.themed.ThemedProgressBar;
 import com.tavern.client.utils.ConnectionManager;
+import com.tavern.client.utils.UploadWindow;
+import com.tavern.common.codec.DataChannel;
 import com.tavern.common.model.Message;
 import com.tavern.common.model.network.*;
 import org.slf4j.Logger;
@@ -13,23 +15,41 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileTransferHandler implements ResponseHandler {
     private static final Logger logger = LoggerFactory.getLogger(FileTransferHandler.class);
+
+    private record PendingUpload(File file, FileTransferUploadRequest request) {}
+
     private final EventBus eventBus;
     private final UserHandler authHandler;
     private final Map<String, FileOutputStream> fileStreams;
     private final Map<String, ThemedProgressBar> progressBars;
     private final Path downloadDirectory;
-    private static final int CHUNK_SIZE = 8192; // 8KB chunks
-    private final Map<String, File> pendingFiles;
+    private final Map<String, PendingUpload> pendingFiles;
+    private final Map<String, PendingUpload> resumingFiles = new ConcurrentHashMap<>();
+    // Uploads waiting to hear whether the server has their content, by request id
+    private final Map<Integer, PendingUpload> blobChecks = new ConcurrentHashMap<>();
+    private final AtomicInteger nextBlobCheckId = new AtomicInteger();
     private final Map<String, Integer> chunkRetries = new HashMap<>();
+    // Downloads whose data connection is still open, completed once every byte is on disk
+    private final Map<String, CompletableFuture<Void>> dataDownloads = new ConcurrentHashMap<>();
+    private final Map<String, UploadWindow> uploadWindows = new ConcurrentHashMap<>();
     private static final int MAX_RETRIES = 3;
+    private static final long RESUME_DELAY_MILLIS = 1000;
 
     public FileTransferHandler(EventBus eventBus, UserHandler authHandler,
             HashMap<NetworkMessage.MessageType, ResponseHandler> responseHandlers) {
@@ -57,6 +77,9 @@ public class FileTransferHandler implements ResponseHandler {
         responseHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_CHUNK, this);
         responseHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_COMPLETE, this);
         responseHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_ERROR, this);
+        responseHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_CREDIT, this);
+        responseHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_RESUME_RESPONSE, this);
+        responseHandlers.put(NetworkMessage.MessageType.HAS_BLOB_RESPONSE, this);
     }
 
     public void sendFile(File file, int roomId, boolean isDirect, int receiverId) {
@@ -66,20 +89,6 @@ public class FileTransferHandler implements ResponseHandler {
         }
 
         try {
-            // Create a message with the file name
-            Message fileMessage = new Message(
-                    0,
-                    authHandler.getUser().getId(),
-                    receiverId,
-                    roomId,
-                    "FILE:" + file.getName(),
-                    isDirect,
-                    new java.sql.Timestamp(System.currentTimeMillis()));
-
-            // Send the file message
-            ApplicationContext.getMessageHandler().sendTextMessage(fileMessage);
-
-            // Send the actual file
             FileTransferUploadRequest request = new FileTransferUploadRequest(
                     file.getName(),
                     file.length(),
@@ -88,15 +97,110 @@ public class FileTransferHandler implements ResponseHandler {
                     isDirect,
                     receiverId);
 
+            // An interrupted upload of the same file continues where it stopped, and its message was already sent
+            String interrupted = findInterruptedUpload(request, file);
+            if (interrupted != null) {
+                logger.info("Resuming upload {} of {}", interrupted, file.getName());
+                resumingFiles.put(interrupted, new PendingUpload(file, request));
+                ConnectionManager.getInstance().sendMessage(new FileTransferResumeRequest(interrupted));
+                return;
+            }
+
+            // Hash the file away from the caller, the server may already have it and need no data
+            Thread.ofVirtual().name("hash-" + file.getName()).start(() -> {
+                try {
+                    String hash = sha256(file);
+                    int checkId = nextBlobCheckId.incrementAndGet();
+                    blobChecks.put(checkId, new PendingUpload(file, request));
+                    ConnectionManager.getInstance().sendMessage(new HasBlobRequest(checkId, hash, file.length()));
+                } catch (IOException e) {
+                    logger.error("Error sending file transfer request: {}", e.getMessage(), e);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Error sending file transfer request: {}", e.getMessage(), e);
+        }
+    }
+
+    private void handleHasBlobResponse(HasBlobResponse response) {
+        PendingUpload pending = blobChecks.remove(response.requestId());
+        if (pending == null) {
+            return;
+        }
+
+        FileTransferUploadRequest request = pending.request();
+        if (response.present()) {
+            try {
+                byte[] proof = proveBlob(pending.file(), response);
+                logger.debug("Server already has {}, uploading without data", request.getFileName());
+                request = new FileTransferUploadRequest(request.getFileName(), request.getFileSize(),
+                        request.getSenderId(), request.getRoomId(), request.isDirect(), request.getReceiverId(),
+                        response.hash(), response.challenge(), proof);
+            } catch (IOException e) {
+                // The server falls back to taking the data
+                logger.warn("Could not answer the server's challenge for {}: {}", request.getFileName(), e.getMessage());
+            }
+        }
+
+        try {
             // Store file for later use
-            pendingFiles.put(file.getName(), file);
+            pendingFiles.put(request.getFileName(), new PendingUpload(pending.file(), request));
 
+            // Send the actual file
             ConnectionManager.getInstance().sendMessage(request);
         } catch (IOException e) {
             logger.error("Error sending file transfer request: {}", e.getMessage(), e);
         }
     }
 
+    /**
+     * The SHA-256 of the challenge followed by the challenged range of the file, which shows the
+     * server that this client holds the content and not just its hash.
+     */
+    private static byte[] proveBlob(File file, HasBlobResponse response) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(response.challenge());
+        ByteBuffer range = ByteBuffer.allocate(response.length());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (range.hasRemaining()) {
+                if (channel.read(range, response.offset() + range.position()) < 0) {
+                    throw new EOFException("file is shorter than when it was hashed");
+                }
+            }
+        }
+        digest.update(range.flip());
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private String findInterruptedUpload(FileTransferUploadRequest request, File file) {
+        try {
+            return FileTransferRepository.findInterruptedUpload(request, file);
+        } catch (SQLException e) {
+            logger.warn("Could not look for an interrupted upload of {}: {}", file.getName(), e.getMessage());
+            return null;
+        }
+    }
+
     public void downloadFile(String fileName, int roomId) {
         if (authHandler.getUser() == null) {
             logger.error("Cannot download file: User not logged in");
@@ -128,6 +232,9 @@ public class FileTransferHandler implements ResponseHandler {
             case FILE_TRANSFER_CHUNK -> handleTransferChunk((FileTransferChunk) message);
             case FILE_TRANSFER_COMPLETE -> handleTransferComplete((FileTransferComplete) message);
             case FILE_TRANSFER_ERROR -> handleTransferError((FileTransferError) message);
+            case FILE_TRANSFER_CREDIT -> handleTransferCredit((FileTransferCredit) message);
+            case FILE_TRANSFER_RESUME_RESPONSE -> handleResumeResponse((FileTransferResumeResponse) message);
+            case HAS_BLOB_RESPONSE -> handleHasBlobResponse((HasBlobResponse) message);
         }
     }
 
@@ -222,12 +329,64 @@ public class FileTransferHandler implements ResponseHandler {
         }
 
         String transferId = response.getTransferId();
-        File file = pendingFiles.remove(response.getFileName()); // filename contains original filename
-        if (file == null) {
+        PendingUpload pending = pendingFiles.remove(response.getFileName()); // filename contains original filename
+        if (pending == null) {
             logger.error("File not found for transfer: {}", response.getFileName());
             return;
         }
 
+        // Remember the upload so that it can be resumed if it is interrupted
+        try {
+            FileTransferRepository.createUpload(pending.request(), pending.file(), transferId);
+        } catch (SQLException e) {
+            logger.warn("Could not record upload {}, it will not be resumable: {}", transferId, e.getMessage());
+        }
+
+        // Share the file; the message carries the upload so the server can delete the file with it
+        FileTransferUploadRequest request = pending.request();
+        Message fileMessage = new Message(
+                0,
+                request.getSenderId(),
+                request.getReceiverId(),
+                request.getRoomId(),
+                "FILE:" + pending.file().getName(),
+                request.isDirect(),
+                new java.sql.Timestamp(System.currentTimeMillis()));
+        fileMessage.setTransferId(transferId);
+        ApplicationContext.getMessageHandler().sendTextMessage(fileMessage);
+        if (response.isStored()) {
+            // The server pointed the upload at its copy, completion follows
+            return;
+        }
+        sendRanges(transferId, pending.file(), new long[] { 0, pending.file().length() });
+    }
+
+    private void handleResumeResponse(FileTransferResumeResponse response) {
+        PendingUpload pending = resumingFiles.remove(response.transferId());
+        if (pending == null) {
+            return;
+        }
+
+        if (!response.accepted()) {
+            // The server no longer has the upload, so send the file from scratch
+            logger.info("Upload {} cannot be resumed, starting over", response.transferId());
+            try {
+                FileTransferRepository.updateFileTransferStatus(response.transferId(), "FAILED");
+                pendingFiles.put(pending.file().getName(), pending);
+                ConnectionManager.getInstance().sendMessage(pending.request());
+            } catch (IOException | SQLException e) {
+                logger.error("Error restarting upload: {}", e.getMessage(), e);
+            }
+            return;
+        }
+        sendRanges(response.transferId(), pending.file(), response.missing());
+    }
+
+    /**
+     * Sends the given byte ranges of a file in a background thread, as fast as the server's credit
+     * allows. A new upload sends the whole file, a resumed one only what the server is missing.
+     */
+    private void sendRanges(String transferId, File file, long[] ranges) {
         // Create and show progress bar after transfer is accepted
         ThemedProgressBar progressBar = new ThemedProgressBar();
         progressBar.setMaximum(100);
@@ -238,54 +397,46 @@ public class FileTransferHandler implements ResponseHandler {
             JOptionPane.showMessageDialog(null, progressBar, "File Upload Progress", JOptionPane.PLAIN_MESSAGE);
         });
 
-        // Start sending file chunks in a background thread
+        UploadWindow window = new UploadWindow();
+        uploadWindows.put(transferId, window);
         new Thread(() -> {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int totalChunks = (int) Math.ceil((double) file.length() / CHUNK_SIZE);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long done = size;
+                for (int i = 0; i < ranges.length; i += 2) {
+                    done -= ranges[i + 1] - ranges[i];
+                }
                 int chunkNumber = 0;
-                int bytesRead;
-                long totalBytesRead = 0;
-
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    // Create a new buffer with exact size to avoid any buffer issues
-                    byte[] chunk = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-
-                    // Send chunk
-                    FileTransferChunk chunkMessage = new FileTransferChunk(
-                            transferId,
-                            chunk,
-                            chunkNumber,
-                            totalChunks);
-
-                    // Send chunk and wait for acknowledgment
-                    ConnectionManager.getInstance().sendMessage(chunkMessage);
-
-                    // Update progress
-                    totalBytesRead += bytesRead;
-
-                    // Update progress bar
-                    int progress = (int) ((chunkNumber + 1.0) / totalChunks * 100);
-                    ThemedProgressBar pb = progressBars.get(transferId);
-                    if (pb != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            pb.setValue(progress);
-                            pb.setString(String.format("%s (%d%%)", file.getName(), progress));
-                        });
-                    }
-
-                    // Add a small delay between chunks to prevent overwhelming the network
-                    Thread.sleep(10);
+                int shown = -1;
+
+                for (int i = 0; i < ranges.length; i += 2) {
+                    long sent = ranges[i];
+                    long end = ranges[i + 1];
+                    while (sent < end) {
+                        int length = window.awaitChunk(sent, end - sent);
+                        ByteBuffer chunk = ByteBuffer.allocate(length);
+                        while (chunk.hasRemaining()) {
+                            if (channel.read(chunk, sent + chunk.position()) < 0) {
+                                throw new IOException("File size mismatch: expected " + size + ", read " + (sent + chunk.position()));
+                            }
+                        }
 
-                    chunkNumber++;
-                }
+                        // The total is not known up front, chunk sizes follow the link
+                        ConnectionManager.getInstance().sendMessage(
+                                new FileTransferChunk(transferId, chunk.array(), chunkNumber++, 0, sent));
+                        sent += length;
+                        done += length;
 
-                // Verify total bytes read matches file size
-                if (totalBytesRead != file.length()) {
-                    throw new IOException("File size mismatch: expected " + file.length() + ", read " + totalBytesRead);
+                        int progress = size > 0 ? (int) (done * 100 / size) : 100;
+                        if (progress != shown) {
+                            shown = progress;
+                            showProgress(transferId, file.getName(), progress);
+                        }
+                    }
                 }
-
+                logger.debug("Sent {} in {} chunks, last chunk size {} KB, rtt {} ms, {} MB/s", file.getName(),
+                        chunkNumber, window.getChunkSize() / 1024, String.format("%.2f", window.getRttMillis()),
+                        String.format("%.1f", window.getThroughputMBps()));
             } catch (IOException | InterruptedException e) {
                 logger.error("Error sending file chunks: {}", e.getMessage(), e);
                 ThemedProgressBar pb = progressBars.remove(transferId);
@@ -294,17 +445,25 @@ public class FileTransferHandler implements ResponseHandler {
                         pb.setString("Error sending file: " + e.getMessage());
                     });
                 }
-                logger.info("File upload completed: {}", file.getName());
                 try {
                     ConnectionManager.getInstance().sendMessage(
                             new FileTransferError(transferId, "Error sending file: " + e.getMessage()));
                 } catch (IOException ex) {
                     logger.error("Failed to send error message: {}", ex.getMessage(), ex);
                 }
+            } finally {
+                uploadWindows.remove(transferId);
             }
         }).start();
     }
 
+    private void handleTransferCredit(FileTransferCredit credit) {
+        UploadWindow window = uploadWindows.get(credit.transferId());
+        if (window != null) {
+            window.credit(credit.acknowledged(), credit.limit());
+        }
+    }
+
     // New methods for handling downloads
     private void handleDownloadRequest(FileTransferDownloadRequest request) {
         // Client shouldn't receive download requests
@@ -341,8 +500,6 @@ public class FileTransferHandler implements ResponseHandler {
             }
 
             logger.info("Creating download file at: {}", filePath.toAbsolutePath());
-            FileOutputStream fos = new FileOutputStream(filePath.toFile());
-            fileStreams.put(transferId, fos);
 
             // Create progress bar
             ThemedProgressBar progressBar = new ThemedProgressBar();
@@ -366,11 +523,63 @@ public class FileTransferHandler implements ResponseHandler {
 
             FileTransferRepository.createFileTransfer(dummyRequest, filePath.toString(), transferId);
 
-        } catch (IOException | SQLException e) {
+            CompletableFuture<Void> received = new CompletableFuture<>();
+            dataDownloads.put(transferId, received);
+            Path target = filePath;
+            String name = fileName;
+            Thread.ofVirtual().name("download-" + transferId).start(() -> receiveFile(transferId, name, target, received));
+        } catch (SQLException e) {
             logger.error("Error preparing for download: {}", e.getMessage(), e);
         }
     }
 
+    /**
+     * Fetches the file of a download over its own data connection, leaving the chat connection free.
+     * If the connection drops, a new one continues from the last byte written.
+     */
+    private void receiveFile(String transferId, String fileName, Path target, CompletableFuture<Void> received) {
+        int[] shown = { -1 };
+        long[] position = { 0 };
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int attempt = 0; ; attempt++) {
+                try (DataChannel channel = ConnectionManager.getInstance().openDataChannel()) {
+                    long size = channel.open(transferId, position[0]);
+                    channel.receive(file, position[0], size - position[0], written -> {
+                        position[0] = written;
+                        int progress = size > 0 ? (int) (written * 100 / size) : 100;
+                        if (progress != shown[0]) {
+                            shown[0] = progress;
+                            showProgress(transferId, fileName, progress);
+                        }
+                    });
+                    received.complete(null);
+                    return;
+                } catch (IOException e) {
+                    if (attempt >= MAX_RETRIES) {
+                        throw e;
+                    }
+                    logger.warn("Data connection for {} dropped at {} bytes, resuming: {}", fileName, position[0],
+                            e.getMessage());
+                    Thread.sleep(RESUME_DELAY_MILLIS * (attempt + 1));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            logger.error("Error receiving file {}: {}", fileName, e.getMessage(), e);
+            received.completeExceptionally(e);
+        }
+    }
+
+    private void showProgress(String transferId, String fileName, int progress) {
+        ThemedProgressBar progressBar = progressBars.get(transferId);
+        if (progressBar != null) {
+            SwingUtilities.invokeLater(() -> {
+                progressBar.setValue(progress);
+                progressBar.setString(String.format("%s (%d%%)", fileName, progress));
+            });
+        }
+    }
+
     private void handleTransferProgress(FileTransferProgress progress) {
         ThemedProgressBar progressBar = progressBars.get(progress.getFileName());
         if (progressBar != null) {
@@ -481,6 +690,19 @@ public class FileTransferHandler implements ResponseHandler {
     }
 
     private void handleTransferComplete(FileTransferComplete complete) {
+        CompletableFuture<Void> received = dataDownloads.remove(complete.getTransferId());
+        if (received != null) {
+            // The server has sent everything, but the last bytes may still be on their way
+            received.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    handleTransferComplete(complete);
+                } else {
+                    handleTransferError(new FileTransferError(complete.getTransferId(), e.getMessage()));
+                }
+            });
+            return;
+        }
+
         try {
             FileOutputStream fos = fileStreams.remove(complete.getTransferId());
             if (fos != null) {
@@ -510,6 +732,14 @@ public class FileTransferHandler implements ResponseHandler {
     }
 
     private void handleTransferError(FileTransferError error) {
+        if (error.getTransferId() != null) {
+            dataDownloads.remove(error.getTransferId());
+            UploadWindow window = uploadWindows.get(error.getTransferId());
+            if (window != null) {
+                window.fail(error.getErrorMessage());
+            }
+        }
+
         try {
             FileOutputStream fos = fileStreams.remove(error.getTransferId());
             if (fos != null) {
@@ -6,6 +6,7 @@ import com.tavern.client.core.EventListener;
 import com.tavern.client.repositories.MessageRepository;
 import com.tavern.client.utils.ConnectionManager;
 import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
 import com.tavern.common.model.Room;
 import com.tavern.common.model.User;
 import com.tavern.common.model.network.*;
@@ -18,6 +19,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageHandler implements ResponseHandler, EventListener {
     private static final Logger logger = LoggerFactory.getLogger(MessageHandler.class);
@@ -27,6 +29,7 @@ public class MessageHandler implements ResponseHandler, EventListener {
     private User currentDirectUser;
     private final EventBus eventBus;
     private final UserHandler userHandler;
+    private final AtomicInteger nextHistoryRequestId = new AtomicInteger();
 
     public MessageHandler(EventBus eventBus, UserHandler userHandler, HashMap<NetworkMessage.MessageType, ResponseHandler> responseHandler) {
         this.eventBus = eventBus;
@@ -36,6 +39,8 @@ public class MessageHandler implements ResponseHandler, EventListener {
         responseHandler.put(NetworkMessage.MessageType.RECEIVE_TEXT_MESSAGE_REQUEST, this);
         responseHandler.put(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_RESPONSE, this);
         responseHandler.put(NetworkMessage.MessageType.GET_UNREAD_MESSAGE_RESPONSE, this);
+        responseHandler.put(NetworkMessage.MessageType.GET_MESSAGES_RESPONSE, this);
+        responseHandler.put(NetworkMessage.MessageType.GET_UNREAD_COUNTS_RESPONSE, this);
         eventBus.subscribe(this);
     }
 
@@ -95,9 +100,19 @@ public class MessageHandler implements ResponseHandler, EventListener {
             }
             case GET_UNREAD_MESSAGE_RESPONSE -> {
                 GetUnreadMessagesResponse response = (GetUnreadMessagesResponse) message;
-                for (Message msg : response.messages()) {
-                    MessageRepository.createMessage(msg);
+                MessageRepository.createMessages(response.messages());
+            }
+            case GET_MESSAGES_RESPONSE -> {
+                GetMessagesResponse response = (GetMessagesResponse) message;
+                if (response.messages() == null) {
+                    logger.warn("History request {} was refused by the server", response.requestId());
                 }
+                // Each frame of a page is published as it arrives; the last one carries the cursor of the next page
+                eventBus.publish(new ApplicationEvent(ApplicationEvent.Type.MESSAGE_HISTORY, response));
+            }
+            case GET_UNREAD_COUNTS_RESPONSE -> {
+                GetUnreadCountsResponse response = (GetUnreadCountsResponse) message;
+                eventBus.publish(new ApplicationEvent(ApplicationEvent.Type.UNREAD_COUNTS, response.counts()));
             }
         }
     }
@@ -106,6 +121,8 @@ public class MessageHandler implements ResponseHandler, EventListener {
     public void onEvent(ApplicationEvent event) {
         switch (event.type()) {
             case USER_LOGGED_IN -> {
+                // Counts first: handing over the unread messages marks them read
+                requestUnreadCounts();
                 try {
                     ConnectionManager.getInstance().sendMessage(new GetUnreadMessagesRequest(userHandler.getUser()));
                 } catch (IOException e) {
@@ -137,6 +154,37 @@ public class MessageHandler implements ResponseHandler, EventListener {
         }
     }
     
+    /**
+     * Asks the server for the unread count of every conversation, published as one
+     * {@link ApplicationEvent.Type#UNREAD_COUNTS} event.
+     */
+    public void requestUnreadCounts() {
+        try {
+            ConnectionManager.getInstance().sendMessage(new GetUnreadCountsRequest());
+        } catch (IOException e) {
+            logger.error("Unable to request unread counts: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Asks the server for a page of a room's or direct conversation's history. The page arrives
+     * as {@link ApplicationEvent.Type#MESSAGE_HISTORY} events carrying the returned request id.
+     * @param cursor Where to continue from, or null to start at the newest (or oldest) message
+     * @return The id of the request, or -1 if it could not be sent
+     */
+    public int requestMessageHistory(boolean direct, int conversationId, MessageCursor cursor,
+                                     GetMessagesRequest.Direction direction, int limit) {
+        int requestId = nextHistoryRequestId.incrementAndGet();
+        try {
+            ConnectionManager.getInstance().sendMessage(
+                    new GetMessagesRequest(requestId, direct, conversationId, cursor, direction, limit));
+            return requestId;
+        } catch (IOException e) {
+            logger.error("Unable to request message history: {}", e.getMessage(), e);
+            return -1;
+        }
+    }
+
     /**
      * Get direct message history with a specific user
      * @param user The user to get direct message history with
@@ -3,7 +3,9 @@ package com.tavern.client.repositories;
 import com.tavern.common.model.network.FileTransferRequest;
 import com.tavern.common.model.network.FileTransferUploadRequest;
 import com.tavern.client.utils.ClientDatabaseManager;
+import com.tavern.common.utils.Inserts;
 
+import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -68,26 +70,78 @@ public class FileTransferRepository {
                 INSERT INTO file_transfer (
                     file_name, file_path, file_size, sender_id, room_id, receiver_id, is_direct, status, transfer_id
                 ) VALUES (?, ?, ?, ?, ?, ?, ?, 'PENDING', ?)
+                RETURNING id
+                """;
+
+        try (Connection conn = ClientDatabaseManager.getConnection()) {
+            return Inserts.insert(conn, sql, pstmt -> {
+                pstmt.setString(1, fileName);
+                pstmt.setString(2, filePath);
+                pstmt.setLong(3, fileSize);
+                pstmt.setInt(4, senderId);
+                pstmt.setInt(5, roomId);
+                pstmt.setInt(6, receiverId);
+                pstmt.setBoolean(7, isDirect);
+                pstmt.setString(8, transferId);
+            }, rs -> rs.getInt("id"));
+        }
+    }
+
+    /**
+     * Records an upload of a local file, so that it can be resumed if it is interrupted.
+     */
+    public static void createUpload(FileTransferUploadRequest request, File file, String transferId)
+            throws SQLException {
+        String sql = """
+                INSERT INTO file_transfer (
+                    file_name, file_path, file_size, sender_id, room_id, receiver_id, is_direct, status, transfer_id,
+                    file_modified
+                ) VALUES (?, ?, ?, ?, ?, ?, ?, 'PENDING', ?, ?)
                 """;
 
         try (Connection conn = ClientDatabaseManager.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setString(1, fileName);
-            pstmt.setString(2, filePath);
-            pstmt.setLong(3, fileSize);
-            pstmt.setInt(4, senderId);
-            pstmt.setInt(5, roomId);
-            pstmt.setInt(6, receiverId);
-            pstmt.setBoolean(7, isDirect);
-            pstmt.setString(8, transferId);
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
+            pstmt.setString(1, request.getFileName());
+            pstmt.setString(2, file.getAbsolutePath());
+            pstmt.setLong(3, request.getFileSize());
+            pstmt.setInt(4, request.getSenderId());
+            pstmt.setInt(5, request.getRoomId());
+            pstmt.setInt(6, request.getReceiverId());
+            pstmt.setBoolean(7, request.isDirect());
+            pstmt.setString(8, transferId);
+            pstmt.setLong(9, file.lastModified());
             pstmt.executeUpdate();
-            ResultSet rs = pstmt.getGeneratedKeys();
-            if (rs.next()) {
-                return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Finds the last upload of the same, unchanged file to the same place that did not finish.
+     *
+     * @return its transfer id, or null if there is none
+     */
+    public static String findInterruptedUpload(FileTransferUploadRequest request, File file) throws SQLException {
+        String sql = """
+                SELECT transfer_id FROM file_transfer
+                WHERE file_path = ? AND file_size = ? AND file_modified = ? AND sender_id = ?
+                  AND room_id = ? AND receiver_id = ? AND is_direct = ? AND status IN ('PENDING', 'IN_PROGRESS')
+                ORDER BY id DESC
+                LIMIT 1
+                """;
+
+        try (Connection conn = ClientDatabaseManager.getReadConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, file.getAbsolutePath());
+            pstmt.setLong(2, file.length());
+            pstmt.setLong(3, file.lastModified());
+            pstmt.setInt(4, request.getSenderId());
+            pstmt.setInt(5, request.getRoomId());
+            pstmt.setInt(6, request.getReceiverId());
+            pstmt.setBoolean(7, request.isDirect());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("transfer_id") : null;
             }
-            return -1;
         }
     }
 
@@ -107,7 +161,7 @@ public class FileTransferRepository {
         String sql = "SELECT * FROM file_transfer WHERE status = 'PENDING'";
         List<FileTransferInfo> transfers = new ArrayList<>();
 
-        try (Connection conn = ClientDatabaseManager.getConnection();
+        try (Connection conn = ClientDatabaseManager.getReadConnection();
                 Statement stmt = conn.createStatement();
                 ResultSet rs = stmt.executeQuery(sql)) {
 
@@ -131,7 +185,7 @@ public class FileTransferRepository {
     public static String getFilePath(String transferId) throws SQLException {
         String sql = "SELECT file_path FROM file_transfer WHERE transfer_id = ?";
 
-        try (Connection conn = ClientDatabaseManager.getConnection();
+        try (Connection conn = ClientDatabaseManager.getReadConnection();
                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, transferId);
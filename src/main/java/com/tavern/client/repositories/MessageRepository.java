@@ -3,6 +3,7 @@ package com.tavern.client.repositories;
 import com.tavern.client.handlers.ApplicationContext;
 import com.tavern.client.utils.ClientDatabaseManager;
 import com.tavern.common.model.Message;
+import com.tavern.common.utils.Inserts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,47 +14,79 @@ import java.util.*;
 public class MessageRepository {
     private static final Logger logger = LoggerFactory.getLogger(MessageRepository.class);
     
+    // Direct and room messages share one statement, so a batch of both is inserted with it
+    private static final String INSERT_SQL =
+            "INSERT INTO message (sender_id, receiver_id, room_id, content, direct, owner_id, timestamp, conversation_id) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING id";
+
     public static void createMessage(Message message) {
-        String sql;
-        if (message.isDirect()) {
-            sql = "INSERT INTO message (sender_id, receiver_id, content, direct, owner_id, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
-        } else {
-            sql = "INSERT INTO message (sender_id, room_id, content, direct, owner_id, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
-        }
+        try (Connection conn = ClientDatabaseManager.getConnection()) {
+            int ownerId = ApplicationContext.getUserHandler().getUser().getId();
+            int id = Inserts.insert(conn, INSERT_SQL, message,
+                    (stmt, row) -> bindInsert(stmt, row, ownerId), rs -> rs.getInt("id"));
+            message.setId(id);
 
-        try (Connection conn = ClientDatabaseManager.getConnection();
-        PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        } catch (SQLException e) {
+            logger.error("Error creating message: {}", e.getMessage(), e);
+        }
+    }
 
-            stmt.setInt(1, message.getSenderId());
-            if (message.isDirect()) {
-                stmt.setInt(2, message.getReceiverId());
-            } else {
-                stmt.setInt(2, message.getRoomId());
-            }
-            stmt.setString(3, message.getContent());
-            stmt.setBoolean(4, message.isDirect());
-            stmt.setInt(5, ApplicationContext.getUserHandler().getUser().getId());
-
-            if (message.getTimestamp() == null)
-                stmt.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
-            else
-                stmt.setTimestamp(6, message.getTimestamp());
-
-            stmt.executeUpdate();
-            ResultSet rs = stmt.getGeneratedKeys();
-            if (rs.next()) {
-                message.setId(rs.getInt(1));
+    /**
+     * Stores a batch of messages, such as the unread messages fetched at login, in one transaction
+     * with one prepared statement.
+     */
+    public static void createMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        try (Connection conn = ClientDatabaseManager.getConnection()) {
+            int ownerId = ApplicationContext.getUserHandler().getUser().getId();
+            conn.setAutoCommit(false);
+            try {
+                List<Integer> ids = Inserts.insertAll(conn, INSERT_SQL, messages,
+                        (stmt, row) -> bindInsert(stmt, row, ownerId), rs -> rs.getInt("id"));
+                conn.commit();
+                for (int i = 0; i < messages.size(); i++) {
+                    messages.get(i).setId(ids.get(i));
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
-
         } catch (SQLException e) {
-            logger.error("Error creating message: {}", e.getMessage(), e);
+            logger.error("Error creating {} messages: {}", messages.size(), e.getMessage(), e);
+        }
+    }
+
+    private static void bindInsert(PreparedStatement stmt, Message message, int ownerId) throws SQLException {
+        stmt.setInt(1, message.getSenderId());
+        if (message.isDirect()) {
+            stmt.setInt(2, message.getReceiverId());
+            stmt.setNull(3, Types.INTEGER);
+        } else {
+            stmt.setNull(2, Types.INTEGER);
+            stmt.setInt(3, message.getRoomId());
+        }
+        stmt.setString(4, message.getContent());
+        stmt.setBoolean(5, message.isDirect());
+        stmt.setInt(6, ownerId);
+        if (message.getTimestamp() == null)
+            stmt.setTimestamp(7, Timestamp.valueOf(LocalDateTime.now()));
+        else
+            stmt.setTimestamp(7, message.getTimestamp());
+        if (message.isDirect()) {
+            stmt.setLong(8, Message.directConversationId(message.getSenderId(), message.getReceiverId()));
+        } else {
+            stmt.setNull(8, Types.BIGINT);
         }
     }
 
     public static ArrayList<Message> getMessagesByRoomId(int roomId) {
         ArrayList<Message> messages = new ArrayList<>();
         String sql = "SELECT * FROM message WHERE room_id = ? AND owner_id = ? ORDER BY timestamp ASC";
-        try(Connection conn = ClientDatabaseManager.getConnection();
+        try(Connection conn = ClientDatabaseManager.getReadConnection();
             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, roomId);
             stmt.setInt(2, ApplicationContext.getUserHandler().getUser().getId());
@@ -80,16 +113,15 @@ public class MessageRepository {
         String sql  = """
             SELECT *
             FROM message
-            WHERE direct = 1
-            AND owner_id = ?
-            AND (sender_id = ? OR receiver_id = ?)
+            WHERE owner_id = ?
+            AND conversation_id = ?
             ORDER BY timestamp ASC
             """;
-        try(Connection conn = ClientDatabaseManager.getConnection();
+        try(Connection conn = ClientDatabaseManager.getReadConnection();
             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, ApplicationContext.getUserHandler().getUser().getId());
-            stmt.setInt(2, userId);
-            stmt.setInt(3, userId);
+            int ownerId = ApplicationContext.getUserHandler().getUser().getId();
+            stmt.setInt(1, ownerId);
+            stmt.setLong(2, Message.directConversationId(ownerId, userId));
 
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
@@ -120,7 +152,7 @@ public class MessageRepository {
             ORDER BY timestamp DESC
             """;
 
-        try(Connection conn = ClientDatabaseManager.getConnection();
+        try(Connection conn = ClientDatabaseManager.getReadConnection();
             PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, userId);
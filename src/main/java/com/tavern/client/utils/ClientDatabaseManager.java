@@ -2,15 +2,39 @@ package com.tavern.client.utils;
 
 import com.tavern.client.handlers.ApplicationContext;
 import com.tavern.common.utils.DatabaseManager;
+import com.tavern.common.utils.SchemaMigrations;
+import com.tavern.common.utils.SchemaMigrations.Migration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 public class ClientDatabaseManager extends DatabaseManager {
     private static final Logger logger = LoggerFactory.getLogger(ClientDatabaseManager.class);
+
+    /**
+     * Changes to the schema made after the tables in {@link #initDatabase()} were first created.
+     * Append new migrations with the next version number; never edit one that has shipped.
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "conversation id for direct messages",
+                    "ALTER TABLE message ADD COLUMN conversation_id INTEGER",
+                    // Same key as Message.directConversationId
+                    """
+                    UPDATE message
+                    SET conversation_id = (min(sender_id, receiver_id) << 32) | max(sender_id, receiver_id)
+                    WHERE direct = 1
+                    """,
+                    "CREATE INDEX IF NOT EXISTS idx_message_owner_conversation_timestamp " +
+                    "ON message (owner_id, conversation_id, timestamp) WHERE conversation_id IS NOT NULL"),
+            new Migration(2, "modification time of uploaded files",
+                    // Set for own uploads only, so an interrupted upload is not resumed from a file that changed
+                    "ALTER TABLE file_transfer ADD COLUMN file_modified INTEGER")
+    );
+
     public final static ClientDatabaseManager instance = new ClientDatabaseManager();
 
     private ClientDatabaseManager() {
@@ -21,6 +45,14 @@ public class ClientDatabaseManager extends DatabaseManager {
         return instance.getDriverConnection();
     }
 
+    public static Connection getReadConnection() throws SQLException {
+        return instance.getReadOnlyConnection();
+    }
+
+    public static void close() {
+        instance.closeConnections();
+    }
+
     @Override
     protected void initDatabase() {
         logger.info("Initializing database");
@@ -64,6 +96,7 @@ public class ClientDatabaseManager extends DatabaseManager {
                     """;
             stmt.executeUpdate(createFileTransferTable);
 
+            SchemaMigrations.migrate(conn, MIGRATIONS);
         } catch (SQLException e) {
             logger.error("Unable to connect to database: {}", e.getMessage(), e);
         }
@@ -1,6 +1,9 @@
 package com.tavern.client.utils;
 
 import com.tavern.client.handlers.ApplicationContext;
+import com.tavern.common.codec.DataChannel;
+import com.tavern.common.codec.WireCodec;
+import com.tavern.common.codec.WireFormat;
 import com.tavern.common.model.network.NetworkMessage;
 import com.tavern.common.utils.AppDataManager;
 import com.tavern.common.utils.LogManager;
@@ -11,14 +14,15 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ConnectionManager {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private WireCodec codec;
     private SSLSocket socket;
     private static ConnectionManager instance;
     
@@ -27,6 +31,10 @@ public class ConnectionManager {
     private final String trustStorePassword;
     private final String serverHost;
     private final int serverPort;
+    private final WireFormat wireFormat;
+    private final int dataPort;
+    private final boolean dataTls;
+    private SSLContext sslContext;
 
     private ConnectionManager() {
         PropertyFileLoader props = ApplicationContext.getProperties();
@@ -38,6 +46,9 @@ public class ConnectionManager {
         serverPort = Integer.parseInt(props.getProperty("server.port",  "0"));
         trustStorePath = props.getProperty("ssl.path");
         trustStorePassword = props.getProperty("ssl.password");
+        wireFormat = WireFormat.fromProperty(props.getProperty("wire.format", "binary"));
+        dataPort = Integer.parseInt(props.getProperty("server.data.port", "8444"));
+        dataTls = Boolean.parseBoolean(props.getProperty("server.data.tls", "true"));
 
         startConnection();
     }
@@ -69,7 +80,7 @@ public class ConnectionManager {
             tmf.init(trustStore);
             
             // Create SSL context
-            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, tmf.getTrustManagers(), null);
             
             // Create socket factory
@@ -79,9 +90,8 @@ public class ConnectionManager {
             // Start handshake
             socket.startHandshake();
             
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            logger.info("Secure connection established");
+            codec = WireCodec.connect(socket.getInputStream(), socket.getOutputStream(), wireFormat);
+            logger.info("Secure connection established using {} wire format", codec.getFormat());
         } catch (Exception e) {
             logger.error("Unable to connect to server: {}", e.getMessage(), e);
         }
@@ -89,12 +99,27 @@ public class ConnectionManager {
 
     public void sendMessage(NetworkMessage message) throws IOException {
         logger.debug("Sending message: {}", message);
-        out.writeObject(message);
-        out.flush();
+        synchronized (codec) {
+            codec.writeMessage(message);
+            codec.flush();
+        }
+    }
+
+    /**
+     * Opens a connection to the server's data port for the bytes of one file transfer. It has to
+     * match the server in whether it uses TLS.
+     */
+    public DataChannel openDataChannel() throws IOException {
+        if (!dataTls) {
+            return DataChannel.of(SocketChannel.open(new InetSocketAddress(serverHost, dataPort)));
+        }
+        SSLSocket dataSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(serverHost, dataPort);
+        dataSocket.startHandshake();
+        return DataChannel.of(dataSocket);
     }
 
     public NetworkMessage receiveMessage() throws IOException, ClassNotFoundException {
-        NetworkMessage message = (NetworkMessage) in.readObject();
+        NetworkMessage message = codec.readMessage();
         logger.debug("Received message: {}", message);
         return message;
     }
@@ -102,8 +127,7 @@ public class ConnectionManager {
     public void close() {
         logger.info("Closing connection...");
         try {
-            if (out != null) out.close();
-            if (in != null) in.close();
+            if (codec != null) codec.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             logger.warn("Error closing connection", e);
@@ -0,0 +1,134 @@
+package com.tavern.client.utils;
+
+import com.tavern.common.model.network.FileTransferChunk;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flow control for one upload. The server grants credit up to a byte offset as it writes chunks to
+ * disk, and the uploader never sends past it, so a server that falls behind slows the upload down
+ * instead of piling chunks up in memory.
+ * <p>
+ * Within that credit the uploader sizes its chunks and its window to the link. Every credit
+ * acknowledges a prefix of the file, which gives a round trip time (from sending a chunk until the
+ * server has written it) and a throughput. Chunks are made large enough to carry about
+ * {@link #CHUNK_TIME_NANOS} of data, between {@link #MIN_CHUNK_SIZE} and {@link #MAX_CHUNK_SIZE},
+ * and about two bandwidth-delay products are kept in flight. Chunk sizes are whole
+ * {@link FileTransferChunk#BLOCK_SIZE blocks}, except at the end of the file.
+ */
+public class UploadWindow {
+    public static final int MIN_CHUNK_SIZE = FileTransferChunk.BLOCK_SIZE;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final long CHUNK_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long CREDIT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Weight of a new sample in the moving averages
+    private static final double GAIN = 0.125;
+
+    private record Sent(long end, long sentAt) {}
+
+    private final ArrayDeque<Sent> inFlight = new ArrayDeque<>();
+    private long acknowledged;
+    private long limit;
+    private long lastCreditAt;
+    private double rttNanos = -1;
+    private double bytesPerNano = -1;
+    private String failure;
+
+    /**
+     * Records credit from the server, which acknowledges everything written so far.
+     */
+    public synchronized void credit(long acknowledged, long limit) {
+        long now = System.nanoTime();
+        if (acknowledged > this.acknowledged) {
+            if (lastCreditAt > 0) {
+                sample(now, acknowledged - this.acknowledged);
+            }
+            this.acknowledged = acknowledged;
+        }
+        lastCreditAt = now;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().end() <= acknowledged) {
+            Sent sent = inFlight.pollFirst();
+            double rtt = now - sent.sentAt();
+            rttNanos = rttNanos < 0 ? rtt : rttNanos + GAIN * (rtt - rttNanos);
+        }
+        this.limit = Math.max(this.limit, limit);
+        notifyAll();
+    }
+
+    private void sample(long now, long bytes) {
+        double rate = bytes / (double) Math.max(1, now - lastCreditAt);
+        bytesPerNano = bytesPerNano < 0 ? rate : bytesPerNano + GAIN * (rate - bytesPerNano);
+    }
+
+    /**
+     * Waits until the next chunk may be sent.
+     *
+     * @param sent bytes sent so far
+     * @param remaining bytes left to send
+     * @return the size of the next chunk
+     * @throws IOException if the transfer failed or the server stopped granting credit
+     */
+    public synchronized int awaitChunk(long sent, long remaining) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + CREDIT_TIMEOUT_NANOS;
+        while (true) {
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            int size = (int) Math.min(Math.min(chunkSize(), remaining), limit - sent);
+            if (size < remaining) {
+                size -= size % FileTransferChunk.BLOCK_SIZE;
+            }
+            if (size > 0 && sent + size <= acknowledged + window(size)) {
+                inFlight.addLast(new Sent(sent + size, System.nanoTime()));
+                return size;
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                throw new IOException("Server granted no credit for " + TimeUnit.NANOSECONDS.toSeconds(CREDIT_TIMEOUT_NANOS) + " seconds");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+    }
+
+    /**
+     * Makes {@link #awaitChunk} give up, for example because the server reported an error.
+     */
+    public synchronized void fail(String reason) {
+        failure = reason;
+        notifyAll();
+    }
+
+    private int chunkSize() {
+        if (bytesPerNano < 0) {
+            return MIN_CHUNK_SIZE;
+        }
+        long size = (long) (bytesPerNano * CHUNK_TIME_NANOS);
+        size -= size % FileTransferChunk.BLOCK_SIZE;
+        return Math.clamp(size, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Bytes to keep in flight: two bandwidth-delay products, but always room for two chunks. Until
+     * there are measurements the server's credit is the only limit.
+     */
+    private long window(int chunkSize) {
+        if (bytesPerNano < 0 || rttNanos < 0) {
+            return Long.MAX_VALUE / 2;
+        }
+        return Math.max(2L * chunkSize, (long) (2 * bytesPerNano * rttNanos));
+    }
+
+    public synchronized double getRttMillis() {
+        return rttNanos / 1e6;
+    }
+
+    public synchronized double getThroughputMBps() {
+        return bytesPerNano * 1e9 / (1024 * 1024);
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize();
+    }
+}
@@ -0,0 +1,467 @@
+package com.tavern.common.codec;
+
+import com.tavern.common.model.AvatarSize;
+import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
+import com.tavern.common.model.UnreadCount;
+import com.tavern.common.model.network.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Registry of binary encoders keyed by {@link NetworkMessage.MessageType}.
+ * <p>
+ * A frame is laid out as {@code [int length][short type][payload]}, where length counts
+ * everything after the length field itself and type is the
+ * {@linkplain NetworkMessage.MessageType#getId() id} of the message type, never its ordinal. Hot message types have hand-written encoders;
+ * every other type falls back to Java serialization of that single message, so a frame never
+ * depends on state from earlier frames and can be shared between connections.
+ */
+public final class BinaryMessageCodec {
+    public static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+    private static final int HEADER_LENGTH = Integer.BYTES;
+    private static final EnumMap<NetworkMessage.MessageType, MessageEncoder<?>> encoders =
+            new EnumMap<>(NetworkMessage.MessageType.class);
+
+    static {
+        register(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST, new MessageEncoder<SendTextMessageRequest>() {
+            @Override
+            public void encode(SendTextMessageRequest message, DataOutputStream out) throws IOException {
+                writeMessage(message.message(), out);
+            }
+
+            @Override
+            public SendTextMessageRequest decode(DataInputStream in) throws IOException {
+                return new SendTextMessageRequest(readMessage(in));
+            }
+        });
+        register(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_RESPONSE, new MessageEncoder<SendTextMessageResponse>() {
+            @Override
+            public void encode(SendTextMessageResponse message, DataOutputStream out) throws IOException {
+                writeMessage(message.message(), out);
+                out.writeBoolean(message.status());
+            }
+
+            @Override
+            public SendTextMessageResponse decode(DataInputStream in) throws IOException {
+                return new SendTextMessageResponse(readMessage(in), in.readBoolean());
+            }
+        });
+        register(NetworkMessage.MessageType.RECEIVE_TEXT_MESSAGE_REQUEST, new MessageEncoder<ReceiveTextMessageRequest>() {
+            @Override
+            public void encode(ReceiveTextMessageRequest message, DataOutputStream out) throws IOException {
+                writeMessage(message.message(), out);
+            }
+
+            @Override
+            public ReceiveTextMessageRequest decode(DataInputStream in) throws IOException {
+                return new ReceiveTextMessageRequest(readMessage(in));
+            }
+        });
+        register(NetworkMessage.MessageType.GET_MESSAGES_RESPONSE, new MessageEncoder<GetMessagesResponse>() {
+            @Override
+            public void encode(GetMessagesResponse message, DataOutputStream out) throws IOException {
+                out.writeInt(message.requestId());
+                out.writeBoolean(message.last());
+                MessageCursor next = message.next();
+                out.writeBoolean(next != null);
+                if (next != null) {
+                    out.writeLong(next.timestamp());
+                    out.writeInt(next.id());
+                }
+                List<Message> messages = message.messages();
+                out.writeInt(messages != null ? messages.size() : -1);
+                if (messages != null) {
+                    for (Message m : messages) {
+                        writeMessage(m, out);
+                    }
+                }
+            }
+
+            @Override
+            public GetMessagesResponse decode(DataInputStream in) throws IOException {
+                int requestId = in.readInt();
+                boolean last = in.readBoolean();
+                MessageCursor next = in.readBoolean() ? new MessageCursor(in.readLong(), in.readInt()) : null;
+                int count = in.readInt();
+                List<Message> messages = null;
+                if (count >= 0) {
+                    messages = new ArrayList<>(Math.min(count, 1024));
+                    for (int i = 0; i < count; i++) {
+                        messages.add(readMessage(in));
+                    }
+                }
+                return new GetMessagesResponse(requestId, messages, next, last);
+            }
+
+            @Override
+            public int estimateSize(GetMessagesResponse message) {
+                int size = 64;
+                if (message.messages() != null) {
+                    for (Message m : message.messages()) {
+                        size += 48 + m.getContent().length();
+                    }
+                }
+                return size;
+            }
+        });
+        register(NetworkMessage.MessageType.GET_UNREAD_COUNTS_RESPONSE, new MessageEncoder<GetUnreadCountsResponse>() {
+            @Override
+            public void encode(GetUnreadCountsResponse message, DataOutputStream out) throws IOException {
+                out.writeInt(message.counts().size());
+                for (UnreadCount count : message.counts()) {
+                    out.writeBoolean(count.direct());
+                    out.writeInt(count.conversationId());
+                    out.writeInt(count.count());
+                }
+            }
+
+            @Override
+            public GetUnreadCountsResponse decode(DataInputStream in) throws IOException {
+                int size = in.readInt();
+                List<UnreadCount> counts = new ArrayList<>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    counts.add(new UnreadCount(in.readBoolean(), in.readInt(), in.readInt()));
+                }
+                return new GetUnreadCountsResponse(counts);
+            }
+
+            @Override
+            public int estimateSize(GetUnreadCountsResponse message) {
+                return 8 + message.counts().size() * 9;
+            }
+        });
+        register(NetworkMessage.MessageType.GET_AVATAR_REQUEST, new MessageEncoder<GetAvatarRequest>() {
+            @Override
+            public void encode(GetAvatarRequest message, DataOutputStream out) throws IOException {
+                out.writeUTF(message.hash());
+                out.writeByte(message.size().ordinal());
+            }
+
+            @Override
+            public GetAvatarRequest decode(DataInputStream in) throws IOException {
+                return new GetAvatarRequest(in.readUTF(), AvatarSize.values()[in.readByte()]);
+            }
+
+            @Override
+            public int estimateSize(GetAvatarRequest message) {
+                return 80;
+            }
+        });
+        register(NetworkMessage.MessageType.GET_AVATAR_RESPONSE, new MessageEncoder<GetAvatarResponse>() {
+            @Override
+            public void encode(GetAvatarResponse message, DataOutputStream out) throws IOException {
+                out.writeUTF(message.hash());
+                out.writeByte(message.size().ordinal());
+                byte[] image = message.image();
+                out.writeInt(image != null ? image.length : -1);
+                if (image != null) {
+                    out.write(image);
+                }
+            }
+
+            @Override
+            public GetAvatarResponse decode(DataInputStream in) throws IOException {
+                String hash = in.readUTF();
+                AvatarSize size = AvatarSize.values()[in.readByte()];
+                int length = in.readInt();
+                byte[] image = null;
+                if (length >= 0) {
+                    image = new byte[length];
+                    in.readFully(image);
+                }
+                return new GetAvatarResponse(hash, size, image);
+            }
+
+            @Override
+            public int estimateSize(GetAvatarResponse message) {
+                return 96 + (message.image() != null ? message.image().length : 0);
+            }
+        });
+        register(NetworkMessage.MessageType.FILE_TRANSFER_CHUNK, new MessageEncoder<FileTransferChunk>() {
+            @Override
+            public void encode(FileTransferChunk message, DataOutputStream out) throws IOException {
+                writeString(message.getTransferId(), out);
+                out.writeInt(message.getChunkNumber());
+                out.writeInt(message.getTotalChunks());
+                out.writeLong(message.getOffset());
+                out.writeLong(message.getChecksum());
+                byte[] data = message.getData();
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            @Override
+            public FileTransferChunk decode(DataInputStream in) throws IOException {
+                String transferId = readString(in);
+                int chunkNumber = in.readInt();
+                int totalChunks = in.readInt();
+                long offset = in.readLong();
+                long checksum = in.readLong();
+                byte[] data = new byte[readLength(in)];
+                in.readFully(data);
+                return new FileTransferChunk(transferId, data, chunkNumber, totalChunks, offset, checksum);
+            }
+
+            @Override
+            public int estimateSize(FileTransferChunk message) {
+                return message.getDataLength() + 128;
+            }
+        });
+        register(NetworkMessage.MessageType.FILE_TRANSFER_CREDIT, new MessageEncoder<FileTransferCredit>() {
+            @Override
+            public void encode(FileTransferCredit message, DataOutputStream out) throws IOException {
+                writeString(message.transferId(), out);
+                out.writeLong(message.acknowledged());
+                out.writeLong(message.limit());
+            }
+
+            @Override
+            public FileTransferCredit decode(DataInputStream in) throws IOException {
+                return new FileTransferCredit(readString(in), in.readLong(), in.readLong());
+            }
+
+            @Override
+            public int estimateSize(FileTransferCredit message) {
+                return 64;
+            }
+        });
+        register(NetworkMessage.MessageType.FILE_TRANSFER_RESUME_REQUEST, new MessageEncoder<FileTransferResumeRequest>() {
+            @Override
+            public void encode(FileTransferResumeRequest message, DataOutputStream out) throws IOException {
+                writeString(message.transferId(), out);
+            }
+
+            @Override
+            public FileTransferResumeRequest decode(DataInputStream in) throws IOException {
+                return new FileTransferResumeRequest(readString(in));
+            }
+
+            @Override
+            public int estimateSize(FileTransferResumeRequest message) {
+                return 64;
+            }
+        });
+        register(NetworkMessage.MessageType.FILE_TRANSFER_RESUME_RESPONSE, new MessageEncoder<FileTransferResumeResponse>() {
+            @Override
+            public void encode(FileTransferResumeResponse message, DataOutputStream out) throws IOException {
+                writeString(message.transferId(), out);
+                out.writeBoolean(message.accepted());
+                long[] missing = message.missing() == null ? new long[0] : message.missing();
+                out.writeInt(missing.length);
+                for (long offset : missing) {
+                    out.writeLong(offset);
+                }
+            }
+
+            @Override
+            public FileTransferResumeResponse decode(DataInputStream in) throws IOException {
+                String transferId = readString(in);
+                boolean accepted = in.readBoolean();
+                int count = readLength(in);
+                if (count > MAX_FRAME_LENGTH / Long.BYTES) {
+                    throw new StreamCorruptedException("Invalid range count: " + count);
+                }
+                long[] missing = new long[count];
+                for (int i = 0; i < missing.length; i++) {
+                    missing[i] = in.readLong();
+                }
+                return new FileTransferResumeResponse(transferId, accepted, missing);
+            }
+
+            @Override
+            public int estimateSize(FileTransferResumeResponse message) {
+                return 64 + (message.missing() == null ? 0 : message.missing().length * Long.BYTES);
+            }
+        });
+        register(NetworkMessage.MessageType.HAS_BLOB_REQUEST, new MessageEncoder<HasBlobRequest>() {
+            @Override
+            public void encode(HasBlobRequest message, DataOutputStream out) throws IOException {
+                out.writeInt(message.requestId());
+                writeString(message.hash(), out);
+                out.writeLong(message.size());
+            }
+
+            @Override
+            public HasBlobRequest decode(DataInputStream in) throws IOException {
+                return new HasBlobRequest(in.readInt(), readString(in), in.readLong());
+            }
+
+            @Override
+            public int estimateSize(HasBlobRequest message) {
+                return 96;
+            }
+        });
+        register(NetworkMessage.MessageType.HAS_BLOB_RESPONSE, new MessageEncoder<HasBlobResponse>() {
+            @Override
+            public void encode(HasBlobResponse message, DataOutputStream out) throws IOException {
+                out.writeInt(message.requestId());
+                writeString(message.hash(), out);
+                out.writeLong(message.size());
+                out.writeBoolean(message.present());
+                if (message.present()) {
+                    out.writeInt(message.challenge().length);
+                    out.write(message.challenge());
+                    out.writeLong(message.offset());
+                    out.writeInt(message.length());
+                }
+            }
+
+            @Override
+            public HasBlobResponse decode(DataInputStream in) throws IOException {
+                int requestId = in.readInt();
+                String hash = readString(in);
+                long size = in.readLong();
+                if (!in.readBoolean()) {
+                    return new HasBlobResponse(requestId, hash, size, false, null, 0, 0);
+                }
+                byte[] challenge = new byte[readLength(in)];
+                in.readFully(challenge);
+                return new HasBlobResponse(requestId, hash, size, true, challenge, in.readLong(), in.readInt());
+            }
+
+            @Override
+            public int estimateSize(HasBlobResponse message) {
+                return 128;
+            }
+        });
+    }
+
+    private BinaryMessageCodec() {}
+
+    public static <T extends NetworkMessage> void register(NetworkMessage.MessageType type, MessageEncoder<T> encoder) {
+        encoders.put(type, encoder);
+    }
+
+    public static boolean hasEncoder(NetworkMessage.MessageType type) {
+        return encoders.containsKey(type);
+    }
+
+    /**
+     * Encodes a message into a complete, self-contained frame including the length prefix.
+     */
+    @SuppressWarnings("unchecked")
+    public static byte[] encodeFrame(NetworkMessage message) throws IOException {
+        MessageEncoder<NetworkMessage> encoder = (MessageEncoder<NetworkMessage>) encoders.get(message.getMessageType());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(encoder != null ? encoder.estimateSize(message) : 512);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0); // patched below once the payload length is known
+        out.writeShort(message.getMessageType().getId());
+
+        if (encoder != null) {
+            encoder.encode(message, out);
+        } else {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(message);
+            oos.flush();
+        }
+        out.flush();
+
+        byte[] frame = buffer.toByteArray();
+        int length = frame.length - HEADER_LENGTH;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large: " + length + " bytes for " + message.getMessageType());
+        }
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Reads the next frame from the stream and decodes it.
+     */
+    public static NetworkMessage readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        if (length < Short.BYTES || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+        int id = frame.readUnsignedShort();
+        NetworkMessage.MessageType type = NetworkMessage.MessageType.forId(id);
+        if (type == null) {
+            throw new StreamCorruptedException("Unknown message type id: " + id);
+        }
+
+        MessageEncoder<?> encoder = encoders.get(type);
+        if (encoder != null) {
+            return encoder.decode(frame);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(frame)) {
+            return (NetworkMessage) ois.readObject();
+        }
+    }
+
+    static void writeMessage(Message message, DataOutputStream out) throws IOException {
+        out.writeInt(message.getId());
+        out.writeInt(message.getSenderId());
+        out.writeInt(message.getReceiverId());
+        out.writeInt(message.getRoomId());
+        out.writeBoolean(message.isDirect());
+        writeString(message.getContent(), out);
+        Timestamp timestamp = message.getTimestamp();
+        out.writeBoolean(timestamp != null);
+        if (timestamp != null) {
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        }
+        writeString(message.getTransferId(), out);
+    }
+
+    static Message readMessage(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        int senderId = in.readInt();
+        int receiverId = in.readInt();
+        int roomId = in.readInt();
+        boolean direct = in.readBoolean();
+        String content = readString(in);
+        Timestamp timestamp = null;
+        if (in.readBoolean()) {
+            timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+        }
+        Message message = new Message(id, senderId, receiverId, roomId, content, direct, timestamp);
+        message.setTransferId(readString(in));
+        return message;
+    }
+
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid field length: " + length);
+        }
+        return length;
+    }
+
+    static void writeString(String value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,36 @@
+package com.tavern.common.codec;
+
+import com.tavern.common.model.network.NetworkMessage;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Length-prefixed binary frames. Encoding is stateless, so the same frame can be written to
+ * any number of binary connections.
+ */
+public class BinaryWireCodec extends WireCodec {
+    private final DataInputStream dataIn;
+
+    BinaryWireCodec(InputStream in, OutputStream out) {
+        super(in, out);
+        this.dataIn = new DataInputStream(in);
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.BINARY;
+    }
+
+    @Override
+    public byte[] encode(NetworkMessage message) throws IOException {
+        return BinaryMessageCodec.encodeFrame(message);
+    }
+
+    @Override
+    public NetworkMessage readMessage() throws IOException, ClassNotFoundException {
+        return BinaryMessageCodec.readFrame(dataIn);
+    }
+}
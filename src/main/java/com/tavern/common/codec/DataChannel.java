@@ -0,0 +1,178 @@
+package com.tavern.common.codec;
+
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A connection that carries the bytes of one file transfer, opened next to the chat connection so
+ * that bulk data never queues behind or in front of chat messages.
+ * <p>
+ * The client opens it with {@link #MAGIC}, the transfer id it was given on the chat connection and
+ * the offset to start from, which is past zero when a dropped download is resumed. The id is the
+ * only credential: ids are random and the server accepts each one until its download is done. The
+ * server answers with a status byte and, if it accepted, the size of the file. After that the
+ * connection carries nothing but the file from the offset on.
+ * <p>
+ * Over a plain connection the file is sent with {@link FileChannel#transferTo}, so the kernel moves
+ * it from the page cache to the socket without copying it through the JVM. TLS has to encrypt
+ * every byte in user space, so over TLS the file is read in large blocks and written as they are.
+ */
+public final class DataChannel implements Closeable {
+    static final byte[] MAGIC = { 'T', 'V', 'R', 'D' };
+    private static final byte ACCEPTED = 0;
+    private static final byte REJECTED = 1;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Closeable connection;
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    private DataChannel(Closeable connection, SocketChannel channel, InputStream in, OutputStream out) {
+        this.connection = connection;
+        this.channel = channel;
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * Wraps a plain connection, which must be in blocking mode.
+     */
+    public static DataChannel of(SocketChannel channel) throws IOException {
+        return new DataChannel(channel, channel, channel.socket().getInputStream(), channel.socket().getOutputStream());
+    }
+
+    public static DataChannel of(SSLSocket socket) throws IOException {
+        return new DataChannel(socket, null, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * Whether file data is sent without copying it through the JVM.
+     */
+    public boolean isZeroCopy() {
+        return channel != null;
+    }
+
+    /**
+     * Client side: asks for the data of a transfer from {@code offset} on.
+     *
+     * @return the size of the whole file
+     * @throws IOException if the server does not know the transfer
+     */
+    public long open(String transferId, long offset) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(header);
+        data.write(MAGIC);
+        data.writeUTF(transferId);
+        data.writeLong(offset);
+        out.write(header.toByteArray());
+        out.flush();
+
+        if (in.readByte() != ACCEPTED) {
+            throw new IOException("Server rejected data connection for transfer " + transferId);
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Server side: reads the transfer id the client asks for.
+     */
+    public String readTransferId() throws IOException {
+        if (!Arrays.equals(in.readNBytes(MAGIC.length), MAGIC)) {
+            throw new StreamCorruptedException("Not a data connection");
+        }
+        return in.readUTF();
+    }
+
+    /**
+     * Server side: reads the offset the client wants the file from, right after the transfer id.
+     */
+    public long readOffset() throws IOException {
+        return in.readLong();
+    }
+
+    public void accept(long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 + Long.BYTES).put(ACCEPTED).putLong(size);
+        out.write(header.array());
+        out.flush();
+    }
+
+    public void reject() throws IOException {
+        out.write(REJECTED);
+        out.flush();
+    }
+
+    /**
+     * Sends {@code count} bytes of the file starting at {@code position}.
+     */
+    public void send(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        if (channel != null) {
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new EOFException("File ended " + (end - position) + " bytes early");
+                }
+                position += sent;
+            }
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended " + (end - position) + " bytes early");
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+        }
+        out.flush();
+    }
+
+    /**
+     * Receives {@code count} bytes into the file starting at {@code position}.
+     */
+    public void receive(FileChannel file, long position, long count, LongConsumer progress) throws IOException {
+        long end = position + count;
+        if (channel != null) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed " + (end - position) + " bytes early");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += file.write(buffer, position);
+                }
+                progress.accept(position);
+            }
+            return;
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (position < end) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (read < 0) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes early");
+            }
+            ByteBuffer block = ByteBuffer.wrap(buffer, 0, read);
+            while (block.hasRemaining()) {
+                position += file.write(block, position);
+            }
+            progress.accept(position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.tavern.common.codec;
+
+import com.tavern.common.model.network.NetworkMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes and reads the payload of a single message type inside a binary frame.
+ *
+ * @param <T> the message type handled by this encoder
+ */
+public interface MessageEncoder<T extends NetworkMessage> {
+    void encode(T message, DataOutputStream out) throws IOException;
+
+    T decode(DataInputStream in) throws IOException;
+
+    /**
+     * Initial buffer size for the encoded payload, so large messages are not grown byte array by byte array.
+     */
+    default int estimateSize(T message) {
+        return 256;
+    }
+}
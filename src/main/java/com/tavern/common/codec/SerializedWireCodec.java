@@ -0,0 +1,53 @@
+package com.tavern.common.codec;
+
+import com.tavern.common.model.network.NetworkMessage;
+
+import java.io.*;
+
+/**
+ * Java serialization, compatible with clients that predate the binary codec.
+ * <p>
+ * Each encoded message ends with a stream reset, so the handle table does not keep every
+ * object ever written alive and a frame never back-references an object from an earlier one.
+ */
+public class SerializedWireCodec extends WireCodec {
+    private final ByteArrayOutputStream buffer;
+    private final ObjectOutputStream encoder;
+    private ObjectInputStream decoder;
+
+    SerializedWireCodec(InputStream in, OutputStream out) throws IOException {
+        super(in, out);
+        this.buffer = new ByteArrayOutputStream(512);
+        this.encoder = new ObjectOutputStream(buffer);
+
+        // The stream header is written once, ahead of any frame
+        encoder.flush();
+        out.write(buffer.toByteArray());
+        out.flush();
+        buffer.reset();
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return WireFormat.SERIALIZED;
+    }
+
+    @Override
+    public synchronized byte[] encode(NetworkMessage message) throws IOException {
+        encoder.writeObject(message);
+        encoder.reset();
+        encoder.flush();
+        byte[] frame = buffer.toByteArray();
+        buffer.reset();
+        return frame;
+    }
+
+    @Override
+    public NetworkMessage readMessage() throws IOException, ClassNotFoundException {
+        // Created lazily so the peer's stream header is only awaited by the reading thread
+        if (decoder == null) {
+            decoder = new ObjectInputStream(in);
+        }
+        return (NetworkMessage) decoder.readObject();
+    }
+}
@@ -0,0 +1,118 @@
+package com.tavern.common.codec;
+
+import com.tavern.common.model.network.NetworkMessage;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Reads and writes {@link NetworkMessage}s on one connection.
+ * <p>
+ * Messages are first encoded into byte frames with {@link #encode(NetworkMessage)} and then
+ * written with {@link #writeFrame(byte[])}, so callers can encode on one thread and write on
+ * another. The format is chosen by a handshake when the connection is opened: a binary client
+ * starts with {@link #MAGIC} and a version byte, while a legacy client starts straight away with
+ * a Java serialization stream header, which the server recognises and falls back to.
+ */
+public abstract class WireCodec implements Closeable {
+    static final byte[] MAGIC = { 'T', 'V', 'R', 'N' };
+    // Bumped whenever message type ids or an encoder's layout change
+    static final byte PROTOCOL_VERSION = 4;
+    private static final byte[] SERIALIZATION_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+    // One full TLS record, so a flushed batch of small frames goes out in as few records as possible
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    protected final InputStream in;
+    protected final OutputStream out;
+
+    protected WireCodec(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public abstract WireFormat getFormat();
+
+    /**
+     * Encodes a message into the bytes that {@link #writeFrame(byte[])} puts on the wire.
+     * Frames are self-contained, so one frame can be written to every connection of the same format.
+     */
+    public abstract byte[] encode(NetworkMessage message) throws IOException;
+
+    public abstract NetworkMessage readMessage() throws IOException, ClassNotFoundException;
+
+    public void writeFrame(byte[] frame) throws IOException {
+        out.write(frame);
+    }
+
+    public void writeMessage(NetworkMessage message) throws IOException {
+        writeFrame(encode(message));
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Server side of the handshake. Peeks at the first bytes sent by the client to decide
+     * between the binary codec and the legacy serialization stream.
+     */
+    public static WireCodec accept(InputStream rawIn, OutputStream rawOut) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(rawIn);
+        BufferedOutputStream out = new BufferedOutputStream(rawOut, WRITE_BUFFER_SIZE);
+
+        in.mark(MAGIC.length);
+        byte[] preamble = in.readNBytes(MAGIC.length);
+        if (Arrays.equals(preamble, MAGIC)) {
+            int version = in.read();
+            if (version != PROTOCOL_VERSION) {
+                throw new StreamCorruptedException("Unsupported binary protocol version: " + version);
+            }
+            out.write(MAGIC);
+            out.write(PROTOCOL_VERSION);
+            out.flush();
+            return new BinaryWireCodec(in, out);
+        }
+        if (Arrays.equals(preamble, SERIALIZATION_HEADER)) {
+            in.reset();
+            return new SerializedWireCodec(in, out);
+        }
+        throw new StreamCorruptedException("Unrecognised connection preamble: " + Arrays.toString(preamble));
+    }
+
+    /**
+     * Client side of the handshake.
+     *
+     * @param format the format to ask the server for
+     */
+    public static WireCodec connect(InputStream rawIn, OutputStream rawOut, WireFormat format) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(rawIn);
+        BufferedOutputStream out = new BufferedOutputStream(rawOut, WRITE_BUFFER_SIZE);
+
+        if (format == WireFormat.SERIALIZED) {
+            return new SerializedWireCodec(in, out);
+        }
+
+        out.write(MAGIC);
+        out.write(PROTOCOL_VERSION);
+        out.flush();
+
+        byte[] ack = in.readNBytes(MAGIC.length);
+        if (!Arrays.equals(ack, MAGIC)) {
+            throw new StreamCorruptedException("Server does not support the binary protocol");
+        }
+        int version = in.read();
+        if (version != PROTOCOL_VERSION) {
+            throw new StreamCorruptedException("Unsupported binary protocol version: " + version);
+        }
+        return new BinaryWireCodec(in, out);
+    }
+}
@@ -0,0 +1,23 @@
+package com.tavern.common.codec;
+
+/**
+ * Encodings a connection can use for {@link com.tavern.common.model.network.NetworkMessage}s.
+ */
+public enum WireFormat {
+    /**
+     * One long-lived Java object stream per connection. Spoken by clients that predate the binary codec.
+     */
+    SERIALIZED,
+
+    /**
+     * Length-prefixed frames with hand-written encoders for the hot message types.
+     */
+    BINARY;
+
+    public static WireFormat fromProperty(String value) {
+        if (value != null && value.trim().equalsIgnoreCase("serialized")) {
+            return SERIALIZED;
+        }
+        return BINARY;
+    }
+}
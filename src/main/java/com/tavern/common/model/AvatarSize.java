@@ -0,0 +1,33 @@
+package com.tavern.common.model;
+
+/**
+ * The sizes, in pixels per side, that the server renders every avatar in. Clients ask for the
+ * smallest one that covers what they draw and scale it from there.
+ */
+public enum AvatarSize {
+    SMALL(32),
+    MEDIUM(64),
+    LARGE(128);
+
+    private final int pixels;
+
+    AvatarSize(int pixels) {
+        this.pixels = pixels;
+    }
+
+    public int getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the smallest size at least as large as {@code pixels}, or the largest size
+     */
+    public static AvatarSize covering(int pixels) {
+        for (AvatarSize size : values()) {
+            if (size.pixels >= pixels) {
+                return size;
+            }
+        }
+        return LARGE;
+    }
+}
@@ -12,6 +12,8 @@ public final class Message implements Serializable {
     private String content;
     private boolean direct;
     private Timestamp timestamp;
+    // The upload a file message shares, null for any other message
+    private String transferId;
 
     public Message(int id, int sender_id, int receiver_id, int room_id, String content, boolean direct) {
         this.id = id;
@@ -34,6 +36,16 @@ public final class Message implements Serializable {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Key shared by every direct message between the same two users, whichever of them sent it:
+     * the lower user id in the high half, the higher one in the low half.
+     */
+    public static long directConversationId(int userId, int otherUserId) {
+        int low = Math.min(userId, otherUserId);
+        int high = Math.max(userId, otherUserId);
+        return ((long) low << 32) | (high & 0xFFFFFFFFL);
+    }
+
     public int getId() {
         return id;
     }
@@ -90,6 +102,14 @@ public final class Message implements Serializable {
         this.timestamp = timestamp;
     }
 
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public void setTransferId(String transferId) {
+        this.transferId = transferId;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
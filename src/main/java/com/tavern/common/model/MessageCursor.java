@@ -0,0 +1,14 @@
+package com.tavern.common.model;
+
+import java.io.Serializable;
+
+/**
+ * Position in a conversation's history, between messages ordered by timestamp and then id.
+ * A page of history starts strictly after (or before) the cursor, so paging never skips or
+ * repeats a message even when several share a timestamp.
+ */
+public record MessageCursor(long timestamp, int id) implements Serializable {
+    public static MessageCursor of(Message message) {
+        return new MessageCursor(message.getTimestamp().getTime(), message.getId());
+    }
+}
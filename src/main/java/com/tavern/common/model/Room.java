@@ -6,22 +6,23 @@ import java.util.Objects;
 public class Room implements Serializable {
     private int id;
     private String name;
-    private byte[] avatar;
+    /** SHA-256 of the avatar image in the server's avatar store, or null without an avatar */
+    private String avatarHash;
 
     public Room() {
         this.id = -1;
         this.name = null;
-        this.avatar = null;
+        this.avatarHash = null;
     }
 
-    public Room(String name, byte[] avatar) {
-        this(-1, name, avatar);
+    public Room(String name, String avatarHash) {
+        this(-1, name, avatarHash);
     }
 
-    public Room(int id, String name, byte[] avatar) {
+    public Room(int id, String name, String avatarHash) {
         this.id = id;
         this.name = name;
-        this.avatar = avatar;
+        this.avatarHash = avatarHash;
     }
 
     public int getId() {
@@ -40,12 +41,12 @@ public class Room implements Serializable {
         this.name = name;
     }
 
-    public byte[] getAvatar() {
-        return avatar;
+    public String getAvatarHash() {
+        return avatarHash;
     }
 
-    public void setAvatar(byte[] avatar) {
-        this.avatar = avatar;
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
     }
 
     @Override
@@ -53,7 +54,7 @@ public class Room implements Serializable {
         return "Room{" +
                 "id='" + id + '\'' +
                 ", name='" + name + '\'' +
-                ", avatar=" + (avatar != null ? "present" : "absent")  +
+                ", avatarHash='" + avatarHash + '\'' +
                 '}';
     }
 
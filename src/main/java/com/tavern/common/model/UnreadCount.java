@@ -0,0 +1,10 @@
+package com.tavern.common.model;
+
+import java.io.Serializable;
+
+/**
+ * Number of messages a user has not read in one conversation: a room, or the direct conversation
+ * with the user {@code conversationId}.
+ */
+public record UnreadCount(boolean direct, int conversationId, int count) implements Serializable {
+}
@@ -7,25 +7,26 @@ public class User implements Serializable {
     private int id;
     private String username;
     private String displayName;
-    private byte[] avatar;
+    /** SHA-256 of the avatar image in the server's avatar store, or null without an avatar */
+    private String avatarHash;
 //    private String password;
 
     public User() {
         this.id = -1;
         this.username = null;
         this.displayName = null;
-        this.avatar = null;
+        this.avatarHash = null;
     }
 
-    public User(String username, String displayName, byte[] avatar) {
-        this(-1, username, displayName, avatar);
+    public User(String username, String displayName, String avatarHash) {
+        this(-1, username, displayName, avatarHash);
     }
 
-    public User(int id, String username, String displayName, byte[] avatar) {
+    public User(int id, String username, String displayName, String avatarHash) {
         this.id = id;
         this.username = username;
         this.displayName = displayName;
-        this.avatar = avatar;
+        this.avatarHash = avatarHash;
     }
 
     public int getId() {
@@ -52,12 +53,12 @@ public class User implements Serializable {
         this.displayName = displayName;
     }
 
-    public byte[] getAvatar() {
-        return avatar;
+    public String getAvatarHash() {
+        return avatarHash;
     }
 
-    public void setAvatar(byte[] avatar) {
-        this.avatar = avatar;
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
     }
 
     @Override
@@ -66,7 +67,7 @@ public class User implements Serializable {
                 "id='" + id + '\'' +
                 ", username='" + username + '\'' +
                 ", displayName='" + displayName + '\'' +
-                ", avatar=" + (avatar != null ? "present" : "absent")  +
+                ", avatarHash='" + avatarHash + '\'' +
                 '}';
     }
 
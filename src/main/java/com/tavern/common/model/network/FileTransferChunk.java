@@ -9,18 +9,29 @@ public class FileTransferChunk implements NetworkMessage {
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerFactory.getLogger(FileTransferChunk.class);
 
+    /**
+     * Uploads are tracked in blocks of this size. Every chunk starts on a block boundary and all but
+     * the last chunk of a file are a whole number of blocks long.
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
     private final String transferId;
     private final byte[] data;
     private final int chunkNumber;
     private final int totalChunks;
+    private final long offset;
     private final long checksum;
 
-    public FileTransferChunk(String transferId, byte[] data, int chunkNumber, int totalChunks) {
+    /**
+     * @param offset where in the file the data goes
+     */
+    public FileTransferChunk(String transferId, byte[] data, int chunkNumber, int totalChunks, long offset) {
         this.transferId = transferId;
         // Create a defensive copy of the data to prevent external modification
         this.data = Arrays.copyOf(data, data.length);
         this.chunkNumber = chunkNumber;
         this.totalChunks = totalChunks;
+        this.offset = offset;
 
         // Calculate checksum for data integrity
         CRC32 crc = new CRC32();
@@ -33,6 +44,20 @@ public class FileTransferChunk implements NetworkMessage {
                 bytesToHex(this.data, Math.min(16, this.data.length)));
     }
 
+    /**
+     * Rebuilds a chunk read off the wire. Keeps the sender's checksum so that
+     * {@link #verifyChecksum()} still detects corruption, and takes ownership of the data array.
+     */
+    public FileTransferChunk(String transferId, byte[] data, int chunkNumber, int totalChunks, long offset,
+                             long checksum) {
+        this.transferId = transferId;
+        this.data = data;
+        this.chunkNumber = chunkNumber;
+        this.totalChunks = totalChunks;
+        this.offset = offset;
+        this.checksum = checksum;
+    }
+
     @Override
     public MessageType getMessageType() {
         return MessageType.FILE_TRANSFER_CHUNK;
@@ -47,6 +72,10 @@ public class FileTransferChunk implements NetworkMessage {
         return Arrays.copyOf(data, data.length);
     }
 
+    public int getDataLength() {
+        return data.length;
+    }
+
     public int getChunkNumber() {
         return chunkNumber;
     }
@@ -55,6 +84,10 @@ public class FileTransferChunk implements NetworkMessage {
         return totalChunks;
     }
 
+    public long getOffset() {
+        return offset;
+    }
+
     public long getChecksum() {
         return checksum;
     }
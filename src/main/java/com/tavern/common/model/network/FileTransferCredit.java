@@ -0,0 +1,13 @@
+package com.tavern.common.model.network;
+
+/**
+ * Flow control for an upload, sent by the server whenever it has written chunks to disk. The
+ * uploader may send file data up to byte {@code limit} and no further; {@code acknowledged} is how
+ * much of the file the server has written so far.
+ */
+public record FileTransferCredit(String transferId, long acknowledged, long limit) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.FILE_TRANSFER_CREDIT;
+    }
+}
@@ -0,0 +1,12 @@
+package com.tavern.common.model.network;
+
+/**
+ * Asks the server to continue an upload that was interrupted, for example by a dropped connection
+ * or a restart on either side.
+ */
+public record FileTransferResumeRequest(String transferId) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.FILE_TRANSFER_RESUME_REQUEST;
+    }
+}
@@ -0,0 +1,13 @@
+package com.tavern.common.model.network;
+
+/**
+ * Answer to a {@link FileTransferResumeRequest}. If the upload can be continued, {@code missing}
+ * holds the byte ranges the server still needs as pairs of start and end offsets, in order, and
+ * credit for them follows as usual.
+ */
+public record FileTransferResumeResponse(String transferId, boolean accepted, long[] missing) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.FILE_TRANSFER_RESUME_RESPONSE;
+    }
+}
@@ -11,15 +11,33 @@ public class FileTransferUploadRequest implements NetworkMessage, Serializable {
     private final int roomId;
     private final boolean isDirect;
     private final int receiverId;
+    // SHA-256 of a file the server already stores, so no data needs to be sent
+    private final String blobHash;
+    // The challenge of the HasBlobResponse for blobHash, and its answer
+    private final byte[] blobChallenge;
+    private final byte[] blobProof;
 
     public FileTransferUploadRequest(String fileName, long fileSize, int senderId, int roomId, boolean isDirect,
             int receiverId) {
+        this(fileName, fileSize, senderId, roomId, isDirect, receiverId, null, null, null);
+    }
+
+    /**
+     * @param blobHash the SHA-256 of the file if the server said it already has it, see {@link HasBlobRequest}
+     * @param blobChallenge the challenge the server sent with that answer
+     * @param blobProof the answer to the challenge, see {@link HasBlobResponse}
+     */
+    public FileTransferUploadRequest(String fileName, long fileSize, int senderId, int roomId, boolean isDirect,
+            int receiverId, String blobHash, byte[] blobChallenge, byte[] blobProof) {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.senderId = senderId;
         this.roomId = roomId;
         this.isDirect = isDirect;
         this.receiverId = receiverId;
+        this.blobHash = blobHash;
+        this.blobChallenge = blobChallenge;
+        this.blobProof = blobProof;
     }
 
     @Override
@@ -50,4 +68,16 @@ public class FileTransferUploadRequest implements NetworkMessage, Serializable {
     public boolean isDirect() {
         return isDirect;
     }
-}
\ No newline at end of file
+
+    public String getBlobHash() {
+        return blobHash;
+    }
+
+    public byte[] getBlobChallenge() {
+        return blobChallenge;
+    }
+
+    public byte[] getBlobProof() {
+        return blobProof;
+    }
+}
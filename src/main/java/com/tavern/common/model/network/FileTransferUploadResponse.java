@@ -8,11 +8,18 @@ public class FileTransferUploadResponse implements NetworkMessage, Serializable
     private final boolean accepted;
     private final String fileName;
     private final String transferId;
+    // The server linked the upload to a file it already stores, no data is to be sent
+    private final boolean stored;
 
     public FileTransferUploadResponse(boolean accepted, String fileName, String transferId) {
+        this(accepted, fileName, transferId, false);
+    }
+
+    public FileTransferUploadResponse(boolean accepted, String fileName, String transferId, boolean stored) {
         this.accepted = accepted;
         this.fileName = fileName;
         this.transferId = transferId;
+        this.stored = stored;
     }
 
     @Override
@@ -31,4 +38,8 @@ public class FileTransferUploadResponse implements NetworkMessage, Serializable
     public String getTransferId() {
         return transferId;
     }
-}
\ No newline at end of file
+
+    public boolean isStored() {
+        return stored;
+    }
+}
@@ -0,0 +1,13 @@
+package com.tavern.common.model.network;
+
+import com.tavern.common.model.AvatarSize;
+
+/**
+ * Asks for one rendering of the avatar with the given hash, as found in {@code User} and {@code Room}.
+ */
+public record GetAvatarRequest(String hash, AvatarSize size) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_AVATAR_REQUEST;
+    }
+}
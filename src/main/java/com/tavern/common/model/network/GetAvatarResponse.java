@@ -0,0 +1,14 @@
+package com.tavern.common.model.network;
+
+import com.tavern.common.model.AvatarSize;
+
+/**
+ * A PNG rendering of an avatar. The content behind a hash never changes, so clients may keep it
+ * for as long as they like. {@code image} is null if the server has no avatar with that hash.
+ */
+public record GetAvatarResponse(String hash, AvatarSize size, byte[] image) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_AVATAR_RESPONSE;
+    }
+}
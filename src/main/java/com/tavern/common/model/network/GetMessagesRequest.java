@@ -0,0 +1,21 @@
+package com.tavern.common.model.network;
+
+import com.tavern.common.model.MessageCursor;
+
+/**
+ * Asks for one page of a conversation's history: a room, or the direct conversation between the
+ * requesting user and {@code conversationId}. Without a cursor, paging {@link Direction#OLDER}
+ * starts at the newest message and paging {@link Direction#NEWER} at the oldest.
+ */
+public record GetMessagesRequest(int requestId, boolean direct, int conversationId, MessageCursor cursor,
+                                 Direction direction, int limit) implements NetworkMessage {
+    public enum Direction {
+        OLDER,
+        NEWER
+    }
+
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_MESSAGES_REQUEST;
+    }
+}
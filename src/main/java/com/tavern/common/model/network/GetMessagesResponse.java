@@ -0,0 +1,20 @@
+package com.tavern.common.model.network;
+
+import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
+
+import java.util.List;
+
+/**
+ * One frame of a history page. A large page arrives as several frames with the same request id,
+ * each holding messages in ascending order; only the last one is marked {@code last}. It carries
+ * the cursor to request the following page with, or null once there is no more history in that
+ * direction. {@code messages} is null if the request was refused.
+ */
+public record GetMessagesResponse(int requestId, List<Message> messages, MessageCursor next,
+                                  boolean last) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_MESSAGES_RESPONSE;
+    }
+}
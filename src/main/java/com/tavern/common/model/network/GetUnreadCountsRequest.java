@@ -0,0 +1,11 @@
+package com.tavern.common.model.network;
+
+/**
+ * Asks for the requesting user's unread count in every conversation that has unread messages.
+ */
+public record GetUnreadCountsRequest() implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_UNREAD_COUNTS_REQUEST;
+    }
+}
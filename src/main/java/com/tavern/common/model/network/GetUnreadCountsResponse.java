@@ -0,0 +1,15 @@
+package com.tavern.common.model.network;
+
+import com.tavern.common.model.UnreadCount;
+
+import java.util.List;
+
+/**
+ * All of a user's unread counts at once. Conversations without unread messages are left out.
+ */
+public record GetUnreadCountsResponse(List<UnreadCount> counts) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.GET_UNREAD_COUNTS_RESPONSE;
+    }
+}
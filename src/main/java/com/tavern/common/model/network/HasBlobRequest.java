@@ -0,0 +1,12 @@
+package com.tavern.common.model.network;
+
+/**
+ * Asks whether the server already stores a file with this SHA-256 and size, so that an upload of
+ * it can skip sending the bytes. The response carries the same {@code requestId}.
+ */
+public record HasBlobRequest(int requestId, String hash, long size) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.HAS_BLOB_REQUEST;
+    }
+}
@@ -0,0 +1,14 @@
+package com.tavern.common.model.network;
+
+/**
+ * If the server has the file, the upload may link to it by proving it holds the content: it sends
+ * the SHA-256 of {@code challenge} followed by the {@code length} bytes of the file at
+ * {@code offset}. The challenge answers once, and only for the session it was sent to.
+ */
+public record HasBlobResponse(int requestId, String hash, long size, boolean present, byte[] challenge,
+                              long offset, int length) implements NetworkMessage {
+    @Override
+    public MessageType getMessageType() {
+        return MessageType.HAS_BLOB_RESPONSE;
+    }
+}
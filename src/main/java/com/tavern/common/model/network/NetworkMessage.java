@@ -3,36 +3,41 @@ package com.tavern.common.model.network;
 import java.io.Serializable;
 
 public interface NetworkMessage extends Serializable {
+    /**
+     * Kinds of messages. Each has an explicit id that the binary codec puts on the wire, so the
+     * order of the constants does not matter; an id is never reused or changed once it has been
+     * shipped, and a new type takes the next free id.
+     */
     public enum MessageType {
         // Auth Messages
-        LOGIN_REQUEST, LOGIN_RESPONSE,
-        SIGNUP_REQUEST, SIGNUP_RESPONSE,
+        LOGIN_REQUEST(0), LOGIN_RESPONSE(1),
+        SIGNUP_REQUEST(2), SIGNUP_RESPONSE(3),
 
         // User messages
-        GET_USERS_INFO_REQUEST, GET_USERS_INFO_RESPONSE,
-        GET_ALL_USERS_REQUEST, GET_ALL_USERS_RESPONSE,
+        GET_USERS_INFO_REQUEST(4), GET_USERS_INFO_RESPONSE(5),
+        GET_ALL_USERS_REQUEST(6), GET_ALL_USERS_RESPONSE(7),
 
         // Room Messages
-        GET_ROOMS_REQUEST, GET_ROOMS_RESPONSE, // Get List of users rooms
-        GET_ROOM_USERS_REQUEST, GET_ROOM_USERS_RESPONSE, // GEt list of users in the room
-        GET_ALL_ROOMS_REQUEST, GET_ALL_ROOMS_RESPONSE, // Get list of all rooms
+        GET_ROOMS_REQUEST(8), GET_ROOMS_RESPONSE(9), // Get List of users rooms
+        GET_ROOM_USERS_REQUEST(10), GET_ROOM_USERS_RESPONSE(11), // GEt list of users in the room
+        GET_ALL_ROOMS_REQUEST(12), GET_ALL_ROOMS_RESPONSE(13), // Get list of all rooms
 
-        SEND_TEXT_MESSAGE_REQUEST, SEND_TEXT_MESSAGE_RESPONSE,
-        GET_UNREAD_MESSAGE_REQUEST, GET_UNREAD_MESSAGE_RESPONSE,
-        RECEIVE_TEXT_MESSAGE_REQUEST,
+        SEND_TEXT_MESSAGE_REQUEST(14), SEND_TEXT_MESSAGE_RESPONSE(15),
+        GET_UNREAD_MESSAGE_REQUEST(16), GET_UNREAD_MESSAGE_RESPONSE(17),
+        RECEIVE_TEXT_MESSAGE_REQUEST(18),
 
         // Video Chat Messages
-        VIDEO_CALL_REQUEST, VIDEO_CALL_RESPONSE,
-        VIDEO_CALL_OFFER, VIDEO_CALL_ANSWER,
-        VIDEO_CALL_END,
+        VIDEO_CALL_REQUEST(19), VIDEO_CALL_RESPONSE(20),
+        VIDEO_CALL_OFFER(21), VIDEO_CALL_ANSWER(22),
+        VIDEO_CALL_END(23),
 
         // File Transfer Messages
-        FILE_TRANSFER_REQUEST, FILE_TRANSFER_RESPONSE,
-        FILE_TRANSFER_UPLOAD_REQUEST, FILE_TRANSFER_UPLOAD_RESPONSE,
-        FILE_TRANSFER_DOWNLOAD_REQUEST, FILE_TRANSFER_DOWNLOAD_RESPONSE,
-        FILE_TRANSFER_PROGRESS,
-        FILE_TRANSFER_CHUNK, FILE_TRANSFER_COMPLETE,
-        FILE_TRANSFER_ERROR,
+        FILE_TRANSFER_REQUEST(24), FILE_TRANSFER_RESPONSE(25),
+        FILE_TRANSFER_UPLOAD_REQUEST(26), FILE_TRANSFER_UPLOAD_RESPONSE(27),
+        FILE_TRANSFER_DOWNLOAD_REQUEST(28), FILE_TRANSFER_DOWNLOAD_RESPONSE(29),
+        FILE_TRANSFER_PROGRESS(30),
+        FILE_TRANSFER_CHUNK(31), FILE_TRANSFER_COMPLETE(32),
+        FILE_TRANSFER_ERROR(33),
 
         // SEND_FILE_MESSAGE,
         // CREATE_ROOM_REQUEST,
@@ -40,7 +45,6 @@ public interface NetworkMessage extends Serializable {
         // LEAVE_ROOM_REQUEST,
         // GET_USERS_REQUEST, // Request list of online users
         // GET_ROOM_MEMBERS_REQUEST,
-        // GET_MESSAGES_REQUEST, // Request message history
         //
         // // Server to Client Messages
         // NEW_MESSAGE, // Sent when a new message arrives (text or file)
@@ -52,7 +56,6 @@ public interface NetworkMessage extends Serializable {
         // ROOM_LIST_RESPONSE,
         // USER_LIST_RESPONSE,
         // ROOM_MEMBERS_RESPONSE,
-        // MESSAGE_HISTORY_RESPONSE,
         // FILE_TRANSFER_INITIATION, // Server informing recipient of incoming file
         // FILE_TRANSFER_PROGRESS,
         // FILE_TRANSFER_COMPLETE,
@@ -66,19 +69,60 @@ public interface NetworkMessage extends Serializable {
         // CALL_REQUEST, // Client requesting a call
 
         // Add other message types as needed for your protocol
-        AUTH_REQUEST,
-        AUTH_RESPONSE,
-        CHAT_MESSAGE,
-        ROOM_CREATE,
-        ROOM_JOIN,
-        ROOM_LEAVE,
-        ROOM_LIST,
-        USER_LIST,
-        ERROR,
-        CREATE_ROOM_REQUEST,
-        CREATE_ROOM_RESPONSE,
-        JOIN_ROOM_REQUEST,
-        JOIN_ROOM_RESPONSE
+        AUTH_REQUEST(34),
+        AUTH_RESPONSE(35),
+        CHAT_MESSAGE(36),
+        ROOM_CREATE(37),
+        ROOM_JOIN(38),
+        ROOM_LEAVE(39),
+        ROOM_LIST(40),
+        USER_LIST(41),
+        ERROR(42),
+        CREATE_ROOM_REQUEST(43),
+        CREATE_ROOM_RESPONSE(44),
+        JOIN_ROOM_REQUEST(45),
+        JOIN_ROOM_RESPONSE(46),
+
+        // Added after the binary codec; new types go at the end with the next id
+        GET_MESSAGES_REQUEST(47), GET_MESSAGES_RESPONSE(48), // Page through a room's or direct conversation's history
+        GET_UNREAD_COUNTS_REQUEST(49), GET_UNREAD_COUNTS_RESPONSE(50), // Unread badges of every conversation
+        GET_AVATAR_REQUEST(51), GET_AVATAR_RESPONSE(52), // Fetch an avatar rendering by its hash
+        FILE_TRANSFER_CREDIT(53), // How far an uploader may send
+        FILE_TRANSFER_RESUME_REQUEST(54), FILE_TRANSFER_RESUME_RESPONSE(55), // Continue an interrupted upload
+        HAS_BLOB_REQUEST(56), HAS_BLOB_RESPONSE(57); // Whether the server already stores a file's content
+
+        private static final MessageType[] BY_ID;
+
+        static {
+            int max = 0;
+            for (MessageType type : values()) {
+                max = Math.max(max, type.id);
+            }
+            BY_ID = new MessageType[max + 1];
+            for (MessageType type : values()) {
+                if (BY_ID[type.id] != null) {
+                    throw new IllegalStateException("Duplicate message type id " + type.id + ": " + BY_ID[type.id] + " and " + type);
+                }
+                BY_ID[type.id] = type;
+            }
+        }
+
+        private final int id;
+
+        MessageType(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * The type with the given wire id, or {@code null} if there is none.
+         */
+        public static MessageType forId(int id) {
+            return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+        }
     }
 
     MessageType getMessageType();
@@ -3,25 +3,44 @@ package com.tavern.common.utils;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public abstract class DatabaseManager {
+    private static final int DEFAULT_READERS = 4;
     protected static DatabaseManager instance;
     protected final String dbName;
+    private final SqliteConnectionPool pool;
 
     protected DatabaseManager(String dbName) {
-        this.dbName = dbName;
-        initDatabase();
+        this(dbName, DEFAULT_READERS);
     }
 
-    public Connection getDriverConnection() throws SQLException {
+    protected DatabaseManager(String dbName, int readers) {
+        this.dbName = dbName;
         try {
-            String url = getDatabaseUrl(dbName);
-            return DriverManager.getConnection(url);
+            this.pool = new SqliteConnectionPool(getDatabaseUrl(dbName), readers);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        initDatabase();
+    }
+
+    /**
+     * Borrows the single writer connection; close it as soon as the write is done.
+     */
+    public Connection getDriverConnection() throws SQLException {
+        return pool.getWriteConnection();
+    }
+
+    /**
+     * Borrows a read-only connection, which does not wait for writers.
+     */
+    public Connection getReadOnlyConnection() throws SQLException {
+        return pool.getReadConnection();
+    }
+
+    public void closeConnections() {
+        pool.close();
     }
 
     protected abstract void initDatabase();
@@ -31,4 +50,4 @@ public abstract class DatabaseManager {
         return "jdbc:sqlite:" + dbFilePath.toAbsolutePath();
     }
 
-}
\ No newline at end of file
+}
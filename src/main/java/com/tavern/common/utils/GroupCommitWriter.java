@@ -0,0 +1,189 @@
+package com.tavern.common.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind stage that commits writes from many callers in one transaction.
+ * <p>
+ * Submitted work is queued for a single thread, which takes everything that queued up while the
+ * previous batch was committing (optionally lingering a few milliseconds for more, up to a maximum
+ * number of tasks) and runs it inside one transaction, so that a burst of chat messages costs one
+ * commit instead of one per row. Each task runs under its own savepoint, so a failing task is rolled
+ * back alone and the rest of the batch still commits.
+ * <p>
+ * Futures complete only after the commit, in submission order, on a separate completion thread so
+ * that completing them never holds up the next batch. That thread is shared by every caller, so
+ * callbacks that do real work (such as delivering a message) should be attached with the
+ * {@code ...Async} variants on the caller's own executor, and must not wait for another submitted
+ * write, which completes on the same thread.
+ */
+public class GroupCommitWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface ConnectionSource {
+        Connection get() throws SQLException;
+    }
+
+    private record Task<T>(Work<T> work, CompletableFuture<T> future) {
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            future.complete((T) result);
+        }
+    }
+
+    private final ConnectionSource connections;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final ExecutorService completions =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().name("db-group-commit-completion").daemon().factory());
+    // Submitters share the read lock; close() takes the write lock, so nothing is queued after it
+    private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    public GroupCommitWriter(ConnectionSource connections, int maxBatchSize, long maxDelayMillis) {
+        this.connections = connections;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.thread = Thread.ofPlatform().name("db-group-commit").daemon().start(this::run);
+    }
+
+    public <T> CompletableFuture<T> submit(Work<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submitLock.readLock().lock();
+        try {
+            if (!running) {
+                future.completeExceptionally(new RejectedExecutionException("Group commit writer is closed"));
+                return future;
+            }
+            queue.add(new Task<>(work, future));
+        } finally {
+            submitLock.readLock().unlock();
+        }
+        return future;
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Task<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Task<?> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // close() interrupts a writer that is waiting, whatever is queued is still done below
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Task<?>> batch) {
+        Object[] results = new Object[batch.size()];
+        Throwable[] failures = new Throwable[batch.size()];
+
+        try (Connection conn = connections.get()) {
+            conn.setAutoCommit(false);
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Savepoint savepoint = conn.setSavepoint();
+                    try {
+                        results[i] = batch.get(i).work().apply(conn);
+                        conn.releaseSavepoint(savepoint);
+                    } catch (SQLException | RuntimeException e) {
+                        conn.rollback(savepoint);
+                        conn.releaseSavepoint(savepoint);
+                        failures[i] = e;
+                    }
+                }
+                conn.commit();
+                logger.trace("Committed {} writes in one transaction", batch.size());
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.error("Group commit of {} writes failed: {}", batch.size(), e.getMessage(), e);
+            Arrays.fill(failures, e);
+        }
+
+        List<Task<?>> done = List.copyOf(batch);
+        completions.execute(() -> {
+            for (int i = 0; i < done.size(); i++) {
+                if (failures[i] != null) {
+                    done.get(i).future().completeExceptionally(failures[i]);
+                } else {
+                    done.get(i).complete(results[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops taking work and waits for everything already submitted to be done.
+     */
+    @Override
+    public void close() {
+        submitLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Group commit writer did not finish pending writes in time");
+        }
+        completions.shutdown();
+        try {
+            completions.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
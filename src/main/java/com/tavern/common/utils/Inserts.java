@@ -0,0 +1,78 @@
+package com.tavern.common.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inserts that read back the generated id and column defaults in the same statement.
+ * <p>
+ * The SQL must end in a {@code RETURNING} clause naming the columns to read back, so the row
+ * comes back from the insert itself instead of from {@code getGeneratedKeys()} and a follow-up
+ * {@code SELECT}. Several rows inserted with {@link #insertAll} share one prepared statement.
+ */
+public final class Inserts {
+
+    @FunctionalInterface
+    public interface Binder<T> {
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface Parameters {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface RowReader<R> {
+        R read(ResultSet returned) throws SQLException;
+    }
+
+    private Inserts() {}
+
+    /**
+     * Inserts one row and reads what its {@code RETURNING} clause returned.
+     */
+    public static <T, R> R insert(Connection conn, String sql, T row, Binder<? super T> binder,
+                                  RowReader<R> reader) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            return execute(statement, row, binder, reader);
+        }
+    }
+
+    /**
+     * Inserts one row whose parameters are not held in an object of their own.
+     */
+    public static <R> R insert(Connection conn, String sql, Parameters parameters, RowReader<R> reader) throws SQLException {
+        return insert(conn, sql, parameters, (statement, bound) -> bound.bind(statement), reader);
+    }
+
+    /**
+     * Inserts every row with the same statement, returning what was read back in the rows' order.
+     */
+    public static <T, R> List<R> insertAll(Connection conn, String sql, List<? extends T> rows,
+                                           Binder<? super T> binder, RowReader<R> reader) throws SQLException {
+        List<R> results = new ArrayList<>(rows.size());
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            for (T row : rows) {
+                results.add(execute(statement, row, binder, reader));
+            }
+        }
+        return results;
+    }
+
+    private static <T, R> R execute(PreparedStatement statement, T row, Binder<? super T> binder,
+                                    RowReader<R> reader) throws SQLException {
+        binder.bind(statement, row);
+        // SQLite does all of the insert on the first step, closing the result set finishes the statement
+        try (ResultSet returned = statement.executeQuery()) {
+            if (!returned.next()) {
+                throw new SQLException("Insert returned no row");
+            }
+            return reader.read(returned);
+        }
+    }
+}
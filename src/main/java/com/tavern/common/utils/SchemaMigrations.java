@@ -0,0 +1,73 @@
+package com.tavern.common.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Brings a database schema up to date, one numbered migration at a time.
+ * <p>
+ * The version a database file has reached is kept in its {@code PRAGMA user_version}, so each
+ * migration runs exactly once per file. A migration and the version bump that records it commit in
+ * the same transaction: a migration that fails leaves the file at the previous version, and the
+ * next start tries it again.
+ */
+public final class SchemaMigrations {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    public record Migration(int version, String description, List<String> statements) {
+        public Migration(int version, String description, String... statements) {
+            this(version, description, List.of(statements));
+        }
+    }
+
+    private SchemaMigrations() {}
+
+    /**
+     * Runs, in version order, every migration newer than the database's current version.
+     *
+     * @return the version the database is at afterwards
+     */
+    public static int migrate(Connection conn, List<Migration> migrations) throws SQLException {
+        int current = getVersion(conn);
+        List<Migration> pending = migrations.stream()
+                .filter(migration -> migration.version() > current)
+                .sorted((a, b) -> Integer.compare(a.version(), b.version()))
+                .toList();
+
+        int version = current;
+        for (Migration migration : pending) {
+            long startedAt = System.nanoTime();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : migration.statements()) {
+                    stmt.execute(sql);
+                }
+                stmt.execute("PRAGMA user_version = " + migration.version());
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Schema migration {} ({}) failed: {}", migration.version(), migration.description(), e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            version = migration.version();
+            logger.info("Applied schema migration {} ({}) in {}ms", version, migration.description(),
+                    (System.nanoTime() - startedAt) / 1_000_000);
+        }
+        return version;
+    }
+
+    public static int getVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
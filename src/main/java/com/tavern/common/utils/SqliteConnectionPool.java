@@ -0,0 +1,387 @@
+package com.tavern.common.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-lived SQLite connections shared by the whole process: one writer and a small pool of readers.
+ * <p>
+ * SQLite allows a single writer at a time, so instead of letting every caller open its own
+ * connection and retry on SQLITE_BUSY, writes queue for the one writer connection. The database
+ * runs in WAL mode, so readers never block the writer or each other and use their own connections.
+ * <p>
+ * Connections handed out are proxies: closing them returns the physical connection to the pool.
+ * Prepared statements are cached per physical connection, and closing one clears its parameters and
+ * closes its result sets rather than discarding the compiled statement.
+ */
+public class SqliteConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SqliteConnectionPool.class);
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    private static final int CACHE_SIZE_KB = 8 * 1024;
+    private static final long MMAP_SIZE = 256L * 1024 * 1024;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private final String url;
+    private final int maxReaders;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final LinkedBlockingDeque<PooledConnection> idleReaders = new LinkedBlockingDeque<>();
+    private final List<PooledConnection> allReaders = new ArrayList<>();
+    private PooledConnection writer;
+    private volatile boolean closed;
+
+    public SqliteConnectionPool(String url, int maxReaders) {
+        this.url = url;
+        this.maxReaders = Math.max(1, maxReaders);
+    }
+
+    /**
+     * Borrows the writer connection, waiting for other writers to finish. A thread that already
+     * holds the writer gets it again, so nested repository calls do not deadlock.
+     */
+    public Connection getWriteConnection() throws SQLException {
+        ensureOpen();
+        try {
+            if (!writeLock.tryLock(BUSY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for the database writer");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database writer", e);
+        }
+        try {
+            if (writer == null) {
+                writer = new PooledConnection(open(false));
+            }
+            PooledConnection connection = writer;
+            return connection.lease(() -> {
+                // Only the outermost release resets the connection, a nested one is still in use
+                if (writeLock.getHoldCount() == 1) {
+                    connection.reset();
+                }
+                writeLock.unlock();
+            });
+        } catch (SQLException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a read-only connection. Sees everything committed before it was borrowed.
+     */
+    public Connection getReadConnection() throws SQLException {
+        ensureOpen();
+        PooledConnection connection = idleReaders.pollFirst();
+        if (connection == null) {
+            connection = openReaderIfBelowLimit();
+        }
+        if (connection == null) {
+            try {
+                connection = idleReaders.pollFirst(BUSY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database reader", e);
+            }
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a database reader");
+            }
+        }
+        PooledConnection leased = connection;
+        return leased.lease(() -> {
+            leased.reset();
+            if (closed) {
+                leased.closePhysical();
+            } else {
+                idleReaders.offerFirst(leased);
+            }
+        });
+    }
+
+    private PooledConnection openReaderIfBelowLimit() throws SQLException {
+        synchronized (allReaders) {
+            if (allReaders.size() >= maxReaders) {
+                return null;
+            }
+            PooledConnection reader = new PooledConnection(open(true));
+            allReaders.add(reader);
+            return reader;
+        }
+    }
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            if (!readOnly) {
+                // Persistent setting of the database file, readers pick it up from there
+                stmt.execute("PRAGMA journal_mode = WAL");
+            }
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+            // WAL with NORMAL only syncs at checkpoints; a power loss can drop the last commits but never corrupts
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA cache_size = -" + CACHE_SIZE_KB);
+            stmt.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+            stmt.execute("PRAGMA temp_store = MEMORY");
+            if (readOnly) {
+                stmt.execute("PRAGMA query_only = 1");
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        logger.debug("Opened {} connection to {}", readOnly ? "read" : "write", url);
+        return connection;
+    }
+
+    private void ensureOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection reader;
+        while ((reader = idleReaders.pollFirst()) != null) {
+            reader.closePhysical();
+        }
+        writeLock.lock();
+        try {
+            if (writer != null) {
+                writer.closePhysical();
+                writer = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private record StatementKey(String sql, int autoGeneratedKeys) {
+    }
+
+    /**
+     * A physical connection and the statements prepared on it.
+     */
+    private static final class PooledConnection {
+        private final Connection physical;
+        private final Map<StatementKey, CachedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<StatementKey, CachedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE && !eldest.getValue().inUse) {
+                            eldest.getValue().closePhysical();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection lease(Runnable release) {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new LeaseHandler(this, release));
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            StatementKey key = new StatementKey(sql, autoGeneratedKeys);
+            CachedStatement cached = statements.get(key);
+            if (cached != null && cached.inUse) {
+                // The same statement is already open further up the stack, give this caller its own
+                return physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            if (cached == null) {
+                cached = new CachedStatement(physical.prepareStatement(sql, autoGeneratedKeys));
+                statements.put(key, cached);
+            }
+            cached.inUse = true;
+            return cached.lease();
+        }
+
+        /**
+         * Brings the connection back to a clean state before someone else borrows it.
+         */
+        void reset() {
+            for (CachedStatement statement : statements.values()) {
+                if (statement.inUse) {
+                    statement.release();
+                }
+            }
+            try {
+                if (!physical.getAutoCommit()) {
+                    logger.warn("Connection returned with an open transaction, rolling back");
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error("Error resetting pooled connection: {}", e.getMessage(), e);
+            }
+        }
+
+        void closePhysical() {
+            statements.values().forEach(CachedStatement::closePhysical);
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                logger.warn("Error closing database connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static final class LeaseHandler implements InvocationHandler {
+        private final PooledConnection connection;
+        private final Runnable release;
+        private boolean released;
+
+        LeaseHandler(PooledConnection connection, Runnable release) {
+            this.connection = connection;
+            this.release = release;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!released) {
+                        released = true;
+                        release.run();
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return released || connection.physical.isClosed();
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Pooled" + connection.physical;
+                }
+            }
+            if (released) {
+                throw new SQLException("Connection is closed");
+            }
+            if (method.getName().equals("prepareStatement") && args.length <= 2
+                    && (args.length == 1 || method.getParameterTypes()[1] == int.class)) {
+                return connection.prepare((String) args[0],
+                        args.length == 1 ? Statement.NO_GENERATED_KEYS : (int) args[1]);
+            }
+            try {
+                return method.invoke(connection.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * A prepared statement kept open across leases of its connection.
+     */
+    private static final class CachedStatement {
+        private final PreparedStatement physical;
+        private final List<ResultSet> openResults = new ArrayList<>(1);
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        PreparedStatement lease() {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, new StatementLease(this));
+        }
+
+        void release() {
+            inUse = false;
+            try {
+                for (ResultSet resultSet : openResults) {
+                    resultSet.close();
+                }
+                openResults.clear();
+                physical.clearParameters();
+            } catch (SQLException e) {
+                logger.warn("Error releasing cached statement: {}", e.getMessage());
+            }
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                logger.warn("Error closing cached statement: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static final class StatementLease implements InvocationHandler {
+        private final CachedStatement statement;
+        private boolean released;
+
+        StatementLease(CachedStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!released) {
+                        released = true;
+                        statement.release();
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return released || !statement.inUse;
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Cached" + statement.physical;
+                }
+            }
+            // A lease also ends when its connection is returned without closing the statement
+            if (released || !statement.inUse) {
+                throw new SQLException("Statement is closed");
+            }
+            Object result;
+            try {
+                result = method.invoke(statement.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet resultSet) {
+                statement.openResults.add(resultSet);
+            }
+            return result;
+        }
+    }
+}
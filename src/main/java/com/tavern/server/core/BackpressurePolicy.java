@@ -0,0 +1,80 @@
+package com.tavern.server.core;
+
+import com.tavern.common.utils.PropertyFileLoader;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Outbound limits for a session and what to do once a client stops keeping up.
+ * <p>
+ * A session becomes lagging when its queued bytes pass the high watermark and recovers once the
+ * writer has drained it below the low watermark. While lagging, progress updates can be dropped
+ * and chat can be deferred to the unread table. A session that would exceed its hard byte or
+ * message limit is either refused the frame or disconnected.
+ */
+public final class BackpressurePolicy {
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final boolean dropProgress;
+    private final boolean deferChat;
+    private final boolean disconnect;
+
+    BackpressurePolicy(int maxMessages, long maxBytes, long highWatermark, long lowWatermark,
+                       boolean dropProgress, boolean deferChat, boolean disconnect) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.highWatermark = Math.min(highWatermark, maxBytes);
+        this.lowWatermark = Math.min(lowWatermark, this.highWatermark);
+        this.dropProgress = dropProgress;
+        this.deferChat = deferChat;
+        this.disconnect = disconnect;
+    }
+
+    public static BackpressurePolicy fromProperties(PropertyFileLoader properties) {
+        Set<String> actions = Arrays.stream(properties.getProperty("session.slow.policy", "drop_progress,defer_chat")
+                        .split(","))
+                .map(action -> action.trim().toLowerCase())
+                .collect(Collectors.toSet());
+
+        return new BackpressurePolicy(
+                Integer.parseInt(properties.getProperty("session.outbound.capacity", "1024")),
+                Long.parseLong(properties.getProperty("session.outbound.max.bytes", "16777216")),
+                Long.parseLong(properties.getProperty("session.outbound.high.watermark", "4194304")),
+                Long.parseLong(properties.getProperty("session.outbound.low.watermark", "1048576")),
+                actions.contains("drop_progress"),
+                actions.contains("defer_chat"),
+                actions.contains("disconnect"));
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public boolean isDropProgress() {
+        return dropProgress;
+    }
+
+    public boolean isDeferChat() {
+        return deferChat;
+    }
+
+    public boolean isDisconnect() {
+        return disconnect;
+    }
+}
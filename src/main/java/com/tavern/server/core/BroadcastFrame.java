@@ -0,0 +1,46 @@
+package com.tavern.server.core;
+
+import com.tavern.common.codec.WireCodec;
+import com.tavern.common.codec.WireFormat;
+import com.tavern.common.model.network.NetworkMessage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A server push meant for many sessions. The message is encoded at most once per wire format,
+ * by the first session that needs it, and every other session of that format queues the same
+ * read-only bytes.
+ */
+public final class BroadcastFrame {
+    private final NetworkMessage message;
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(WireFormat.values().length);
+
+    public BroadcastFrame(NetworkMessage message) {
+        this.message = message;
+    }
+
+    public NetworkMessage getMessage() {
+        return message;
+    }
+
+    public NetworkMessage.MessageType getMessageType() {
+        return message.getMessageType();
+    }
+
+    /**
+     * @return the encoded frame for the codec's format; must not be modified
+     */
+    byte[] bytesFor(WireCodec codec) throws IOException {
+        int slot = codec.getFormat().ordinal();
+        byte[] bytes = encoded.get(slot);
+        if (bytes == null) {
+            // Two sessions racing here both encode; the frames are identical, so either may win
+            bytes = codec.encode(message);
+            if (!encoded.compareAndSet(slot, null, bytes)) {
+                bytes = encoded.get(slot);
+            }
+        }
+        return bytes;
+    }
+}
@@ -1,5 +1,6 @@
 package com.tavern.server.core;
 
+import com.tavern.common.codec.WireCodec;
 import com.tavern.common.model.User;
 import com.tavern.common.model.network.NetworkMessage;
 import org.slf4j.Logger;
@@ -7,51 +8,335 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class ClientHandler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
-    
+    private static final BackpressurePolicy POLICY = BackpressurePolicy.fromProperties(Server.properties);
+    private static final int MAX_FRAMES_PER_FLUSH =
+            Integer.parseInt(Server.properties.getProperty("session.outbound.batch", "64"));
+
+    public enum SendStatus {
+        QUEUED,
+        /** Progress update discarded because the session is lagging */
+        DROPPED,
+        /** Chat not queued because the session is lagging; the caller should store it as unread */
+        DEFERRED,
+        QUEUE_FULL,
+        CLOSED
+    }
+
     Socket socket;
-    ObjectOutputStream out;
-    ObjectInputStream in;
+    WireCodec codec;
     Server server;
-    User user;
+    volatile User user;
+    private final BlockingQueue<OutboundFrame> outbound;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private Thread writer;
+    // Only touched by this session's reading thread, through the dispatcher
+    private final Map<RequestDispatcher.Lane, Executor> laneExecutors = new EnumMap<>(RequestDispatcher.Lane.class);
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final LongAdder sentFrames = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder deferredMessages = new LongAdder();
+    private final AtomicLong lagEpisodes = new AtomicLong();
+    private volatile boolean lagging;
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    private final Condition spaceAvailable = spaceLock.newCondition();
 
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = new ArrayBlockingQueue<>(POLICY.getMaxMessages());
     }
 
+    /**
+     * Queues a message for delivery without blocking the caller.
+     *
+     * @return true if the message was queued
+     */
     public boolean sendMessage(NetworkMessage msg) {
-        logger.debug("Sending message: {}", msg);
+        SendStatus status = enqueue(msg);
+        if (status == SendStatus.QUEUE_FULL) {
+            logger.warn("Outbound queue full for {}, dropping {}", describe(), msg.getMessageType());
+        }
+        return status == SendStatus.QUEUED;
+    }
+
+    /**
+     * Encodes the message on the caller's thread and hands it to this session's writer.
+     * Never blocks on the socket. While the session is lagging, progress updates and chat may be
+     * turned away according to the {@link BackpressurePolicy}.
+     */
+    public SendStatus enqueue(NetworkMessage msg) {
+        if (closed.get() || codec == null) {
+            return SendStatus.CLOSED;
+        }
+        SendStatus shed = shedWhileLagging(msg.getMessageType());
+        if (shed != null) {
+            return shed;
+        }
+        logger.debug("Queueing message: {}", msg);
+        try {
+            return offerFrame(new OutboundFrame(msg.getMessageType(), codec.encode(msg)));
+        } catch (IOException e) {
+            logger.error("Error encoding message {}: {}", msg.getMessageType(), e.getMessage(), e);
+            return SendStatus.CLOSED;
+        }
+    }
+
+    /**
+     * Queues a frame shared with other sessions, encoding it only if no session of this
+     * session's wire format has done so yet.
+     *
+     * @return true if the frame was queued
+     */
+    public boolean sendMessage(BroadcastFrame frame) {
+        SendStatus status = enqueue(frame);
+        if (status == SendStatus.QUEUE_FULL) {
+            logger.warn("Outbound queue full for {}, dropping {}", describe(), frame.getMessageType());
+        }
+        return status == SendStatus.QUEUED;
+    }
+
+    public SendStatus enqueue(BroadcastFrame frame) {
+        if (closed.get() || codec == null) {
+            return SendStatus.CLOSED;
+        }
+        SendStatus shed = shedWhileLagging(frame.getMessageType());
+        if (shed != null) {
+            return shed;
+        }
         try {
-            out.writeObject(msg);
-            out.flush();
-            return true;
+            return offerFrame(new OutboundFrame(frame.getMessageType(), frame.bytesFor(codec)));
         } catch (IOException e) {
-            logger.error("Error sending message: {}", e.getMessage(), e);
-            return false;
+            logger.error("Error encoding message {}: {}", frame.getMessageType(), e.getMessage(), e);
+            return SendStatus.CLOSED;
         }
     }
 
+    /**
+     * Like {@link #enqueue(NetworkMessage)}, but waits up to the given time for queue space.
+     * Meant for bulk producers such as file downloads, which should slow down rather than drop data.
+     * Bulk frames are held back at the high watermark, so a download alone never makes a session lag.
+     */
+    public SendStatus enqueue(NetworkMessage msg, long timeout, TimeUnit unit) throws InterruptedException {
+        if (closed.get() || codec == null) {
+            return SendStatus.CLOSED;
+        }
+        OutboundFrame frame;
+        try {
+            frame = new OutboundFrame(msg.getMessageType(), codec.encode(msg));
+        } catch (IOException e) {
+            logger.error("Error encoding message {}: {}", msg.getMessageType(), e.getMessage(), e);
+            return SendStatus.CLOSED;
+        }
+
+        long remaining = unit.toNanos(timeout);
+        spaceLock.lock();
+        try {
+            while (!closed.get() && queuedBytes.get() + frame.bytes().length > POLICY.getHighWatermark()
+                    && queuedBytes.get() > 0) {
+                if (remaining <= 0) {
+                    return SendStatus.QUEUE_FULL;
+                }
+                remaining = spaceAvailable.awaitNanos(remaining);
+            }
+        } finally {
+            spaceLock.unlock();
+        }
+        if (closed.get()) {
+            return SendStatus.CLOSED;
+        }
+        // Counted before the frame is visible to the writer, which subtracts it once written
+        int size = frame.bytes().length;
+        queuedBytes.addAndGet(size);
+        if (!outbound.offer(frame, Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+            onDrained(queuedBytes.addAndGet(-size));
+            return SendStatus.QUEUE_FULL;
+        }
+        return SendStatus.QUEUED;
+    }
+
+    private SendStatus shedWhileLagging(NetworkMessage.MessageType type) {
+        if (!lagging) {
+            return null;
+        }
+        if (type == NetworkMessage.MessageType.FILE_TRANSFER_PROGRESS && POLICY.isDropProgress()) {
+            droppedFrames.increment();
+            return SendStatus.DROPPED;
+        }
+        if (type == NetworkMessage.MessageType.RECEIVE_TEXT_MESSAGE_REQUEST && POLICY.isDeferChat()) {
+            deferredMessages.increment();
+            return SendStatus.DEFERRED;
+        }
+        return null;
+    }
+
+    private SendStatus offerFrame(OutboundFrame frame) {
+        int size = frame.bytes().length;
+        long total = reserveBytes(size);
+        if (total < 0) {
+            return overflow(frame.type());
+        }
+        if (!outbound.offer(frame)) {
+            onDrained(queuedBytes.addAndGet(-size));
+            return overflow(frame.type());
+        }
+        if (total > POLICY.getHighWatermark() && !lagging) {
+            lagging = true;
+            lagEpisodes.incrementAndGet();
+            logger.warn("Session {} is lagging: {} bytes in {} frames queued", describe(), total, outbound.size());
+        }
+        return SendStatus.QUEUED;
+    }
+
+    /**
+     * Adds a frame's bytes to the queued total unless that would pass the limit. The bytes are
+     * reserved before the frame is queued, so concurrent senders cannot overshoot the limit
+     * together and the writer never subtracts bytes that were not counted yet.
+     *
+     * @return the new total, or -1 if the frame does not fit
+     */
+    private long reserveBytes(int size) {
+        long current;
+        do {
+            current = queuedBytes.get();
+            if (current + size > POLICY.getMaxBytes()) {
+                return -1;
+            }
+        } while (!queuedBytes.compareAndSet(current, current + size));
+        return current + size;
+    }
+
+    private SendStatus overflow(NetworkMessage.MessageType type) {
+        droppedFrames.increment();
+        if (POLICY.isDisconnect()) {
+            logger.warn("Disconnecting slow session {}: outbound limit reached while queueing {}", describe(), type);
+            close();
+            return SendStatus.CLOSED;
+        }
+        return SendStatus.QUEUE_FULL;
+    }
+
+    public int getQueuedFrames() {
+        return outbound.size();
+    }
+
+    /**
+     * The queue that keeps this session's requests on one lane in order.
+     */
+    Executor laneExecutor(RequestDispatcher.Lane lane, Supplier<Executor> factory) {
+        return laneExecutors.computeIfAbsent(lane, l -> factory.get());
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    public SessionStats getStats() {
+        return new SessionStats(
+                user != null ? user.getUsername() : null,
+                String.valueOf(socket.getRemoteSocketAddress()),
+                codec != null ? codec.getFormat().name() : null,
+                outbound.size(),
+                queuedBytes.get(),
+                sentFrames.sum(),
+                sentBytes.sum(),
+                droppedFrames.sum(),
+                deferredMessages.sum(),
+                lagging,
+                lagEpisodes.get());
+    }
+
     public boolean isConnected() {
-        return socket.isConnected() && !socket.isClosed();
+        return !closed.get() && socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * Single writer for the session: drains whatever is queued, writes it back to back and
+     * flushes once, so a burst of messages shares TLS records and syscalls.
+     */
+    private void drainOutbound() {
+        List<OutboundFrame> batch = new ArrayList<>(MAX_FRAMES_PER_FLUSH);
+        try {
+            while (!closed.get()) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, MAX_FRAMES_PER_FLUSH - 1);
+                long written = 0;
+                for (OutboundFrame frame : batch) {
+                    codec.writeFrame(frame.bytes());
+                    written += frame.bytes().length;
+                }
+                codec.flush();
+                sentFrames.add(batch.size());
+                sentBytes.add(written);
+                batch.clear();
+                onDrained(queuedBytes.addAndGet(-written));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed.get()) {
+                logger.error("Error writing to {}: {}", socket.getRemoteSocketAddress(), e.getMessage(), e);
+                close();
+            }
+        }
+    }
+
+    private void onDrained(long remaining) {
+        if (lagging && remaining <= POLICY.getLowWatermark()) {
+            lagging = false;
+            logger.info("Session {} caught up, {} bytes still queued", describe(), remaining);
+        }
+        spaceLock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
+    private Object describe() {
+        return user != null ? user.getUsername() : socket.getRemoteSocketAddress();
     }
 
     private void initSession() throws IOException {
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        codec = WireCodec.accept(socket.getInputStream(), socket.getOutputStream());
+        logger.debug("Negotiated {} wire format with {}", codec.getFormat(), socket.getRemoteSocketAddress());
+        writer = Thread.ofVirtual().name("session-writer-" + socket.getPort()).start(this::drainOutbound);
     }
 
     private void startSession() {
         logger.info("Starting session with: {}", socket.getRemoteSocketAddress());
-        while (socket.isConnected() && !socket.isClosed()) {
+        while (isConnected()) {
             try {
-                NetworkMessage message = (NetworkMessage) in.readObject();
+                NetworkMessage message = codec.readMessage();
                 logger.debug("Received message: {} {}", message, (user == null ? "" : "from: " + user.getUsername()));
                 server.processMessage(message, this);
             } catch (IOException | ClassNotFoundException e) {
-                logger.error("Error in session: {}", e.getMessage(), e);
+                if (!closed.get()) {
+                    logger.error("Error in session: {}", e.getMessage(), e);
+                }
                 break;
             }
         }
@@ -73,14 +358,29 @@ public class ClientHandler implements Runnable {
             startSession();
         } catch (IOException e) {
             logger.error("Error initializing session for {}: {}", socket, e.getMessage(), e);
+            close();
         }
     }
 
     public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
         logger.info("Session closed for {}", user != null ? user.getUsername() : "unknown user");
+        if (writer != null) {
+            writer.interrupt();
+        }
+        outbound.clear();
+        queuedBytes.set(0);
+        spaceLock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+        server.onSessionClosed(this);
         try {
-            out.close();
-            in.close();
+            if (codec != null) codec.close();
             socket.close();
         } catch (IOException e) {
             logger.error("Error closing socket: {}", e.getMessage(), e);
@@ -0,0 +1,43 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.Message;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A fixed set of serial queues that conversations are hashed onto. Everything for one room or one
+ * direct conversation lands on the same queue and runs in a single total order, while different
+ * conversations spread over all queues and run in parallel.
+ */
+final class ConversationShards {
+    private static final long ROOM_KEY_BIT = 1L << 63;
+    private final SerialExecutor[] shards;
+
+    ConversationShards(int count, Executor executor) {
+        this.shards = new SerialExecutor[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new SerialExecutor(executor);
+        }
+    }
+
+    Executor shardFor(long conversationKey) {
+        // Spread sequential ids, which would otherwise walk the shards in lockstep
+        int hash = Long.hashCode(conversationKey * 0x9E3779B97F4A7C15L);
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
+    int size() {
+        return shards.length;
+    }
+
+    /**
+     * Identifies the conversation a message belongs to: its room, or the unordered pair of users
+     * of a direct message.
+     */
+    static long keyOf(Message message) {
+        if (!message.isDirect()) {
+            return ROOM_KEY_BIT | message.getRoomId();
+        }
+        return Message.directConversationId(message.getSenderId(), message.getReceiverId());
+    }
+}
@@ -0,0 +1,188 @@
+package com.tavern.server.core;
+
+import com.tavern.common.codec.DataChannel;
+import com.tavern.common.utils.PropertyFileLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Accepts the {@link DataChannel}s that clients open to fetch the bytes of a download, so file
+ * data does not go through the chat connection.
+ * <p>
+ * A download is announced with {@link #expect} before its transfer id is handed to the client, and
+ * the first data connection that presents the id gets the file. If that connection drops, the id
+ * can be claimed again to continue from where the client got to. Ids that nobody claims in time are
+ * dropped. With TLS off the file goes from the page cache to the socket without being copied
+ * through the JVM; that is only worth it where the data connection is protected some other way.
+ */
+public class DataChannelServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DataChannelServer.class);
+    private static final int HEADER_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Told how a download announced with {@link #expect} ended. Called on the thread that served it.
+     */
+    public interface Listener {
+        void completed(long bytes);
+
+        void failed(String reason);
+    }
+
+    private record Expected(String transferId, Path file, Listener listener, ScheduledFuture<?> expiry) {}
+
+    private final int port;
+    private final int backlog;
+    private final boolean tls;
+    private final long claimTimeoutSeconds;
+    private final SSLContext sslContext;
+    private final Map<String, Expected> expected = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiries;
+    private final ExecutorService connections;
+    private volatile Closeable serverSocket;
+    private volatile boolean running = true;
+
+    public DataChannelServer(PropertyFileLoader properties, SSLContext sslContext) {
+        this.port = Integer.parseInt(properties.getProperty("server.data.port", "8444"));
+        this.backlog = Integer.parseInt(properties.getProperty("server.accept.backlog", "1024"));
+        this.tls = Boolean.parseBoolean(properties.getProperty("server.data.tls", "true"));
+        this.claimTimeoutSeconds = Long.parseLong(properties.getProperty("server.data.claim.timeout", "60"));
+        this.sslContext = sslContext;
+        this.expiries = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("data-channel-expiry").daemon().factory());
+        this.connections = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("data-channel-", 0).factory());
+    }
+
+    /**
+     * Opens the data port and starts accepting connections on a thread of its own.
+     */
+    public void start() throws IOException {
+        if (tls) {
+            SSLServerSocket socket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port, backlog);
+            serverSocket = socket;
+            Thread.ofPlatform().name("data-channel-accept").daemon().start(() -> acceptTls(socket));
+        } else {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port), backlog);
+            serverSocket = channel;
+            Thread.ofPlatform().name("data-channel-accept").daemon().start(() -> acceptPlain(channel));
+        }
+        logger.info("Data channel started on port {} ({})", port, tls ? "TLS" : "plain, zero-copy");
+    }
+
+    /**
+     * Makes a file available to the first data connection presenting the transfer id.
+     */
+    public void expect(String transferId, Path file, Listener listener) {
+        ScheduledFuture<?> expiry = expiries.schedule(() -> {
+            Expected unclaimed = expected.remove(transferId);
+            if (unclaimed != null) {
+                unclaimed.listener().failed("No data connection within " + claimTimeoutSeconds + " seconds");
+            }
+        }, claimTimeoutSeconds, TimeUnit.SECONDS);
+        expected.put(transferId, new Expected(transferId, file, listener, expiry));
+    }
+
+    private void acceptTls(SSLServerSocket socket) {
+        while (running) {
+            try {
+                SSLSocket connection = (SSLSocket) socket.accept();
+                connections.execute(() -> serve(connection, () -> DataChannel.of(connection)));
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting data connection", e);
+                }
+            }
+        }
+    }
+
+    private void acceptPlain(ServerSocketChannel channel) {
+        while (running) {
+            try {
+                SocketChannel connection = channel.accept();
+                connections.execute(() -> serve(connection.socket(), () -> DataChannel.of(connection)));
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting data connection", e);
+                }
+            }
+        }
+    }
+
+    private interface Opener {
+        DataChannel open() throws IOException;
+    }
+
+    private void serve(Socket socket, Opener opener) {
+        Expected claimed = null;
+        try (DataChannel channel = opener.open()) {
+            socket.setSoTimeout(HEADER_TIMEOUT_MILLIS);
+            String transferId = channel.readTransferId();
+            claimed = expected.remove(transferId);
+            if (claimed == null) {
+                logger.warn("Data connection from {} for unknown transfer {}", socket.getRemoteSocketAddress(), transferId);
+                channel.reject();
+                return;
+            }
+            claimed.expiry().cancel(false);
+            long offset = channel.readOffset();
+            socket.setSoTimeout(0);
+
+            try (FileChannel file = FileChannel.open(claimed.file(), StandardOpenOption.READ)) {
+                long size = Files.size(claimed.file());
+                if (offset < 0 || offset > size) {
+                    channel.reject();
+                    claimed.listener().failed("Cannot resume at offset " + offset + " of " + size + " bytes");
+                    return;
+                }
+                channel.accept(size);
+                long started = System.nanoTime();
+                channel.send(file, offset, size - offset);
+                logger.debug("Sent {} bytes of transfer {} from offset {} in {} ms", size - offset, transferId, offset,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                claimed.listener().completed(size);
+            }
+        } catch (SocketTimeoutException e) {
+            logger.warn("Data connection from {} sent no transfer id", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            if (claimed != null) {
+                // The client may reconnect and continue from the offset it got to
+                logger.warn("Data connection for transfer {} dropped, waiting {} seconds for it to resume: {}",
+                        claimed.transferId(), claimTimeoutSeconds, e.getMessage());
+                expect(claimed.transferId(), claimed.file(), claimed.listener());
+            } else {
+                logger.error("Error sending file on data connection: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Error closing data channel socket", e);
+        }
+        expiries.shutdownNow();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,9 @@
+package com.tavern.server.core;
+
+/**
+ * Snapshot of one dispatch lane. Wait times run from the moment a request was read off the socket
+ * until a worker started handling it; the maximum covers the period since the previous snapshot.
+ */
+public record LaneStats(RequestDispatcher.Lane lane, int queueDepth, long completed,
+                        double averageWaitMillis, double maxWaitMillis, double averageServiceMillis) {
+}
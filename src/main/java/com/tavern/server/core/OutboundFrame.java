@@ -0,0 +1,9 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.network.NetworkMessage;
+
+/**
+ * An encoded message waiting in a session's outbound queue.
+ */
+record OutboundFrame(NetworkMessage.MessageType type, byte[] bytes) {
+}
@@ -0,0 +1,271 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.network.NetworkMessage;
+import com.tavern.common.model.network.NetworkMessage.MessageType;
+import com.tavern.common.utils.PropertyFileLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hands each request read off a session to the handler registered for its type, on the lane
+ * configured for that type, so that a slow database write or file operation does not stop the
+ * session from reading.
+ * <p>
+ * Requests from one session on the same lane are handled one at a time and in the order they
+ * were read. Requests on different lanes of the same session may overtake each other, which is
+ * why everything touching the same state (a file transfer, the chat tables) shares a lane.
+ * <p>
+ * Requests on the conversation lane are additionally ordered across sessions: they first pass
+ * through the sender's database queue, so they still follow the sender's earlier requests such as
+ * joining the room, and are then handed to the shard that owns their room or direct conversation.
+ */
+public class RequestDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    public enum Lane {
+        /** Cheap signalling, handled on the session's reading thread */
+        INLINE,
+        /** Requests that read or write the database */
+        DATABASE,
+        /** File transfers */
+        BULK,
+        /** Requests that must be totally ordered per room or direct conversation, such as chat */
+        CONVERSATION
+    }
+
+    private final EnumMap<MessageType, RequestHandler> handlers;
+    private final EnumMap<MessageType, Lane> lanes = new EnumMap<>(MessageType.class);
+    private final EnumMap<Lane, ExecutorService> executors = new EnumMap<>(Lane.class);
+    private final EnumMap<Lane, LaneMetrics> metrics = new EnumMap<>(Lane.class);
+    private final EnumMap<MessageType, ToLongFunction<NetworkMessage>> conversationKeys = new EnumMap<>(MessageType.class);
+    private final ConversationShards conversationShards;
+    private static final ThreadLocal<Executor> currentQueue = new ThreadLocal<>();
+    private volatile boolean accepting = true;
+
+    public RequestDispatcher(EnumMap<MessageType, RequestHandler> handlers, PropertyFileLoader properties) {
+        this.handlers = handlers;
+
+        for (MessageType type : MessageType.values()) {
+            String configured = properties.getProperty("dispatch.lane." + type.name());
+            lanes.put(type, configured != null ? Lane.valueOf(configured.trim().toUpperCase()) : defaultLane(type));
+        }
+
+        int databaseThreads = Integer.parseInt(properties.getProperty("dispatch.database.threads", "4"));
+        int bulkThreads = Integer.parseInt(properties.getProperty("dispatch.bulk.threads", "2"));
+        int shards = Integer.parseInt(properties.getProperty("dispatch.conversation.shards",
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        executors.put(Lane.DATABASE, Executors.newFixedThreadPool(databaseThreads,
+                Thread.ofPlatform().name("dispatch-db-", 0).daemon().factory()));
+        executors.put(Lane.BULK, Executors.newFixedThreadPool(bulkThreads,
+                Thread.ofPlatform().name("dispatch-bulk-", 0).daemon().factory()));
+        // Shards only order the work; the database pool still bounds how much of it runs at once
+        conversationShards = new ConversationShards(shards, executors.get(Lane.DATABASE));
+
+        for (Lane lane : Lane.values()) {
+            metrics.put(lane, new LaneMetrics());
+        }
+        logger.info("Request dispatcher started with {} database threads, {} bulk threads and {} conversation shards",
+                databaseThreads, bulkThreads, conversationShards.size());
+    }
+
+    private static Lane defaultLane(MessageType type) {
+        return switch (type) {
+            case VIDEO_CALL_REQUEST, VIDEO_CALL_RESPONSE, VIDEO_CALL_OFFER, VIDEO_CALL_ANSWER, VIDEO_CALL_END -> Lane.INLINE;
+            case FILE_TRANSFER_REQUEST, FILE_TRANSFER_UPLOAD_REQUEST, FILE_TRANSFER_DOWNLOAD_REQUEST,
+                 FILE_TRANSFER_CHUNK, FILE_TRANSFER_RESUME_REQUEST -> Lane.BULK;
+            case SEND_TEXT_MESSAGE_REQUEST -> Lane.CONVERSATION;
+            default -> Lane.DATABASE;
+        };
+    }
+
+    public Lane getLane(MessageType type) {
+        return lanes.get(type);
+    }
+
+    /**
+     * Tells the dispatcher which conversation a request type belongs to. A request type on the
+     * conversation lane without a key is only ordered per session, like the database lane.
+     */
+    public void orderByConversation(MessageType type, ToLongFunction<NetworkMessage> conversationKey) {
+        conversationKeys.put(type, conversationKey);
+    }
+
+    /**
+     * Called on the session's reading thread for every request it reads.
+     */
+    public void dispatch(NetworkMessage message, ClientHandler session) {
+        RequestHandler handler = handlers.get(message.getMessageType());
+        if (handler == null) {
+            return;
+        }
+
+        if (!accepting) {
+            logger.warn("Dropping {} from {}: dispatcher is shutting down", message.getMessageType(), describe(session));
+            return;
+        }
+        Lane lane = lanes.get(message.getMessageType());
+        LaneMetrics laneMetrics = metrics.get(lane);
+        laneMetrics.queued();
+        if (lane == Lane.INLINE) {
+            run(message, session, handler, laneMetrics, System.nanoTime(), null);
+            return;
+        }
+        try {
+            Executor sessionQueue = sessionQueue(session, lane == Lane.CONVERSATION ? Lane.DATABASE : lane);
+            ToLongFunction<NetworkMessage> key = lane == Lane.CONVERSATION ? conversationKeys.get(message.getMessageType()) : null;
+            long queuedAt = System.nanoTime();
+            if (key == null) {
+                sessionQueue.execute(() -> run(message, session, handler, laneMetrics, queuedAt, sessionQueue));
+            } else {
+                Executor shard = conversationShards.shardFor(key.applyAsLong(message));
+                sessionQueue.execute(() -> {
+                    // Runs after this method has returned, so a rejection must be accounted for here
+                    try {
+                        shard.execute(() -> run(message, session, handler, laneMetrics, queuedAt, shard));
+                    } catch (RejectedExecutionException e) {
+                        laneMetrics.rejected();
+                        logger.warn("Dropping {} from {}: dispatcher is shutting down", message.getMessageType(), describe(session));
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            laneMetrics.rejected();
+            logger.warn("Dropping {} from {}: dispatcher is shutting down", message.getMessageType(), describe(session));
+        }
+    }
+
+    private static void run(NetworkMessage message, ClientHandler session, RequestHandler handler,
+                            LaneMetrics laneMetrics, long queuedAt, Executor queue) {
+        laneMetrics.started(queuedAt);
+        long startedAt = System.nanoTime();
+        currentQueue.set(queue);
+        try {
+            handler.handleRequest(message, session);
+        } catch (RuntimeException e) {
+            logger.error("Error handling {}: {}", message.getMessageType(), e.getMessage(), e);
+        } finally {
+            currentQueue.remove();
+            laneMetrics.completed(startedAt);
+        }
+    }
+
+    /**
+     * The serial queue the calling handler was dispatched on: its conversation's shard, or its
+     * session's queue for the lane. Work that continues a request later, such as a callback on a
+     * database write, can be run on it to keep the request's order without tying up a shared thread.
+     *
+     * @return the queue, or {@code null} for inline requests and outside of a handler
+     */
+    public static Executor currentQueue() {
+        return currentQueue.get();
+    }
+
+    private Executor sessionQueue(ClientHandler session, Lane lane) {
+        return session.laneExecutor(lane, () -> new SerialExecutor(executors.get(lane)));
+    }
+
+    private static String describe(ClientHandler session) {
+        return session.getUser() != null ? session.getUser().getUsername() : "unknown user";
+    }
+
+    public List<LaneStats> getLaneStats() {
+        List<LaneStats> stats = new ArrayList<>(metrics.size());
+        metrics.forEach((lane, laneMetrics) -> stats.add(laneMetrics.snapshot(lane)));
+        return stats;
+    }
+
+    /**
+     * Logs every lane that had work since the previous report.
+     */
+    public void reportLaneStats() {
+        for (LaneStats stats : getLaneStats()) {
+            if (stats.completed() == 0 && stats.queueDepth() == 0) {
+                continue;
+            }
+            logger.info("Lane {}: depth={}, completed={}, wait avg={}ms max={}ms, service avg={}ms",
+                    stats.lane(), stats.queueDepth(), stats.completed(),
+                    String.format("%.2f", stats.averageWaitMillis()), String.format("%.2f", stats.maxWaitMillis()),
+                    String.format("%.2f", stats.averageServiceMillis()));
+        }
+    }
+
+    /**
+     * Stops taking new requests and gives the ones already queued a few seconds to finish.
+     */
+    public void shutdown() {
+        accepting = false;
+        try {
+            // Queued requests sit in per-session queues, not in the pools, so wait for the lanes to empty first
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (metrics.values().stream().anyMatch(m -> m.depth.get() > 0) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            for (ExecutorService executor : executors.values()) {
+                executor.shutdown();
+            }
+            for (ExecutorService executor : executors.values()) {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    logger.warn("Dispatcher lane did not finish queued requests in time");
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class LaneMetrics {
+        private final AtomicInteger depth = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder serviceNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void queued() {
+            depth.incrementAndGet();
+        }
+
+        void rejected() {
+            depth.decrementAndGet();
+        }
+
+        void started(long queuedAt) {
+            depth.decrementAndGet();
+            long wait = System.nanoTime() - queuedAt;
+            waitNanos.add(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+        }
+
+        void completed(long startedAt) {
+            serviceNanos.add(System.nanoTime() - startedAt);
+            completed.increment();
+        }
+
+        /**
+         * Counters other than the depth restart from zero with every snapshot.
+         */
+        LaneStats snapshot(Lane lane) {
+            long count = completed.sumThenReset();
+            long waited = waitNanos.sumThenReset();
+            long served = serviceNanos.sumThenReset();
+            long maxWait = maxWaitNanos.getAndSet(0);
+            return new LaneStats(lane, depth.get(), count,
+                    count > 0 ? waited / 1e6 / count : 0,
+                    maxWait / 1e6,
+                    count > 0 ? served / 1e6 / count : 0);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.tavern.server.core;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared executor. Lets many independent
+ * queues share a small pool without any one of them running two tasks at once.
+ */
+final class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private Runnable active;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null && !scheduleNext()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+    }
+
+    private synchronized boolean scheduleNext() {
+        if ((active = tasks.poll()) != null) {
+            try {
+                executor.execute(active);
+            } catch (RejectedExecutionException e) {
+                // The shared executor is shutting down, nothing queued here can run any more
+                tasks.clear();
+                active = null;
+                return false;
+            }
+        }
+        return true;
+    }
+}
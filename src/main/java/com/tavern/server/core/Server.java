@@ -1,9 +1,16 @@
 package com.tavern.server.core;
 
 import com.tavern.common.model.network.NetworkMessage;
+import com.tavern.common.model.network.SendTextMessageRequest;
 import com.tavern.common.utils.AppDataManager;
 import com.tavern.common.utils.LogManager;
 import com.tavern.common.utils.PropertyFileLoader;
+import com.tavern.server.data.cache.UserCache;
+import com.tavern.server.data.gc.MessageCollector;
+import com.tavern.server.data.manager.AvatarManager;
+import com.tavern.server.data.manager.FileBlobManager;
+import com.tavern.server.data.manager.UserManager;
+import com.tavern.server.handlers.AvatarHandler;
 import com.tavern.server.handlers.UserHandler;
 import com.tavern.server.handlers.MessageHandler;
 import com.tavern.server.handlers.RoomHandler;
@@ -19,8 +26,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.security.KeyStore;
-import java.sql.Connection;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,11 +42,18 @@ import org.slf4j.LoggerFactory;
 public class Server {
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
     private final int port;
-    private final UserHandler userHandler;
-    private final HashMap<NetworkMessage.MessageType, RequestHandler> requestHandlers;
+    private final SessionRegistry sessionRegistry;
+    private final RequestDispatcher dispatcher;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
     public static PropertyFileLoader properties = new PropertyFileLoader("server/server.properties");
     private SSLServerSocket serverSocket;
+    private final ExecutorService sessionExecutor;
+    private final int acceptBacklog;
+    private final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService maintenance;
+    private final MessageCollector messageCollector;
+    private final SSLContext sslContext;
+    private final DataChannelServer dataChannelServer;
 
     // SSL configuration
     private final String keystorePath;
@@ -44,13 +65,41 @@ public class Server {
         keystorePath = properties.getProperty("ssl.path");
         keystorePassword = properties.getProperty("ssl.password");
         port = Integer.parseInt(properties.getProperty("server.port", "0"));
+        acceptBacklog = Integer.parseInt(properties.getProperty("server.accept.backlog", "1024"));
+        sessionExecutor = createSessionExecutor(properties.getProperty("server.connection.engine", "virtual"));
+        sslContext = createSslContext();
+        dataChannelServer = new DataChannelServer(properties, sslContext);
 
-        requestHandlers = new HashMap<>();
-        this.userHandler = new UserHandler(requestHandlers);
+        // Periodic housekeeping of the server and its handlers shares one thread
+        maintenance = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("server-maintenance").daemon().factory());
+
+        EnumMap<NetworkMessage.MessageType, RequestHandler> requestHandlers = new EnumMap<>(NetworkMessage.MessageType.class);
+        sessionRegistry = new SessionRegistry();
+        new UserHandler(sessionRegistry, requestHandlers);
         new RoomHandler(requestHandlers);
-        new MessageHandler(userHandler, requestHandlers);
-        new VideoChatHandler(userHandler, requestHandlers);
-        new FileTransferHandler(requestHandlers);
+        new MessageHandler(sessionRegistry, requestHandlers);
+        new VideoChatHandler(sessionRegistry, requestHandlers);
+        new FileTransferHandler(dataChannelServer, maintenance, requestHandlers);
+        new AvatarHandler(requestHandlers);
+        dispatcher = new RequestDispatcher(requestHandlers, properties);
+        dispatcher.orderByConversation(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST,
+                message -> ConversationShards.keyOf(((SendTextMessageRequest) message).message()));
+
+        // Databases from before the avatar store still keep avatars inline in user and room
+        AvatarManager.moveInlineAvatars();
+
+        // Uploads from before the blob store are hashed and merged in the background, they can be large
+        maintenance.execute(FileBlobManager::moveUnstoredUploads);
+        int statsInterval = Integer.parseInt(properties.getProperty("session.stats.interval", "60"));
+        if (statsInterval > 0) {
+            maintenance.scheduleAtFixedRate(this::reportStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+        messageCollector = new MessageCollector(properties);
+        int collectionInterval = Integer.parseInt(properties.getProperty("db.gc.interval", "60"));
+        if (collectionInterval > 0) {
+            maintenance.scheduleWithFixedDelay(messageCollector::collect, collectionInterval, collectionInterval, TimeUnit.SECONDS);
+        }
 
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
@@ -58,7 +107,7 @@ public class Server {
         initializeServer();
     }
 
-    private void initializeServer() throws IOException {
+    private SSLContext createSslContext() throws IOException {
         try {
             // Load keystore using AppDataManager
             KeyStore keyStore = KeyStore.getInstance("JKS");
@@ -72,27 +121,33 @@ public class Server {
             kmf.init(keyStore, keystorePassword.toCharArray());
 
             // Create SSL context
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(kmf.getKeyManagers(), null, null);
-
-            // Create server socket factory
-            SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
-            serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
-
-            // Require client authentication (optional, set to false if not required)
-            serverSocket.setNeedClientAuth(false);
-
-            logger.info("Secure server started on port {}", port);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
         } catch (Exception e) {
             logger.error("Error initializing SSL", e);
             throw new IOException("Error initializing SSL", e);
         }
+    }
+
+    private void initializeServer() throws IOException {
+        // Create server socket factory
+        SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
+        serverSocket = (SSLServerSocket) ssf.createServerSocket(port, acceptBacklog);
+
+        // Require client authentication (optional, set to false if not required)
+        serverSocket.setNeedClientAuth(false);
+
+        logger.info("Secure server started on port {}", port);
+        dataChannelServer.start();
 
         try {
             while (isRunning.get() && !serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
                 logger.info("Accepted secure connection from {}", socket.getRemoteSocketAddress());
-                new Thread(new ClientHandler(socket, this)).start();
+                ClientHandler session = new ClientHandler(socket, this);
+                sessions.add(session);
+                sessionExecutor.execute(session);
             }
         } catch (IOException e) {
             if (isRunning.get()) { // Only log if not shutting down
@@ -103,6 +158,84 @@ public class Server {
         }
     }
 
+    /**
+     * Creates the executor that runs one {@link ClientHandler} per accepted connection.
+     * The "virtual" engine parks idle sessions on virtual threads so that tens of thousands
+     * of mostly idle users do not each pin a platform thread and its stack; "platform" keeps
+     * the classic thread-per-connection model.
+     *
+     * @param engine the value of the server.connection.engine property
+     * @return the executor used for client sessions
+     */
+    private static ExecutorService createSessionExecutor(String engine) {
+        ThreadFactory factory;
+        if ("platform".equalsIgnoreCase(engine.trim())) {
+            factory = Thread.ofPlatform().name("client-session-", 0).factory();
+        } else {
+            if (!"virtual".equalsIgnoreCase(engine.trim())) {
+                logger.warn("Unknown connection engine '{}', falling back to virtual threads", engine);
+            }
+            factory = Thread.ofVirtual().name("client-session-", 0).factory();
+        }
+        logger.info("Using {} thread connection engine", engine.trim().toLowerCase());
+        return Executors.newThreadPerTaskExecutor(factory);
+    }
+
+    void onSessionClosed(ClientHandler session) {
+        sessions.remove(session);
+        sessionRegistry.unregister(session);
+    }
+
+    public SessionRegistry getSessionRegistry() {
+        return sessionRegistry;
+    }
+
+    /**
+     * Outbound counters for every open session, lagging or not.
+     */
+    public List<SessionStats> getSessionStats() {
+        return sessions.stream().map(ClientHandler::getStats).toList();
+    }
+
+    public MessageCollector getMessageCollector() {
+        return messageCollector;
+    }
+
+    public List<LaneStats> getLaneStats() {
+        return dispatcher.getLaneStats();
+    }
+
+    private void reportStats() {
+        dispatcher.reportLaneStats();
+        reportLaggingSessions();
+        reportUserCache();
+    }
+
+    private void reportUserCache() {
+        UserCache.Stats stats = UserManager.getCacheStats();
+        if (stats.hits() + stats.misses() == 0) {
+            return;
+        }
+        logger.info("User cache: {}/{} entries, hits={}, misses={}, hit rate={}%, evictions={}",
+                stats.size(), stats.capacity(), stats.hits(), stats.misses(),
+                String.format("%.1f", stats.hitRate() * 100), stats.evictions());
+    }
+
+    private void reportLaggingSessions() {
+        List<SessionStats> lagging = sessions.stream()
+                .filter(ClientHandler::isLagging)
+                .map(ClientHandler::getStats)
+                .toList();
+        if (lagging.isEmpty()) {
+            logger.debug("{} open sessions, none lagging", sessions.size());
+            return;
+        }
+        logger.info("{} open sessions, {} lagging", sessions.size(), lagging.size());
+        for (SessionStats stats : lagging) {
+            logger.warn("Lagging session {}", stats);
+        }
+    }
+
     private void shutdown() {
         if (!isRunning.getAndSet(false)) {
             return; // Already shutting down
@@ -110,8 +243,10 @@ public class Server {
 
         logger.info("Server shutting down...");
         
-        // Close all active client connections
-        for (ClientHandler handler : userHandler.getActiveUsers().values()) {
+        maintenance.shutdownNow();
+
+        // Close all open client connections, logged in or not
+        for (ClientHandler handler : List.copyOf(sessions)) {
             try {
                 handler.close();
             } catch (Exception e) {
@@ -128,24 +263,29 @@ public class Server {
             }
         }
 
-        // Close any open database connections
+        dataChannelServer.close();
+
+        // Stop session threads that are still draining
+        sessionExecutor.shutdownNow();
         try {
-            Connection conn = ServerDatabaseManager.getConnection();
-            if (conn != null && !conn.isClosed()) {
-                conn.close();
+            if (!sessionExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Some client sessions did not terminate in time");
             }
-        } catch (Exception e) {
-            logger.warn("Error closing database connection", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
+        // Let requests already handed to the dispatcher finish before the database goes away
+        dispatcher.shutdown();
+
+        // Close the pooled database connections
+        ServerDatabaseManager.close();
+
         logger.info("Server shutdown complete");
     }
 
-    protected void processMessage(NetworkMessage msg, ClientHandler clientHandler) throws IOException {
-        if (!requestHandlers.containsKey(msg.getMessageType()))
-            return;
-        RequestHandler handler = requestHandlers.get(msg.getMessageType());
-        handler.handleRequest(msg, clientHandler);
+    protected void processMessage(NetworkMessage msg, ClientHandler clientHandler) {
+        dispatcher.dispatch(msg, clientHandler);
     }
 
 }
@@ -0,0 +1,122 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.network.NetworkMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logged-in sessions indexed by user id. A user may be connected from several devices at once,
+ * and messages addressed to the user are fanned out to all of them.
+ * <p>
+ * Each user maps to an immutable list of sessions that is replaced atomically on login and
+ * logout, so lookups and fan-out never lock and never see a half-updated list.
+ */
+public class SessionRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(SessionRegistry.class);
+    private final ConcurrentHashMap<Integer, List<ClientHandler>> sessions = new ConcurrentHashMap<>();
+
+    public void register(int userId, ClientHandler session) {
+        sessions.compute(userId, (id, current) -> {
+            if (current == null) {
+                return List.of(session);
+            }
+            if (current.contains(session)) {
+                return current;
+            }
+            List<ClientHandler> updated = new ArrayList<>(current.size() + 1);
+            updated.addAll(current);
+            updated.add(session);
+            return List.copyOf(updated);
+        });
+        logger.debug("Registered session for user {}, {} open", userId, getSessions(userId).size());
+    }
+
+    /**
+     * Removes the session from whichever user it was registered under. Safe to call for
+     * sessions that never logged in.
+     */
+    public void unregister(ClientHandler session) {
+        if (session.getUser() == null) {
+            return;
+        }
+        unregister(session.getUser().getId(), session);
+    }
+
+    public void unregister(int userId, ClientHandler session) {
+        sessions.computeIfPresent(userId, (id, current) -> {
+            if (!current.contains(session)) {
+                return current;
+            }
+            if (current.size() == 1) {
+                return null;
+            }
+            List<ClientHandler> updated = new ArrayList<>(current);
+            updated.remove(session);
+            return List.copyOf(updated);
+        });
+    }
+
+    public boolean isOnline(int userId) {
+        return sessions.containsKey(userId);
+    }
+
+    /**
+     * @return the user's open sessions, or an empty list if the user is offline
+     */
+    public List<ClientHandler> getSessions(int userId) {
+        return sessions.getOrDefault(userId, List.of());
+    }
+
+    /**
+     * Queues the message on every session of the user.
+     *
+     * @return the number of sessions that accepted the message
+     */
+    public int sendToUser(int userId, NetworkMessage message) {
+        List<ClientHandler> userSessions = getSessions(userId);
+        if (userSessions.isEmpty()) {
+            return 0;
+        }
+        return sendToUser(userId, new BroadcastFrame(message));
+    }
+
+    /**
+     * Queues an already shared frame on every session of the user, so fanning one message out
+     * to many users encodes it once rather than once per session.
+     *
+     * @return the number of sessions that accepted the frame
+     */
+    public int sendToUser(int userId, BroadcastFrame frame) {
+        int delivered = 0;
+        for (ClientHandler session : getSessions(userId)) {
+            if (session.isConnected() && session.sendMessage(frame)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Pushes one message to every session of the given users.
+     *
+     * @return the number of users with at least one session that accepted the message
+     */
+    public int broadcast(int[] userIds, NetworkMessage message) {
+        BroadcastFrame frame = new BroadcastFrame(message);
+        int reached = 0;
+        for (int userId : userIds) {
+            if (sendToUser(userId, frame) > 0) {
+                reached++;
+            }
+        }
+        return reached;
+    }
+
+    public int getOnlineUserCount() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,11 @@
+package com.tavern.server.core;
+
+/**
+ * Snapshot of a session's outbound counters.
+ */
+public record SessionStats(String user, String remoteAddress, String wireFormat,
+                           int queuedFrames, long queuedBytes,
+                           long sentFrames, long sentBytes,
+                           long droppedFrames, long deferredMessages,
+                           boolean lagging, long lagEpisodes) {
+}
@@ -0,0 +1,290 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.network.FileTransferChunk;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+
+/**
+ * The server's side of one upload. Each chunk is written at its own offset through a channel that
+ * stays open between chunks, and a bitmap of {@link FileTransferChunk#BLOCK_SIZE blocks} records
+ * what has arrived, so chunks may come in any order and a repeated chunk is only counted once.
+ * <p>
+ * An upload that goes idle is checkpointed, closed and retired; a chunk that comes later picks it
+ * up again with {@link #resume}. The file is synced to disk once, when the last block has arrived.
+ * <p>
+ * So that an upload can be resumed after a restart, the bitmap is saved next to the file every
+ * {@code checkpointBytes} and whenever the upload goes idle. The data is synced before the bitmap
+ * that describes it, so a saved bitmap never claims a block that could be lost; blocks written
+ * after the last checkpoint are simply sent again.
+ * <p>
+ * Chunks that arrive in order are hashed as they are written, so the file's SHA-256 is known when
+ * the last one arrives. Anything after a gap is read back from disk for the hash at the end.
+ */
+public class UploadSession implements Closeable {
+    private static final String BLOCKS_SUFFIX = ".blocks";
+
+    private final Path file;
+    private final Path blocksFile;
+    private final long size;
+    private final int blockCount;
+    private final long checkpointBytes;
+    private final BitSet received;
+    private long receivedBytes;
+    private long checkpointedBytes;
+    private final MessageDigest digest;
+    private long digested;
+    private FileChannel channel;
+    private long lastWriteAt;
+    private boolean retired;
+
+    public UploadSession(Path file, long size, long checkpointBytes) {
+        this(file, size, checkpointBytes, new BitSet());
+    }
+
+    private UploadSession(Path file, long size, long checkpointBytes, BitSet received) {
+        this.file = file;
+        this.blocksFile = file.resolveSibling(file.getFileName() + BLOCKS_SUFFIX);
+        this.size = size;
+        this.blockCount = (int) ((size + FileTransferChunk.BLOCK_SIZE - 1) / FileTransferChunk.BLOCK_SIZE);
+        this.checkpointBytes = checkpointBytes;
+        this.received = received;
+        received.clear(blockCount, Math.max(blockCount, received.length()));
+        for (int block = received.nextSetBit(0); block >= 0; block = received.nextSetBit(block + 1)) {
+            receivedBytes += blockLength(block);
+        }
+        this.checkpointedBytes = receivedBytes;
+        this.digest = newDigest();
+        this.lastWriteAt = System.nanoTime();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Picks an upload up again from the bitmap saved by its last checkpoint. Without a usable
+     * bitmap, or without the file, the upload starts over.
+     */
+    public static UploadSession resume(Path file, long size, long checkpointBytes) throws IOException {
+        Path blocksFile = file.resolveSibling(file.getFileName() + BLOCKS_SUFFIX);
+        BitSet received = new BitSet();
+        if (Files.exists(file) && Files.exists(blocksFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(blocksFile)))) {
+                if (in.readLong() == size) {
+                    received = BitSet.valueOf(in.readAllBytes());
+                }
+            } catch (EOFException e) {
+                // Torn bitmap, start over
+            }
+        }
+        return new UploadSession(file, size, checkpointBytes, received);
+    }
+
+    /**
+     * Deletes an upload's file and its saved bitmap.
+     */
+    public static void deleteFiles(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + BLOCKS_SUFFIX));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Whether a chunk of {@code length} bytes may be written at {@code offset}: it has to start on a
+     * block boundary, fit in the file, and be whole blocks unless it ends the file.
+     */
+    public boolean fits(long offset, int length) {
+        long end = offset + length;
+        return offset >= 0 && length > 0 && end <= size
+                && offset % FileTransferChunk.BLOCK_SIZE == 0
+                && (length % FileTransferChunk.BLOCK_SIZE == 0 || end == size);
+    }
+
+    /**
+     * Writes a chunk at its offset and marks its blocks as received.
+     *
+     * @return the number of bytes that had not been received before, or -1 if the upload was retired
+     *         and nothing was written
+     */
+    public synchronized long write(long offset, byte[] data) throws IOException {
+        if (!fits(offset, data.length)) {
+            throw new IOException("Chunk of " + data.length + " bytes at offset " + offset + " does not fit the upload");
+        }
+        if (retired) {
+            return -1;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        lastWriteAt = System.nanoTime();
+        if (offset == digested) {
+            digest.update(data);
+            digested += data.length;
+        }
+
+        long added = 0;
+        int first = (int) (offset / FileTransferChunk.BLOCK_SIZE);
+        int last = (int) ((offset + data.length - 1) / FileTransferChunk.BLOCK_SIZE);
+        for (int block = received.nextClearBit(first); block <= last; block = received.nextClearBit(block + 1)) {
+            added += blockLength(block);
+        }
+        received.set(first, last + 1);
+        receivedBytes += added;
+
+        if (checkpointBytes > 0 && receivedBytes - checkpointedBytes >= checkpointBytes && !isComplete()) {
+            checkpoint();
+        }
+        return added;
+    }
+
+    private long blockLength(int block) {
+        return Math.min(FileTransferChunk.BLOCK_SIZE, size - (long) block * FileTransferChunk.BLOCK_SIZE);
+    }
+
+    /**
+     * Syncs what has been written and saves the bitmap that describes it.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+        Path temporary = blocksFile.resolveSibling(blocksFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeLong(size);
+            out.write(received.toByteArray());
+        }
+        Files.move(temporary, blocksFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointedBytes = receivedBytes;
+    }
+
+    /**
+     * The byte ranges that have not been received, as pairs of start and end offsets.
+     */
+    public synchronized long[] getMissingRanges() {
+        long[] ranges = new long[8];
+        int count = 0;
+        for (int start = received.nextClearBit(0); start < blockCount; ) {
+            int next = received.nextSetBit(start);
+            int end = next < 0 ? blockCount : next;
+            if (count + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[count++] = (long) start * FileTransferChunk.BLOCK_SIZE;
+            ranges[count++] = Math.min(size, (long) end * FileTransferChunk.BLOCK_SIZE);
+            start = received.nextClearBit(end);
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    public synchronized long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * Bytes at the start of the file that have all been received.
+     */
+    public synchronized long getContiguousBytes() {
+        return Math.min(size, (long) received.nextClearBit(0) * FileTransferChunk.BLOCK_SIZE);
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == blockCount;
+    }
+
+    /**
+     * Syncs the completed file to disk, closes it and drops its bitmap.
+     */
+    public synchronized void finish() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+        try {
+            channel.force(true);
+        } finally {
+            close();
+        }
+        Files.deleteIfExists(blocksFile);
+    }
+
+    /**
+     * The SHA-256 of the completed file as lowercase hex, hashing whatever did not arrive in order
+     * from disk. Call once, after {@link #finish}.
+     */
+    public synchronized String sha256() throws IOException {
+        if (digested < size) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+                while (digested < size) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - digested));
+                    int read = in.read(buffer, digested);
+                    if (read < 0) {
+                        throw new EOFException("Upload ended " + (size - digested) + " bytes early");
+                    }
+                    digest.update(buffer.flip());
+                    digested += read;
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Saves a checkpoint, closes the channel and retires the upload if nothing was written for
+     * {@code idleNanos}. A retired upload takes no more chunks; {@link #resume} continues it from
+     * the checkpoint.
+     */
+    public synchronized void retireIfIdle(long idleNanos) throws IOException {
+        if (System.nanoTime() - lastWriteAt < idleNanos) {
+            return;
+        }
+        retired = true;
+        if (channel != null) {
+            try {
+                checkpoint();
+            } finally {
+                close();
+            }
+        }
+    }
+
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.tavern.server.data.cache;
+
+import com.tavern.server.data.repository.RoomMemberRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Member ids of each room, kept in memory so that message fan-out and membership checks do not
+ * go to the database.
+ * <p>
+ * A room is loaded from {@code room_member} the first time it is asked for, and kept up to date
+ * by {@link #addMember(int, int)} and {@link #removeMember(int, int)} after every write. Each room
+ * maps to a sorted array that is replaced, never modified, so readers can iterate it freely.
+ */
+public class RoomMembershipCache {
+    private static final Logger logger = LoggerFactory.getLogger(RoomMembershipCache.class);
+    private static final ConcurrentHashMap<Integer, int[]> members = new ConcurrentHashMap<>();
+
+    private RoomMembershipCache() {}
+
+    /**
+     * @return the sorted ids of the room's members; the array must not be modified
+     */
+    public static int[] getMemberIds(int roomId) throws SQLException {
+        int[] ids = members.get(roomId);
+        if (ids != null) {
+            return ids;
+        }
+        try {
+            // Loading under the map's lock means a join or leave for this room waits for the load
+            // and is then applied on top of it, instead of being overwritten by a stale read
+            return members.computeIfAbsent(roomId, RoomMembershipCache::load);
+        } catch (LoadException e) {
+            throw e.getCause();
+        }
+    }
+
+    public static boolean isMember(int roomId, int userId) throws SQLException {
+        return Arrays.binarySearch(getMemberIds(roomId), userId) >= 0;
+    }
+
+    public static void addMember(int roomId, int userId) {
+        members.computeIfPresent(roomId, (id, ids) -> {
+            int index = Arrays.binarySearch(ids, userId);
+            if (index >= 0) {
+                return ids;
+            }
+            int insertAt = -index - 1;
+            int[] updated = new int[ids.length + 1];
+            System.arraycopy(ids, 0, updated, 0, insertAt);
+            updated[insertAt] = userId;
+            System.arraycopy(ids, insertAt, updated, insertAt + 1, ids.length - insertAt);
+            return updated;
+        });
+    }
+
+    public static void removeMember(int roomId, int userId) {
+        members.computeIfPresent(roomId, (id, ids) -> {
+            int index = Arrays.binarySearch(ids, userId);
+            if (index < 0) {
+                return ids;
+            }
+            int[] updated = new int[ids.length - 1];
+            System.arraycopy(ids, 0, updated, 0, index);
+            System.arraycopy(ids, index + 1, updated, index, ids.length - index - 1);
+            return updated;
+        });
+    }
+
+    public static void invalidate(int roomId) {
+        members.remove(roomId);
+    }
+
+    private static int[] load(int roomId) {
+        try {
+            int[] ids = RoomMemberRepository.getRoomMemberIds(roomId);
+            Arrays.sort(ids);
+            logger.debug("Loaded {} members for room {}", ids.length, roomId);
+            return ids;
+        } catch (SQLException e) {
+            throw new LoadException(e);
+        }
+    }
+
+    private static class LoadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LoadException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+}
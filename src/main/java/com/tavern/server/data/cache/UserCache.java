@@ -0,0 +1,113 @@
+package com.tavern.server.data.cache;
+
+import com.tavern.common.model.User;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded least-recently-used cache of users by id and by username.
+ * <p>
+ * Users carry only the hash of their avatar, never the image, so entries stay small. Every lookup
+ * returns a fresh {@link User}, so callers may modify what they get back.
+ * <p>
+ * Callers load misses from the database themselves and hand them to {@link #put}. A load that
+ * started before an invalidation is not cached, so a user read just before it changed never
+ * overwrites the invalidation.
+ */
+public class UserCache {
+    public record Stats(long hits, long misses, long evictions, int size, int capacity) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups > 0 ? (double) hits / lookups : 0;
+        }
+    }
+
+    private record Entry(int id, String username, String displayName, String avatarHash) {
+        User toUser() {
+            return new User(id, username, displayName, avatarHash);
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Integer> idsByUsername = new HashMap<>();
+    private final LinkedHashMap<Integer, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long invalidations;
+
+    public UserCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() <= UserCache.this.capacity) {
+                    return false;
+                }
+                idsByUsername.remove(eldest.getValue().username());
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the cached user, or null on a miss
+     */
+    public synchronized User get(int id) {
+        Entry entry = entries.get(id);
+        record(entry != null);
+        return entry != null ? entry.toUser() : null;
+    }
+
+    /**
+     * @return the cached user, or null on a miss
+     */
+    public synchronized User get(String username) {
+        Integer id = idsByUsername.get(username);
+        Entry entry = id != null ? entries.get(id) : null;
+        record(entry != null);
+        return entry != null ? entry.toUser() : null;
+    }
+
+    /**
+     * Token to pass to {@link #put} for a user about to be loaded from the database.
+     */
+    public synchronized long loadToken() {
+        return invalidations;
+    }
+
+    /**
+     * Caches a user loaded from the database, unless something was invalidated since the load began.
+     */
+    public synchronized void put(User user, long loadToken) {
+        if (user == null || user.getId() < 0 || loadToken != invalidations) {
+            return;
+        }
+        Entry previous = entries.put(user.getId(), new Entry(user.getId(), user.getUsername(), user.getDisplayName(),
+                user.getAvatarHash()));
+        if (previous != null && !previous.username().equals(user.getUsername())) {
+            idsByUsername.remove(previous.username());
+        }
+        idsByUsername.put(user.getUsername(), user.getId());
+    }
+
+    public synchronized void invalidate(int id) {
+        invalidations++;
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            idsByUsername.remove(entry.username());
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), capacity);
+    }
+
+    private void record(boolean hit) {
+        (hit ? hits : misses).increment();
+    }
+}
@@ -0,0 +1,8 @@
+package com.tavern.server.data.gc;
+
+/**
+ * Outcome of one pass of the {@link MessageCollector}: the id range it swept, how many messages it
+ * deleted from that range and how long it took.
+ */
+public record CollectionPass(long fromId, long toId, int reclaimed, int batches, double durationMillis) {
+}
@@ -0,0 +1,38 @@
+package com.tavern.server.data.gc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Messages whose unread rows may still be written. Unread rows are inserted after the message has
+ * been delivered to whoever is online, in a later transaction, so until then a stored message
+ * looks exactly like one that everybody has read.
+ * <p>
+ * A message is registered inside the transaction that stores it, so it is registered before any
+ * other connection can see it, and released once its unread rows have been committed or it turned
+ * out to need none. The collector never goes past the lowest message still registered.
+ */
+public final class FanoutWatermark {
+    // Counts rather than a set: a rolled back insert can hand its id to the next message
+    private static final ConcurrentSkipListMap<Integer, Integer> pending = new ConcurrentSkipListMap<>();
+
+    private FanoutWatermark() {}
+
+    public static void begin(int messageId) {
+        pending.merge(messageId, 1, Integer::sum);
+    }
+
+    public static void end(int messageId) {
+        pending.computeIfPresent(messageId, (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * The highest message id that is safe to collect.
+     *
+     * @param maxCommittedId the highest committed message id, read before calling this
+     */
+    public static long limit(long maxCommittedId) {
+        Map.Entry<Integer, Integer> lowest = pending.firstEntry();
+        return lowest == null ? maxCommittedId : Math.min(maxCommittedId, lowest.getKey() - 1L);
+    }
+}
@@ -0,0 +1,117 @@
+package com.tavern.server.data.gc;
+
+import com.tavern.common.model.Message;
+import com.tavern.common.utils.PropertyFileLoader;
+import com.tavern.server.data.manager.FileBlobManager;
+import com.tavern.server.data.repository.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes messages that nobody has left to read, a little at a time and off the request path.
+ * <p>
+ * A message is kept while any user still has it unread. The collector sweeps the message ids in
+ * ascending order, deleting the unreferenced ones in small id ranges, each in its own short
+ * transaction, and stops after a bounded number of ranges per pass. The next pass continues from
+ * where the previous one stopped, and once the sweep reaches the end it starts over from the
+ * beginning, so messages read long after they were sent are eventually reclaimed too.
+ * <p>
+ * A pass stops below the lowest message that is still being fanned out (see
+ * {@link FanoutWatermark}), so a message whose unread rows have not been committed yet cannot be
+ * mistaken for a read one. Messages younger than the retention period are kept even once read, as
+ * message history. A message that shared a file is kept for the file retention period too, and
+ * the upload is deleted with it.
+ */
+public class MessageCollector {
+    private static final Logger logger = LoggerFactory.getLogger(MessageCollector.class);
+
+    private final int batchSize;
+    private final int maxBatchesPerPass;
+    private final Duration retention;
+    private final Duration fileRetention;
+    private long cursor;
+    private volatile CollectionPass lastPass;
+    private final AtomicLong totalReclaimed = new AtomicLong();
+
+    public MessageCollector(PropertyFileLoader properties) {
+        this.batchSize = Math.max(1, Integer.parseInt(properties.getProperty("db.gc.batch.size", "500")));
+        this.maxBatchesPerPass = Math.max(1, Integer.parseInt(properties.getProperty("db.gc.max.batches", "20")));
+        this.retention = Duration.ofDays(Math.max(0, Integer.parseInt(properties.getProperty("db.message.retention.days", "30"))));
+        this.fileRetention = Duration.ofDays(Math.max(0, Integer.parseInt(properties.getProperty("db.file.retention.days", "30"))));
+    }
+
+    /**
+     * Runs one bounded pass. Meant to be scheduled; passes must not run concurrently.
+     */
+    public void collect() {
+        long startedAt = System.nanoTime();
+        long from = cursor;
+        int reclaimed = 0;
+        int batches = 0;
+        long limit = Long.MAX_VALUE;
+        try {
+            // Committed messages were registered before their commit, so read the highest id first
+            limit = FanoutWatermark.limit(MessageRepository.getMaxMessageId());
+            Instant now = Instant.now();
+            Timestamp sentBefore = Timestamp.from(now.minus(retention));
+            Timestamp filesSentBefore = Timestamp.from(now.minus(fileRetention));
+
+            while (batches < maxBatchesPerPass && cursor < limit) {
+                long upper = Math.min(cursor + batchSize, limit);
+                List<Message> deleted = MessageRepository.deleteUnreadByNobody(cursor, upper, sentBefore, filesSentBefore);
+                releaseFiles(deleted);
+                reclaimed += deleted.size();
+                cursor = upper;
+                batches++;
+            }
+        } catch (SQLException e) {
+            logger.error("Message collection failed after {} batches: {}", batches, e.getMessage(), e);
+        }
+
+        CollectionPass pass = new CollectionPass(from, cursor, reclaimed, batches, (System.nanoTime() - startedAt) / 1e6);
+        if (cursor == limit) {
+            // Swept everything that is safe, start over at the next pass. A cursor past the limit
+            // waits there for a message that is still being fanned out
+            cursor = 0;
+        }
+        lastPass = pass;
+        totalReclaimed.addAndGet(reclaimed);
+        if (reclaimed > 0) {
+            logger.info("Message collection reclaimed {} messages from ids ({}, {}] in {} batches, {}ms",
+                    reclaimed, from, pass.toId(), batches, String.format("%.2f", pass.durationMillis()));
+        } else {
+            logger.debug("Message collection swept ids ({}, {}] in {} batches, nothing to reclaim, {}ms",
+                    from, pass.toId(), batches, String.format("%.2f", pass.durationMillis()));
+        }
+    }
+
+    private static void releaseFiles(List<Message> deleted) {
+        for (Message message : deleted) {
+            if (message.getTransferId() == null) {
+                continue;
+            }
+            try {
+                FileBlobManager.releaseUpload(message.getTransferId());
+            } catch (SQLException | IOException e) {
+                logger.error("Error releasing upload {} of deleted message {}: {}", message.getTransferId(),
+                        message.getId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    public CollectionPass getLastPass() {
+        return lastPass;
+    }
+
+    public long getTotalReclaimed() {
+        return totalReclaimed.get();
+    }
+}
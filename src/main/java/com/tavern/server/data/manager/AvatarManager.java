@@ -0,0 +1,197 @@
+package com.tavern.server.data.manager;
+
+import com.tavern.common.model.AvatarSize;
+import com.tavern.server.data.repository.AvatarRepository;
+import com.tavern.server.data.repository.AvatarRepository.InlineAvatarTable;
+import com.tavern.server.utils.ServerDatabaseManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Avatars of users and rooms, stored once per distinct image under the SHA-256 of the uploaded
+ * bytes. Every avatar is rendered at each {@link AvatarSize} when it is stored, so users and rooms
+ * only carry the hash and clients fetch the size they draw.
+ */
+public class AvatarManager {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarManager.class);
+    private static final int MAX_IMAGE_BYTES = 8 * 1024 * 1024;
+    // A few kilobytes of PNG can claim a huge canvas, so the size is checked before decoding
+    private static final int MAX_IMAGE_SIDE = 4096;
+
+    private AvatarManager() {}
+
+    /**
+     * Stores an uploaded avatar image, rendering it at every size the first time it is seen.
+     *
+     * @return the hash to refer to it by, or null if there is no image or it cannot be read
+     */
+    public static String storeAvatar(byte[] image) throws SQLException {
+        if (image == null || image.length == 0) {
+            return null;
+        }
+        if (image.length > MAX_IMAGE_BYTES) {
+            logger.warn("Ignoring avatar of {} bytes, the limit is {}", image.length, MAX_IMAGE_BYTES);
+            return null;
+        }
+
+        String hash = hash(image);
+        try (Connection conn = ServerDatabaseManager.getReadConnection()) {
+            if (AvatarRepository.hasAvatar(conn, hash)) {
+                return hash;
+            }
+        }
+
+        EnumMap<AvatarSize, byte[]> renderings;
+        try {
+            renderings = render(image);
+        } catch (IOException e) {
+            logger.warn("Ignoring avatar that could not be read as an image: {}", e.getMessage());
+            return null;
+        }
+
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (var rendering : renderings.entrySet()) {
+                    AvatarRepository.saveAvatar(conn, hash, rendering.getKey().getPixels(), rendering.getValue());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        logger.debug("Stored avatar {}", hash);
+        return hash;
+    }
+
+    /**
+     * @return the PNG rendering of the avatar, or null if there is none with that hash
+     */
+    public static byte[] getAvatar(String hash, AvatarSize size) {
+        try {
+            return AvatarRepository.getAvatar(hash, size.getPixels());
+        } catch (SQLException e) {
+            logger.error("Error getting avatar {}: {}", hash, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Moves the avatar images that users and rooms kept inline before the avatar store into it.
+     * Rows already moved are skipped, so this is cheap to run at every start.
+     *
+     * @return the number of rows moved
+     */
+    public static int moveInlineAvatars() {
+        int moved = 0;
+        for (InlineAvatarTable owner : InlineAvatarTable.values()) {
+            try {
+                List<Integer> ids = AvatarRepository.getIdsWithInlineAvatar(owner);
+                for (int id : ids) {
+                    AvatarRepository.replaceInlineAvatar(owner, id,
+                            storeAvatar(AvatarRepository.getInlineAvatar(owner, id)));
+                    if (owner == InlineAvatarTable.USER) {
+                        UserManager.forgetCachedUser(id);
+                    }
+                }
+                moved += ids.size();
+            } catch (SQLException e) {
+                logger.error("Error moving inline avatars of {} into the avatar store: {}", owner, e.getMessage(), e);
+            }
+        }
+        if (moved > 0) {
+            logger.info("Moved {} inline avatars into the avatar store", moved);
+        }
+        return moved;
+    }
+
+    private static String hash(byte[] image) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(image));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Decodes the image, refusing to if its header claims more than {@link #MAX_IMAGE_SIDE} pixels
+     * on either side.
+     */
+    private static BufferedImage decode(byte[] data) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (width > MAX_IMAGE_SIDE || height > MAX_IMAGE_SIDE) {
+                    throw new IOException("image of " + width + "x" + height + " is larger than "
+                            + MAX_IMAGE_SIDE + "x" + MAX_IMAGE_SIDE);
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Crops the image to a centred square and scales it down to every size, largest first, each
+     * one from the previous so that no step shrinks by more than half.
+     */
+    private static EnumMap<AvatarSize, byte[]> render(byte[] data) throws IOException {
+        BufferedImage source = decode(data);
+        int side = Math.min(source.getWidth(), source.getHeight());
+        BufferedImage current = source.getSubimage((source.getWidth() - side) / 2, (source.getHeight() - side) / 2,
+                side, side);
+
+        EnumMap<AvatarSize, byte[]> renderings = new EnumMap<>(AvatarSize.class);
+        AvatarSize[] sizes = AvatarSize.values();
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            int pixels = sizes[i].getPixels();
+            while (current.getWidth() / 2 > pixels) {
+                current = scale(current, current.getWidth() / 2);
+            }
+            current = scale(current, pixels);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(current, "png", out);
+            renderings.put(sizes[i], out.toByteArray());
+        }
+        return renderings;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int side) {
+        BufferedImage scaled = new BufferedImage(side, side, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, side, side, null);
+        g.dispose();
+        return scaled;
+    }
+}
@@ -0,0 +1,279 @@
+package com.tavern.server.data.manager;
+
+import com.tavern.common.utils.AppDataManager;
+import com.tavern.server.core.UploadSession;
+import com.tavern.server.data.repository.FileBlobRepository;
+import com.tavern.server.data.repository.FileTransferRepository;
+import com.tavern.server.data.repository.FileTransferRepository.DeletedUpload;
+import com.tavern.server.data.repository.FileTransferRepository.UnstoredUpload;
+import com.tavern.server.utils.ServerDatabaseManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Uploaded files, stored once per distinct content under the SHA-256 of their bytes. Every
+ * completed upload points at its blob, and a blob is deleted with the last upload pointing at it,
+ * so a file shared into many rooms takes the disk space of one. An upload is deleted when the
+ * message collector deletes the message that shared it.
+ * <p>
+ * A new upload can link to a stored blob without sending the bytes, but knowing the hash is not
+ * enough: hashes get passed around without the files. The uploader must answer a
+ * {@link Challenge}, which takes the content itself.
+ */
+public class FileBlobManager {
+    private static final Logger logger = LoggerFactory.getLogger(FileBlobManager.class);
+    private static final Path blobDirectory = AppDataManager.getAppDataPath().resolve("uploads").resolve("blobs");
+    private static final int CHALLENGE_NONCE_BYTES = 16;
+    private static final int CHALLENGE_RANGE_BYTES = 64 * 1024;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Proof of holding a file: the SHA-256 of {@code nonce} followed by the {@code length} bytes of
+     * the file at {@code offset}. The nonce is fresh every time, so a proof cannot be reused, and
+     * for a file smaller than the range it keeps the answer from being the file's own hash.
+     */
+    public record Challenge(byte[] nonce, long offset, int length) {}
+
+    static {
+        try {
+            Files.createDirectories(blobDirectory);
+        } catch (IOException e) {
+            logger.error("Failed to create blob directory: {}", e.getMessage(), e);
+        }
+    }
+
+    private FileBlobManager() {}
+
+    public static Path getBlobPath(String hash) {
+        return blobDirectory.resolve(hash);
+    }
+
+    public static boolean hasBlob(String hash, long size) {
+        if (!isHash(hash)) {
+            return false;
+        }
+        try (Connection conn = ServerDatabaseManager.getReadConnection()) {
+            return FileBlobRepository.hasBlob(conn, hash, size) && Files.exists(getBlobPath(hash));
+        } catch (SQLException e) {
+            logger.error("Error looking up blob {}: {}", hash, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * A new challenge over a random range of a file of {@code size} bytes.
+     */
+    public static Challenge newChallenge(long size) {
+        byte[] nonce = new byte[CHALLENGE_NONCE_BYTES];
+        random.nextBytes(nonce);
+        int length = (int) Math.min(size, CHALLENGE_RANGE_BYTES);
+        return new Challenge(nonce, random.nextLong(size - length + 1), length);
+    }
+
+    /**
+     * @return whether {@code proof} answers the challenge for the stored blob
+     */
+    public static boolean verifyProof(String hash, Challenge challenge, byte[] proof) {
+        if (!isHash(hash) || proof == null) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(proof, prove(getBlobPath(hash), challenge));
+        } catch (IOException e) {
+            logger.warn("Could not read blob {} to check a proof: {}", hash, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Answers a challenge from the file's content.
+     */
+    private static byte[] prove(Path file, Challenge challenge) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(challenge.nonce());
+        ByteBuffer range = ByteBuffer.allocate(challenge.length());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (range.hasRemaining()) {
+                if (channel.read(range, challenge.offset() + range.position()) < 0) {
+                    throw new EOFException("file ends before the challenged range");
+                }
+            }
+        }
+        digest.update(range.flip());
+        return digest.digest();
+    }
+
+    /**
+     * Completes an upload without its data by pointing it at a blob that is already stored.
+     *
+     * @return false if there is no such blob, in which case the file has to be sent
+     */
+    public static boolean linkUpload(String transferId, String hash, long size) throws SQLException {
+        if (!isHash(hash)) {
+            return false;
+        }
+        Path blob = getBlobPath(hash);
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (!FileBlobRepository.hasBlob(conn, hash, size) || !Files.exists(blob)) {
+                    conn.rollback();
+                    return false;
+                }
+                FileBlobRepository.addReference(conn, hash, size);
+                FileTransferRepository.setBlob(conn, transferId, hash, blob.toString(), "COMPLETED");
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        logger.debug("Linked upload {} to stored blob {}", transferId, hash);
+        return true;
+    }
+
+    /**
+     * Moves the file of a completed upload into the store and points the upload at the blob. Same
+     * content replaces the stored copy rather than trusting that it is still there, since a blob
+     * being released may be deleted right after this looks at it.
+     *
+     * @return where the upload's file now is
+     */
+    public static Path storeUpload(String transferId, Path file, String hash, long size)
+            throws IOException, SQLException {
+        Path blob = getBlobPath(hash);
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                int references = FileBlobRepository.addReference(conn, hash, size);
+                if (!FileTransferRepository.setBlob(conn, transferId, hash, blob.toString(), "COMPLETED")) {
+                    // Released while it was still being sent
+                    Files.delete(file);
+                    throw new IOException("Upload " + transferId + " no longer exists");
+                }
+                Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                conn.commit();
+                logger.debug("Stored upload {} as blob {}, {} uploads share it", transferId, hash, references);
+            } catch (SQLException | IOException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Deletes an upload, and its blob if no other upload points at it. An upload that was never
+     * stored takes whatever of its file arrived with it.
+     */
+    public static void releaseUpload(String transferId) throws SQLException, IOException {
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                DeletedUpload upload = FileTransferRepository.deleteUpload(conn, transferId);
+                if (upload == null) {
+                    conn.rollback();
+                    return;
+                }
+                String hash = upload.blobHash();
+                if (hash == null) {
+                    UploadSession.deleteFiles(Paths.get(upload.filePath()));
+                } else if (FileBlobRepository.removeReference(conn, hash) <= 0) {
+                    // Before the commit: the writer connection keeps uploads from being stored or
+                    // linked to this blob until it is gone from both the table and the disk
+                    Files.deleteIfExists(getBlobPath(hash));
+                    logger.debug("Deleted blob {} with its last upload {}", hash, transferId);
+                }
+                conn.commit();
+            } catch (SQLException | IOException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Moves the files of uploads completed before the blob store into it, merging duplicates.
+     * Uploads already moved are skipped, so this is cheap to run at every start.
+     *
+     * @return the number of uploads moved
+     */
+    public static int moveUnstoredUploads() {
+        List<UnstoredUpload> uploads;
+        try {
+            uploads = FileTransferRepository.getUnstoredUploads();
+        } catch (SQLException e) {
+            logger.error("Error listing uploads to move into the blob store: {}", e.getMessage(), e);
+            return 0;
+        }
+
+        int moved = 0;
+        for (UnstoredUpload upload : uploads) {
+            Path file = Paths.get(upload.filePath());
+            if (!Files.exists(file)) {
+                continue;
+            }
+            try {
+                storeUpload(upload.transferId(), file, sha256(file), Files.size(file));
+                moved++;
+            } catch (IOException | SQLException e) {
+                logger.error("Error moving upload {} into the blob store: {}", upload.transferId(), e.getMessage(), e);
+            }
+        }
+        if (moved > 0) {
+            logger.info("Moved {} uploads into the blob store", moved);
+        }
+        return moved;
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Hashes come from clients and name files, so only lowercase hex SHA-256 is accepted.
+     */
+    private static boolean isHash(String hash) {
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+}
@@ -1,16 +1,23 @@
 package com.tavern.server.data.manager;
 
 import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
+import com.tavern.common.model.UnreadCount;
 import com.tavern.common.model.User;
+import com.tavern.server.data.gc.FanoutWatermark;
+import com.tavern.server.data.repository.FileTransferRepository;
 import com.tavern.server.data.repository.MessageRepository;
 import com.tavern.server.data.repository.RoomMemberRepository;
-import com.tavern.server.data.repository.UserRepository;
 import com.tavern.server.data.repository.UserUnreadMessageRepository;
+import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageManager {
     private static final Logger logger = LoggerFactory.getLogger(MessageManager.class);
@@ -20,14 +27,14 @@ public class MessageManager {
     public static Message sendMessage(Message message) {
         try {
             // Validate sender exists
-            if (UserRepository.getUserById(message.getSenderId()) == null) {
+            if (UserManager.getUserById(message.getSenderId()) == null) {
                 logger.warn("Error sending message: Sender ID {} does not exist", message.getSenderId());
                 return null;
             }
 
             if (message.isDirect()) {
                 // Validate receiver exists for direct messages
-                if (UserRepository.getUserById(message.getReceiverId()) == null) {
+                if (UserManager.getUserById(message.getReceiverId()) == null) {
                     logger.warn("Error sending message: Direct message receiver ID {} does not exist", message.getReceiverId());
                     return null;
                 }
@@ -49,13 +56,9 @@ public class MessageManager {
                     UserUnreadMessageRepository.markMessageAsUnread(message.getReceiverId(), createdMessage.getId());
                 } else {
                     // For room messages, mark as unread for all room members except the sender
-                    try {
-                        List<com.tavern.common.model.User> roomMembers = RoomMemberRepository.getRoomMembers(message.getRoomId());
-                        for (com.tavern.common.model.User member : roomMembers) {
-                            if (member.getId() != message.getSenderId()) {
-                                UserUnreadMessageRepository.markMessageAsUnread(member.getId(), createdMessage.getId());
-                            }
-                        }
+                    try (Connection conn = ServerDatabaseManager.getConnection()) {
+                        UserUnreadMessageRepository.markRoomMessageAsUnread(conn, createdMessage.getId(),
+                                message.getRoomId(), message.getSenderId(), new int[0]);
                     } catch (SQLException e) {
                         logger.error("Error marking message as unread for room members: {}", e.getMessage(), e);
                     }
@@ -78,6 +81,88 @@ public class MessageManager {
         }
     }
 
+    /**
+     * Stores the message through the group commit writer. Completes with the stored message once it
+     * has been committed, or with null if it could not be stored.
+     * <p>
+     * The message counts as being fanned out until {@link #markMessageAsUnreadAsync},
+     * {@link #markRoomMessageAsUnreadAsync} or {@link #finishFanout} is called for it, and the
+     * message collector leaves it alone until then.
+     * <p>
+     * A message that shares a file is refused unless the upload is the sender's own, into the same
+     * room or direct conversation.
+     */
+    public static CompletableFuture<Message> createMessageAsync(Message message) {
+        if (message.getTransferId() != null && !isOwnUpload(message)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        AtomicInteger registered = new AtomicInteger();
+        return ServerDatabaseManager.submitWrite(conn -> {
+                    Message created = MessageRepository.createMessage(conn, message);
+                    // Before the commit, so the collector cannot see the message unregistered
+                    FanoutWatermark.begin(created.getId());
+                    registered.set(created.getId());
+                    return created;
+                })
+                .exceptionally(e -> {
+                    logger.error("Error creating message: {}", e.getMessage(), e);
+                    if (registered.get() != 0) {
+                        FanoutWatermark.end(registered.get());
+                    }
+                    return null;
+                });
+    }
+
+    private static boolean isOwnUpload(Message message) {
+        try {
+            if (FileTransferRepository.isUploadFrom(message.getTransferId(), message.getSenderId(), message.isDirect(),
+                    message.isDirect() ? message.getReceiverId() : message.getRoomId())) {
+                return true;
+            }
+            logger.warn("Error sending message: upload {} is not one of sender ID {} in this conversation",
+                    message.getTransferId(), message.getSenderId());
+        } catch (SQLException e) {
+            logger.error("Error looking up upload {}: {}", message.getTransferId(), e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Marks the message as unread through the group commit writer, completing once committed. Ends
+     * the message's fan-out.
+     */
+    public static CompletableFuture<Boolean> markMessageAsUnreadAsync(int userId, Message message) {
+        return ServerDatabaseManager.submitWrite(conn -> UserUnreadMessageRepository.markMessageAsUnread(conn, userId, message.getId()))
+                .exceptionally(e -> {
+                    logger.error("Error marking message as unread for user {}: {}", userId, e.getMessage(), e);
+                    return false;
+                })
+                .whenComplete((marked, e) -> finishFanout(message));
+    }
+
+    /**
+     * Marks a room message as unread, through the group commit writer, for every member of its room
+     * other than the sender and the members it was delivered to. Completes with the number of
+     * members it was marked for, or -1 on failure. Ends the message's fan-out.
+     */
+    public static CompletableFuture<Integer> markRoomMessageAsUnreadAsync(Message message, int[] deliveredTo) {
+        return ServerDatabaseManager.submitWrite(conn -> UserUnreadMessageRepository.markRoomMessageAsUnread(conn,
+                        message.getId(), message.getRoomId(), message.getSenderId(), deliveredTo))
+                .exceptionally(e -> {
+                    logger.error("Error marking message as unread in room {}: {}", message.getRoomId(), e.getMessage(), e);
+                    return -1;
+                })
+                .whenComplete((marked, e) -> finishFanout(message));
+    }
+
+    /**
+     * Ends the fan-out of a message stored by {@link #createMessageAsync} that reached everyone and
+     * needs no unread rows.
+     */
+    public static void finishFanout(Message message) {
+        FanoutWatermark.end(message.getId());
+    }
+
     public static boolean markMessageAsUnread(int userId, Message message) {
         try {
             return UserUnreadMessageRepository.markMessageAsUnread(userId, message.getId());
@@ -115,6 +200,29 @@ public class MessageManager {
         }
     }
 
+    /**
+     * One page of history for a room the user is a member of, or of the user's direct conversation
+     * with {@code conversationId}, nearest to the cursor first. Returns null if the user may not
+     * read the conversation or the page could not be read.
+     */
+    public static List<Message> getMessagePage(int userId, boolean direct, int conversationId, MessageCursor cursor,
+                                               boolean older, int limit) {
+        try {
+            if (direct) {
+                return MessageRepository.getDirectMessagePage(userId, conversationId, cursor, older, limit);
+            }
+            if (!RoomMemberRepository.isUserInRoom(userId, conversationId)) {
+                logger.warn("User {} asked for the history of room {} without being a member", userId, conversationId);
+                return null;
+            }
+            return MessageRepository.getRoomMessagePage(conversationId, cursor, older, limit);
+        } catch (SQLException e) {
+            logger.error("Error getting message page for user {} in {} {}: {}", userId,
+                    direct ? "direct conversation with" : "room", conversationId, e.getMessage(), e);
+            return null;
+        }
+    }
+
     public static boolean deleteMessage(int messageId) {
         try {
             // First, remove all unread message records for this message
@@ -152,6 +260,17 @@ public class MessageManager {
         }
     }
 
+    public static boolean markMessagesAsRead(int userId, int[] messageIds) {
+        try {
+            UserUnreadMessageRepository.markMessagesAsRead(userId, messageIds);
+            return true;
+        } catch (SQLException e) {
+            logger.error("Error marking {} messages as read for user {}: {}",
+                    messageIds.length, userId, e.getMessage(), e);
+            return false;
+        }
+    }
+
     public static boolean markAllRoomMessagesAsRead(int userId, int roomId) {
         try {
             return UserUnreadMessageRepository.markAllMessagesAsRead(userId, roomId);
@@ -172,6 +291,18 @@ public class MessageManager {
         }
     }
 
+    /**
+     * @return the user's unread count of every conversation with unread messages, or null on error
+     */
+    public static List<UnreadCount> getUnreadCounts(int userId) {
+        try {
+            return UserUnreadMessageRepository.getUnreadCounts(userId);
+        } catch (SQLException e) {
+            logger.error("Error getting unread counts for user {}: {}", userId, e.getMessage(), e);
+            return null;
+        }
+    }
+
     public static int getUnreadMessageCount(int userId) {
         try {
             return UserUnreadMessageRepository.getUnreadMessageCount(userId);
@@ -200,8 +331,4 @@ public class MessageManager {
             return 0;
         }
     }
-
-    public static void cleanupMessages() {
-        UserUnreadMessageRepository.cleanupMessages();
-    }
 }
@@ -2,6 +2,7 @@ package com.tavern.server.data.manager;
 
 import com.tavern.common.model.Room;
 import com.tavern.common.model.User;
+import com.tavern.server.data.cache.RoomMembershipCache;
 import com.tavern.server.data.repository.RoomMemberRepository;
 import com.tavern.server.data.repository.RoomRepository;
 import org.slf4j.Logger;
@@ -23,7 +24,7 @@ public class RoomManager {
                 return null;
             }
 
-            Room newRoom = new Room(roomName, avatarData);
+            Room newRoom = new Room(roomName, AvatarManager.storeAvatar(avatarData));
             return RoomRepository.createRoom(newRoom);
 
         } catch (SQLException e) {
@@ -40,6 +41,7 @@ public class RoomManager {
             }
 
             RoomMemberRepository.addRoomMember(roomId, userId);
+            RoomMembershipCache.addMember(roomId, userId);
             return true;
         } catch (SQLException e) {
             logger.error("Error joining room {}: {}", roomId, e.getMessage(), e);
@@ -50,6 +52,7 @@ public class RoomManager {
     public static boolean leaveRoom(int userId, int roomId) {
         try {
             RoomMemberRepository.removeRoomMember(roomId, userId);
+            RoomMembershipCache.removeMember(roomId, userId);
             return true;
         } catch (SQLException e) {
             logger.error("Error leaving room {}: {}", roomId, e.getMessage(), e);
@@ -66,6 +69,18 @@ public class RoomManager {
         }
     }
 
+    /**
+     * Member ids of the room from the membership cache. The returned array must not be modified.
+     */
+    public static int[] getMemberIdsOfRoom(int roomId) {
+        try {
+            return RoomMembershipCache.getMemberIds(roomId);
+        } catch (SQLException e) {
+            logger.error("Error getting member ids of room {}: {}", roomId, e.getMessage(), e);
+            return null;
+        }
+    }
+
     public static List<Room> getRoomsForUser(int userId) {
         try {
             return RoomMemberRepository.getUserRooms(userId);
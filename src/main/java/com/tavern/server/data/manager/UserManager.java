@@ -1,20 +1,28 @@
 package com.tavern.server.data.manager;
 
 import com.tavern.common.model.User;
+import com.tavern.server.core.Server;
+import com.tavern.server.data.cache.UserCache;
 import com.tavern.server.data.repository.UserRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class UserManager {
     private static final Logger logger = LoggerFactory.getLogger(UserManager.class);
+    private static final UserCache cache =
+            new UserCache(Integer.parseInt(Server.properties.getProperty("cache.users.max.entries", "10000")));
 
     private UserManager() { }
 
     public static boolean userExists(String username) throws SQLException {
         try {
-            User user = UserRepository.getUserByUsername(username);
+            User user = getUserByUsername(username);
             return user != null;
         } catch (SQLException e) {
             logger.error("Error checking if user exists: {}", e.getMessage(), e);
@@ -24,7 +32,7 @@ public class UserManager {
 
     public static User login(String username) {
         try {
-            return UserRepository.getUserByUsername(username);
+            return getUserByUsername(username);
         } catch (SQLException e) {
             logger.error("Error during login attempt for user {}: {}", username, e.getMessage(), e);
             return null;
@@ -33,18 +41,107 @@ public class UserManager {
 
     public static User registerUser(String username, String displayName, byte[] avatar) {
         try {
-            if (UserRepository.getUserByUsername(username) != null) {
+            if (getUserByUsername(username) != null) {
                 logger.info("Registration failed: User {} already exists", username);
                 return null;
             }
 
-            User user = new User(username, displayName, avatar);
+            User user = new User(username, displayName, AvatarManager.storeAvatar(avatar));
 
             logger.info("New user created: {}", username);
-            return UserRepository.createUser(user);
+            long token = cache.loadToken();
+            User created = UserRepository.createUser(user);
+            cache.put(created, token);
+            return created;
         } catch (SQLException e) {
             logger.error("Error registering user {}: {}", username, e.getMessage(), e);
             return null;
         }
     }
+
+    /**
+     * Looks a user up through the user cache.
+     *
+     * @return the user, or null if there is none with that id
+     */
+    public static User getUserById(int id) throws SQLException {
+        User user = cache.get(id);
+        if (user == null) {
+            long token = cache.loadToken();
+            user = UserRepository.getUserById(id);
+            cache.put(user, token);
+        }
+        return user;
+    }
+
+    /**
+     * Looks a user up through the user cache.
+     *
+     * @return the user, or null if there is none with that username
+     */
+    public static User getUserByUsername(String username) throws SQLException {
+        User user = cache.get(username);
+        if (user == null) {
+            long token = cache.loadToken();
+            user = UserRepository.getUserByUsername(username);
+            cache.put(user, token);
+        }
+        return user;
+    }
+
+    /**
+     * Looks users up through the user cache, reading all the misses in one query. Users come back
+     * once each in the order of the ids; ids that do not exist are left out.
+     */
+    public static List<User> getUsersById(List<Integer> userIds) throws SQLException {
+        Map<Integer, User> found = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int id : userIds) {
+            User user = cache.get(id);
+            if (user != null) {
+                found.put(id, user);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long token = cache.loadToken();
+            for (User user : UserRepository.getUsersById(missing)) {
+                cache.put(user, token);
+                found.put(user.getId(), user);
+            }
+        }
+
+        List<User> users = new ArrayList<>(found.size());
+        for (int id : userIds) {
+            User user = found.remove(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Stores the new avatar and points the user at it.
+     *
+     * @return the hash of the avatar, or null if the image could not be read and the user now has none
+     */
+    public static String updateUserAvatar(int userId, byte[] avatarData) throws SQLException {
+        String avatarHash = AvatarManager.storeAvatar(avatarData);
+        UserRepository.updateUserAvatar(userId, avatarHash);
+        cache.invalidate(userId);
+        return avatarHash;
+    }
+
+    /**
+     * Drops a user from the user cache after their row was changed outside of this class.
+     */
+    public static void forgetCachedUser(int userId) {
+        cache.invalidate(userId);
+    }
+
+    public static UserCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
 }
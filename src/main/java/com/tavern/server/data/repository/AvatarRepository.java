@@ -0,0 +1,126 @@
+package com.tavern.server.data.repository;
+
+import com.tavern.server.utils.ServerDatabaseManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AvatarRepository {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarRepository.class);
+
+    /**
+     * Tables whose rows used to keep their avatar image inline, in an {@code avatar} BLOB column.
+     */
+    public enum InlineAvatarTable {
+        USER, ROOM;
+
+        private String table() {
+            return name().toLowerCase();
+        }
+    }
+
+    private AvatarRepository() {}
+
+    public static boolean hasAvatar(Connection conn, String hash) throws SQLException {
+        String sql = "SELECT 1 FROM avatar WHERE hash = ? LIMIT 1";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            logger.error("Error looking up avatar {}", hash, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Stores one rendering of an avatar. A rendering that is already stored is left as it is, the
+     * same hash always stands for the same image.
+     */
+    public static void saveAvatar(Connection conn, String hash, int size, byte[] image) throws SQLException {
+        String sql = "INSERT OR IGNORE INTO avatar (hash, size, image) VALUES (?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            pstmt.setInt(2, size);
+            pstmt.setBytes(3, image);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error saving {}px rendering of avatar {}", size, hash, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the PNG rendering, or null if there is no avatar with that hash
+     */
+    public static byte[] getAvatar(String hash, int size) throws SQLException {
+        String sql = "SELECT image FROM avatar WHERE hash = ? AND size = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            pstmt.setInt(2, size);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getBytes("image") : null;
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting {}px rendering of avatar {}", size, hash, e);
+            throw e;
+        }
+    }
+
+    public static List<Integer> getIdsWithInlineAvatar(InlineAvatarTable owner) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        String sql = "SELECT id FROM " + owner.table() + " WHERE avatar IS NOT NULL";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            logger.error("Error listing inline avatars of {}", owner.table(), e);
+            throw e;
+        }
+        return ids;
+    }
+
+    public static byte[] getInlineAvatar(InlineAvatarTable owner, int id) throws SQLException {
+        String sql = "SELECT avatar FROM " + owner.table() + " WHERE id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, id);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getBytes(1) : null;
+        } catch (SQLException e) {
+            logger.error("Error reading inline avatar of {} {}", owner.table(), id, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Points the row at its avatar in the store, or at none if {@code hash} is null, and drops the
+     * inline image.
+     */
+    public static void replaceInlineAvatar(InlineAvatarTable owner, int id, String hash) throws SQLException {
+        String sql = "UPDATE " + owner.table() + " SET avatar_hash = ?, avatar = NULL WHERE id = ?";
+        try (Connection conn = ServerDatabaseManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            pstmt.setInt(2, id);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error moving inline avatar of {} {}", owner.table(), id, e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.tavern.server.data.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class FileBlobRepository {
+    private static final Logger logger = LoggerFactory.getLogger(FileBlobRepository.class);
+
+    private FileBlobRepository() {}
+
+    public static boolean hasBlob(Connection conn, String hash, long size) throws SQLException {
+        String sql = "SELECT 1 FROM file_blob WHERE hash = ? AND size = ? AND ref_count > 0";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            pstmt.setLong(2, size);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            logger.error("Error looking up file blob {}", hash, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Counts one more upload pointing at a blob, adding the blob if it is new.
+     *
+     * @return the number of uploads now pointing at it
+     */
+    public static int addReference(Connection conn, String hash, long size) throws SQLException {
+        String sql = """
+                INSERT INTO file_blob (hash, size, ref_count) VALUES (?, ?, 1)
+                ON CONFLICT (hash) DO UPDATE SET ref_count = ref_count + 1
+                RETURNING ref_count
+                """;
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, hash);
+            pstmt.setLong(2, size);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            logger.error("Error adding a reference to file blob {}", hash, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Counts one upload less pointing at a blob, and forgets the blob once none do.
+     *
+     * @return the number of uploads still pointing at it
+     */
+    public static int removeReference(Connection conn, String hash) throws SQLException {
+        String update = "UPDATE file_blob SET ref_count = ref_count - 1 WHERE hash = ? RETURNING ref_count";
+        String delete = "DELETE FROM file_blob WHERE hash = ? AND ref_count <= 0";
+        try (PreparedStatement pstmt = conn.prepareStatement(update)) {
+
+            pstmt.setString(1, hash);
+            int remaining;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                remaining = rs.next() ? rs.getInt(1) : 0;
+            }
+            if (remaining <= 0) {
+                try (PreparedStatement deleteStmt = conn.prepareStatement(delete)) {
+                    deleteStmt.setString(1, hash);
+                    deleteStmt.executeUpdate();
+                }
+            }
+            return remaining;
+        } catch (SQLException e) {
+            logger.error("Error removing a reference to file blob {}", hash, e);
+            throw e;
+        }
+    }
+}
@@ -2,10 +2,13 @@ package com.tavern.server.data.repository;
 
 import com.tavern.common.model.network.FileTransferRequest;
 import com.tavern.common.model.network.FileTransferUploadRequest;
+import com.tavern.common.utils.Inserts;
 import com.tavern.server.utils.ServerDatabaseManager;
 
 import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileTransferRepository {
     private FileTransferRepository() {
@@ -43,27 +46,20 @@ public class FileTransferRepository {
                 INSERT INTO file_transfer (
                     file_name, file_path, transfer_id, file_size, sender_id, room_id, receiver_id, is_direct, status
                 ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 'PENDING')
+                RETURNING id
                 """;
 
-        try (Connection conn = ServerDatabaseManager.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setString(1, fileName);
-            pstmt.setString(2, filePath);
-            pstmt.setString(3, transferId);
-            pstmt.setLong(4, new File(filePath).length());
-            pstmt.setInt(5, 0); // No sender for download
-            pstmt.setInt(6, roomId);
-            pstmt.setInt(7, requesterId);
-            pstmt.setBoolean(8, false);
-
-            pstmt.executeUpdate();
-            try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
-                }
-            }
-            return -1;
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            return Inserts.insert(conn, sql, pstmt -> {
+                pstmt.setString(1, fileName);
+                pstmt.setString(2, filePath);
+                pstmt.setString(3, transferId);
+                pstmt.setLong(4, new File(filePath).length());
+                pstmt.setInt(5, 0); // No sender for download
+                pstmt.setInt(6, roomId);
+                pstmt.setInt(7, requesterId);
+                pstmt.setBoolean(8, false);
+            }, rs -> rs.getInt("id"));
         }
     }
 
@@ -74,27 +70,20 @@ public class FileTransferRepository {
                 INSERT INTO file_transfer (
                     file_name, file_path, transfer_id, file_size, sender_id, room_id, receiver_id, is_direct, status
                 ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 'PENDING')
+                RETURNING id
                 """;
 
-        try (Connection conn = ServerDatabaseManager.getConnection();
-                PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setString(1, fileName);
-            pstmt.setString(2, filePath);
-            pstmt.setString(3, transferId);
-            pstmt.setLong(4, fileSize);
-            pstmt.setInt(5, senderId);
-            pstmt.setInt(6, roomId);
-            pstmt.setInt(7, receiverId);
-            pstmt.setBoolean(8, isDirect);
-
-            pstmt.executeUpdate();
-            try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
-                }
-            }
-            return -1;
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            return Inserts.insert(conn, sql, pstmt -> {
+                pstmt.setString(1, fileName);
+                pstmt.setString(2, filePath);
+                pstmt.setString(3, transferId);
+                pstmt.setLong(4, fileSize);
+                pstmt.setInt(5, senderId);
+                pstmt.setInt(6, roomId);
+                pstmt.setInt(7, receiverId);
+                pstmt.setBoolean(8, isDirect);
+            }, rs -> rs.getInt("id"));
         }
     }
 
@@ -113,7 +102,7 @@ public class FileTransferRepository {
     public static String getFilePath(String transferId) throws SQLException {
         String sql = "SELECT file_path FROM file_transfer WHERE transfer_id = ?";
 
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, transferId);
@@ -125,4 +114,139 @@ public class FileTransferRepository {
         }
         return null;
     }
+
+    /**
+     * An upload that has not completed, as needed to resume it.
+     */
+    public record PendingUpload(String filePath, long fileSize, int senderId) {}
+
+    /**
+     * Finds the upload a transfer id belongs to, unless it has completed or failed.
+     */
+    public static PendingUpload getPendingUpload(String transferId) throws SQLException {
+        String sql = """
+                SELECT file_path, file_size, sender_id FROM file_transfer
+                WHERE transfer_id = ? AND status IN ('PENDING', 'IN_PROGRESS')
+                """;
+
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, transferId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new PendingUpload(rs.getString("file_path"), rs.getLong("file_size"), rs.getInt("sender_id"));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An upload stored before the blob store, still at its own path.
+     */
+    public record UnstoredUpload(String transferId, String filePath, long fileSize) {}
+
+    /**
+     * Points an upload at the blob holding its file and sets its status.
+     *
+     * @return false if there is no such upload
+     */
+    public static boolean setBlob(Connection conn, String transferId, String hash, String filePath, String status)
+            throws SQLException {
+        String sql = "UPDATE file_transfer SET blob_hash = ?, file_path = ?, status = ? WHERE transfer_id = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, hash);
+            pstmt.setString(2, filePath);
+            pstmt.setString(3, status);
+            pstmt.setString(4, transferId);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * What is left of an upload once its record is deleted: the blob it pointed at, or, if it was
+     * never stored, its own file.
+     */
+    public record DeletedUpload(String blobHash, String filePath) {}
+
+    /**
+     * Deletes an upload's record.
+     *
+     * @return what it pointed at, or null if there was no such upload
+     */
+    public static DeletedUpload deleteUpload(Connection conn, String transferId) throws SQLException {
+        String sql = "DELETE FROM file_transfer WHERE transfer_id = ? RETURNING blob_hash, file_path";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, transferId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new DeletedUpload(rs.getString("blob_hash"), rs.getString("file_path")) : null;
+            }
+        }
+    }
+
+    /**
+     * Whether the upload was sent by this user into a room, or directly to a user.
+     */
+    public static boolean isUploadFrom(String transferId, int senderId, boolean direct, int conversationId)
+            throws SQLException {
+        String sql = """
+                SELECT 1 FROM file_transfer
+                WHERE transfer_id = ? AND sender_id = ? AND is_direct = ? AND %s = ?
+                """.formatted(direct ? "receiver_id" : "room_id");
+
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, transferId);
+            pstmt.setInt(2, senderId);
+            pstmt.setBoolean(3, direct);
+            pstmt.setInt(4, conversationId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Finds where the most recent completed upload of a file by this name is stored.
+     */
+    public static String getStoredFilePath(String fileName) throws SQLException {
+        String sql = """
+                SELECT file_path FROM file_transfer
+                WHERE file_name = ? AND status = 'COMPLETED' AND sender_id != 0
+                ORDER BY id DESC
+                LIMIT 1
+                """;
+
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, fileName);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("file_path") : null;
+            }
+        }
+    }
+
+    public static List<UnstoredUpload> getUnstoredUploads() throws SQLException {
+        String sql = """
+                SELECT transfer_id, file_path, file_size FROM file_transfer
+                WHERE status = 'COMPLETED' AND sender_id != 0 AND blob_hash IS NULL
+                """;
+        List<UnstoredUpload> uploads = new ArrayList<>();
+
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql);
+                ResultSet rs = pstmt.executeQuery()) {
+
+            while (rs.next()) {
+                uploads.add(new UnstoredUpload(rs.getString("transfer_id"), rs.getString("file_path"),
+                        rs.getLong("file_size")));
+            }
+        }
+        return uploads;
+    }
 }
@@ -1,6 +1,8 @@
 package com.tavern.server.data.repository;
 
 import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
+import com.tavern.common.utils.Inserts;
 import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,62 +18,57 @@ public class MessageRepository {
     private MessageRepository() {}
 
     public static Message createMessage(Message message) throws SQLException {
-        String sql = message.isDirect()
-                ? "INSERT INTO message (sender_id, receiver_id, content, direct, timestamp) VALUES (?, ?, ?, ?, ?)"
-                : "INSERT INTO message (sender_id, room_id, content, direct, timestamp) VALUES (?, ?, ?, ?, ?)";
-
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setInt(1, message.getSenderId());
-            if (message.isDirect()) {
-                pstmt.setInt(2, message.getReceiverId());
-            } else {
-                pstmt.setInt(2, message.getRoomId());
-            }
-            pstmt.setString(3, message.getContent());
-            pstmt.setBoolean(4, message.isDirect());
-
-            if (message.getTimestamp() == null)
-                pstmt.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
-            else
-                pstmt.setTimestamp(5, message.getTimestamp());
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            return createMessage(conn, message);
+        }
+    }
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Creating message failed, no rows affected.");
-            }
+    /**
+     * Inserts the message on the given connection, as part of whatever transaction it has open.
+     */
+    public static Message createMessage(Connection conn, Message message) throws SQLException {
+        String sql = message.isDirect()
+                ? "INSERT INTO message (sender_id, receiver_id, content, direct, timestamp, transfer_id, conversation_id) " +
+                  "VALUES (?, ?, ?, ?, ?, ?, ?) RETURNING id, timestamp"
+                : "INSERT INTO message (sender_id, room_id, content, direct, timestamp, transfer_id) " +
+                  "VALUES (?, ?, ?, ?, ?, ?) RETURNING id, timestamp";
 
-            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    int id = generatedKeys.getInt(1);
-                    
-                    // Get the timestamp from the database
-                    String getTimestampSql = "SELECT timestamp FROM message WHERE id = ?";
-                    Timestamp timestamp = null;
-                    try (PreparedStatement tsStmt = conn.prepareStatement(getTimestampSql)) {
-                        tsStmt.setInt(1, id);
-                        ResultSet rs = tsStmt.executeQuery();
-                        if (rs.next()) {
-                            timestamp = rs.getTimestamp("timestamp");
-                        }
-                    }
-
-//                    message.setTimestamp(timestamp);
-                    return new Message(id, message.getSenderId(), message.getReceiverId(), message.getRoomId(), message.getContent(), message.isDirect(), timestamp);
-                } else {
-                    throw new SQLException("Creating message failed, no ID obtained.");
-                }
-            }
+        try {
+            return Inserts.insert(conn, sql, message, MessageRepository::bindInsert, rs -> {
+                Message created = new Message(rs.getInt("id"), message.getSenderId(), message.getReceiverId(),
+                        message.getRoomId(), message.getContent(), message.isDirect(), rs.getTimestamp("timestamp"));
+                created.setTransferId(message.getTransferId());
+                return created;
+            });
         } catch (SQLException e) {
             logger.error("Error creating message", e);
             throw e;
         }
     }
 
+    private static void bindInsert(PreparedStatement pstmt, Message message) throws SQLException {
+        pstmt.setInt(1, message.getSenderId());
+        if (message.isDirect()) {
+            pstmt.setInt(2, message.getReceiverId());
+        } else {
+            pstmt.setInt(2, message.getRoomId());
+        }
+        pstmt.setString(3, message.getContent());
+        pstmt.setBoolean(4, message.isDirect());
+
+        if (message.getTimestamp() == null)
+            pstmt.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
+        else
+            pstmt.setTimestamp(5, message.getTimestamp());
+        pstmt.setString(6, message.getTransferId());
+        if (message.isDirect()) {
+            pstmt.setLong(7, Message.directConversationId(message.getSenderId(), message.getReceiverId()));
+        }
+    }
+
     public static Message getMessageById(int messageId) throws SQLException {
         String sql = "SELECT * FROM message WHERE id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, messageId);
@@ -90,7 +87,7 @@ public class MessageRepository {
     public static List<Message> getMessagesForRoom(int roomId, int limit, int offset) throws SQLException {
         List<Message> messages = new ArrayList<>();
         String sql = "SELECT * FROM message WHERE room_id = ? AND direct = 0 ORDER BY timestamp ASC LIMIT ? OFFSET ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, roomId);
@@ -110,18 +107,13 @@ public class MessageRepository {
 
     public static List<Message> getDirectMessages(int user1Id, int user2Id, int limit, int offset) throws SQLException {
         List<Message> messages = new ArrayList<>();
-        String sql = "SELECT * FROM message WHERE direct = 1 AND " +
-                     "((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)) " +
-                     "ORDER BY timestamp ASC LIMIT ? OFFSET ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT * FROM message WHERE conversation_id = ? ORDER BY timestamp ASC LIMIT ? OFFSET ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setInt(1, user1Id);
-            pstmt.setInt(2, user2Id);
-            pstmt.setInt(3, user2Id);
-            pstmt.setInt(4, user1Id);
-            pstmt.setInt(5, limit);
-            pstmt.setInt(6, offset);
+            pstmt.setLong(1, Message.directConversationId(user1Id, user2Id));
+            pstmt.setInt(2, limit);
+            pstmt.setInt(3, offset);
             ResultSet rs = pstmt.executeQuery();
 
             while (rs.next()) {
@@ -135,6 +127,76 @@ public class MessageRepository {
         return messages;
     }
     
+    /**
+     * Keyset page of a room's history: up to {@code limit} messages strictly older (or newer) than
+     * the cursor, nearest to the cursor first. A null cursor starts at the newest (or oldest) end.
+     */
+    public static List<Message> getRoomMessagePage(int roomId, MessageCursor cursor, boolean older, int limit) throws SQLException {
+        List<Message> messages = new ArrayList<>(limit);
+        String sql = older
+                ? "SELECT * FROM message WHERE room_id = ? AND direct = 0 AND (timestamp, id) < (?, ?) " +
+                  "ORDER BY timestamp DESC, id DESC LIMIT ?"
+                : "SELECT * FROM message WHERE room_id = ? AND direct = 0 AND (timestamp, id) > (?, ?) " +
+                  "ORDER BY timestamp ASC, id ASC LIMIT ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, roomId);
+            setCursor(pstmt, 2, cursor, older);
+            pstmt.setInt(4, limit);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                messages.add(extractMessageFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting message page for room: {}, cursor: {}", roomId, cursor, e);
+            throw e;
+        }
+        return messages;
+    }
+
+    /**
+     * Keyset page of the direct conversation between two users, like {@link #getRoomMessagePage}.
+     */
+    public static List<Message> getDirectMessagePage(int user1Id, int user2Id, MessageCursor cursor, boolean older,
+                                                     int limit) throws SQLException {
+        List<Message> messages = new ArrayList<>(limit);
+        String sql = older
+                ? "SELECT * FROM message WHERE conversation_id = ? AND (timestamp, id) < (?, ?) " +
+                  "ORDER BY timestamp DESC, id DESC LIMIT ?"
+                : "SELECT * FROM message WHERE conversation_id = ? AND (timestamp, id) > (?, ?) " +
+                  "ORDER BY timestamp ASC, id ASC LIMIT ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setLong(1, Message.directConversationId(user1Id, user2Id));
+            setCursor(pstmt, 2, cursor, older);
+            pstmt.setInt(4, limit);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                messages.add(extractMessageFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting direct message page between users {} and {}, cursor: {}",
+                        user1Id, user2Id, cursor, e);
+            throw e;
+        }
+        return messages;
+    }
+
+    private static void setCursor(PreparedStatement pstmt, int index, MessageCursor cursor, boolean older) throws SQLException {
+        if (cursor == null) {
+            // No cursor: start past the end that the page moves away from
+            pstmt.setLong(index, older ? Long.MAX_VALUE : Long.MIN_VALUE);
+            pstmt.setInt(index + 1, older ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+        } else {
+            pstmt.setLong(index, cursor.timestamp());
+            pstmt.setInt(index + 1, cursor.id());
+        }
+    }
+
     public static boolean deleteMessage(int messageId) throws SQLException {
         String sql = "DELETE FROM message WHERE id = ?";
         try (Connection conn = ServerDatabaseManager.getConnection();
@@ -149,6 +211,57 @@ public class MessageRepository {
         }
     }
 
+    public static long getMaxMessageId() throws SQLException {
+        String sql = "SELECT COALESCE(MAX(id), 0) FROM message";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            logger.error("Error getting highest message ID", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the messages with an id in {@code (fromId, toId]}, sent before {@code sentBefore},
+     * that no user has unread. Messages that share an upload are only deleted once they were also
+     * sent before {@code filesSentBefore}.
+     *
+     * @return the messages deleted, with the uploads they shared
+     */
+    public static List<Message> deleteUnreadByNobody(long fromId, long toId, Timestamp sentBefore,
+                                                     Timestamp filesSentBefore) throws SQLException {
+        String sql = """
+                     DELETE FROM message
+                     WHERE id > ? AND id <= ? AND timestamp < ?
+                       AND (transfer_id IS NULL OR timestamp < ?)
+                       AND NOT EXISTS (SELECT 1 FROM user_unread_message um WHERE um.message_id = message.id)
+                     RETURNING id, sender_id, receiver_id, room_id, content, direct, timestamp, transfer_id;
+                     """;
+        try (Connection conn = ServerDatabaseManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setLong(1, fromId);
+            pstmt.setLong(2, toId);
+            pstmt.setTimestamp(3, sentBefore);
+            pstmt.setTimestamp(4, filesSentBefore);
+            List<Message> deleted = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Message message = extractMessageFromResultSet(rs);
+                    message.setTransferId(rs.getString("transfer_id"));
+                    deleted.add(message);
+                }
+            }
+            return deleted;
+        } catch (SQLException e) {
+            logger.error("Error deleting read messages with IDs in ({}, {}]", fromId, toId, e);
+            throw e;
+        }
+    }
+
     private static Message extractMessageFromResultSet(ResultSet rs) throws SQLException {
         int id = rs.getInt("id");
         int senderId = rs.getInt("sender_id");
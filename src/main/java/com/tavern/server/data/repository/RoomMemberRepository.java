@@ -2,6 +2,7 @@ package com.tavern.server.data.repository;
 
 import com.tavern.common.model.Room;
 import com.tavern.common.model.User;
+import com.tavern.server.data.cache.RoomMembershipCache;
 import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +12,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class RoomMemberRepository {
@@ -59,8 +61,8 @@ public class RoomMemberRepository {
 
     public static List<User> getRoomMembers(int roomId) throws SQLException {
         List<User> members = new ArrayList<>();
-        String sql = "SELECT u.id, u.username, u.display_name, u.avatar FROM room_member rm JOIN main.user u on u.id = rm.user_id WHERE room_id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT u.id, u.username, u.display_name, u.avatar_hash FROM room_member rm JOIN main.user u on u.id = rm.user_id WHERE room_id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, roomId);
@@ -71,10 +73,10 @@ public class RoomMemberRepository {
                 int userId = rs.getInt("id");
                 String username = rs.getString("username");
                 String displayName = rs.getString("display_name");
-                byte[] avatar = rs.getBytes("avatar");
+                String avatarHash = rs.getString("avatar_hash");
                 logger.debug("Found member: userId={}, username={}, displayName={}", 
                         userId, username, displayName);
-                members.add(new User(userId, username, displayName, avatar));
+                members.add(new User(userId, username, displayName, avatarHash));
             }
         } catch (SQLException e) {
             logger.error("Error fetching room members: {}", e.getMessage(), e);
@@ -82,11 +84,37 @@ public class RoomMemberRepository {
         return members;
     }
 
+    /**
+     * Ids of the room's members, without touching the user table.
+     */
+    public static int[] getRoomMemberIds(int roomId) throws SQLException {
+        String sql = "SELECT user_id FROM room_member WHERE room_id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, roomId);
+            ResultSet rs = pstmt.executeQuery();
+
+            int[] ids = new int[16];
+            int count = 0;
+            while (rs.next()) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = rs.getInt(1);
+            }
+            return Arrays.copyOf(ids, count);
+        } catch (SQLException e) {
+            logger.error("Error fetching room member ids: {}", e.getMessage(), e);
+            throw e;
+        }
+    }
+
     public static List<Room> getUserRooms(int userId) throws SQLException {
         List<Room> rooms = new ArrayList<>();
-        String sql = "SELECT r.id, r.name, r.avatar FROM room_member rm JOIN room r ON rm.room_id = r.id WHERE rm.user_id = ?";
+        String sql = "SELECT r.id, r.name, r.avatar_hash FROM room_member rm JOIN room r ON rm.room_id = r.id WHERE rm.user_id = ?";
 
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
@@ -95,9 +123,9 @@ public class RoomMemberRepository {
             while (rs.next()) {
                 int roomId = rs.getInt("id");
                 String name = rs.getString("name");
-                byte[] avatar = rs.getBytes("avatar");
+                String avatarHash = rs.getString("avatar_hash");
 
-                Room room = new Room(roomId, name, avatar);
+                Room room = new Room(roomId, name, avatarHash);
                 rooms.add(room);
             }
         } catch (SQLException e) {
@@ -107,21 +135,6 @@ public class RoomMemberRepository {
     }
 
     public static boolean isUserInRoom(int userId, int roomId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM room_member WHERE user_id = ? AND room_id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId);
-            pstmt.setInt(2, roomId);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
-            }
-        } catch (SQLException e) {
-            logger.error("Error checking if user is in room: {}", e.getMessage(), e);
-            throw e;
-        }
-        return false;
+        return RoomMembershipCache.isMember(roomId, userId);
     }
-}
\ No newline at end of file
+}
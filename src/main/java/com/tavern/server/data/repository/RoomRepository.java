@@ -1,6 +1,7 @@
 package com.tavern.server.data.repository;
 
 import com.tavern.common.model.Room;
+import com.tavern.common.utils.Inserts;
 import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,38 +14,26 @@ public class RoomRepository {
     private static final Logger logger = LoggerFactory.getLogger(RoomRepository.class);
 
     public static Room createRoom(Room room) throws SQLException {
-        String sql = "INSERT INTO room (name, avatar) VALUES (?, ?)";
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) { // No RETURN_GENERATED_KEYS needed with String ID
-
-            stmt.setString(1, room.getName());
-            stmt.setBytes(2, room.getAvatar());
-
-            int affectedRows = stmt.executeUpdate();
-
-            if (affectedRows == 0) {
-                throw new SQLException("Creating room failed, no rows affected.");
-            }
-
-            ResultSet rs = stmt.getGeneratedKeys();
-            if (rs.next()) {
-                int id = rs.getInt(1);
-                room.setId(id);
-                logger.info("Room created successfully with ID: {}", room.getId());
-                return room;
-            }
+        String sql = "INSERT INTO room (name, avatar_hash) VALUES (?, ?) RETURNING id";
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+
+            int id = Inserts.insert(conn, sql, room, (stmt, r) -> {
+                stmt.setString(1, r.getName());
+                stmt.setString(2, r.getAvatarHash());
+            }, rs -> rs.getInt("id"));
+            room.setId(id);
+            logger.info("Room created successfully with ID: {}", room.getId());
+            return room;
         } catch (SQLException e) {
             logger.error("Error creating room", e);
             throw e;
         }
-
-        return null;
     }
 
     public static Room getRoomById(int roomId) throws SQLException {
         logger.debug("Fetching room with ID: {}", roomId);
-        String sql = "SELECT * FROM room WHERE id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT id, name, avatar_hash FROM room WHERE id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, roomId);
@@ -53,8 +42,8 @@ public class RoomRepository {
             if (rs.next()) {
                 int id = rs.getInt("id");
                 String name = rs.getString("name");
-                byte[] avatar = rs.getBytes("avatar");
-                return new Room(id, name, avatar);
+                String avatarHash = rs.getString("avatar_hash");
+                return new Room(id, name, avatarHash);
             }
         } catch (SQLException e) {
             logger.error("Error fetching room by ID: {}", roomId, e);
@@ -63,8 +52,8 @@ public class RoomRepository {
     }
 
     public static Room getRoomByName(String roomName) throws SQLException {
-        String sql = "SELECT id, name, avatar FROM room WHERE name = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT id, name, avatar_hash FROM room WHERE name = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, roomName);
@@ -73,8 +62,8 @@ public class RoomRepository {
             if (rs.next()) {
                 int id = rs.getInt(1);
                 String name = rs.getString("name");
-                byte[] avatar = rs.getBytes("avatar");
-                return new Room(id, name, avatar);
+                String avatarHash = rs.getString("avatar_hash");
+                return new Room(id, name, avatarHash);
             }
         } catch (SQLException e) {
             logger.error("Error fetching room by name: {}", roomName, e);
@@ -87,16 +76,16 @@ public class RoomRepository {
     // Method to get all rooms
     public static List<Room> getAllRooms() throws SQLException {
         List<Room> rooms = new ArrayList<>();
-        String sql = "SELECT id, name, avatar FROM room";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT id, name, avatar_hash FROM room";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
             while (rs.next()) {
                 int id = rs.getInt(1);
                 String name = rs.getString("name");
-                byte[] avatar = rs.getBytes("avatar");
-                rooms.add(new Room(id, name, avatar));
+                String avatarHash = rs.getString("avatar_hash");
+                rooms.add(new Room(id, name, avatarHash));
             }
         } catch (SQLException e) {
             logger.error("Error fetching all rooms", e);
@@ -122,12 +111,12 @@ public class RoomRepository {
         }
     }
 
-    public void updateRoomAvatar(int roomId, byte[] avatarData) throws SQLException {
-        String sql = "UPDATE room SET avatar = ? WHERE id = ?";
+    public void updateRoomAvatar(int roomId, String avatarHash) throws SQLException {
+        String sql = "UPDATE room SET avatar_hash = ? WHERE id = ?";
         try (Connection conn = ServerDatabaseManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setBytes(1, avatarData);
+            pstmt.setString(1, avatarHash);
             pstmt.setInt(2, roomId);
 
             pstmt.executeUpdate();
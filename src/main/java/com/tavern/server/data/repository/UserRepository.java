@@ -1,38 +1,29 @@
 package com.tavern.server.data.repository;
 
 import com.tavern.common.model.User;
+import com.tavern.common.utils.Inserts;
 import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
 
 public class UserRepository {
     private static final Logger logger = LoggerFactory.getLogger(UserRepository.class);
 
     public static User createUser(User user) throws SQLException {
-        String sql = "INSERT INTO user (username, display_name, avatar) VALUES (?, ?, ?)";
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            stmt.setString(1, user.getUsername());
-            stmt.setString(2, user.getDisplayName());
-            stmt.setBytes(3, user.getAvatar());
-
-            int affectedRows = stmt.executeUpdate();
+        String sql = "INSERT INTO user (username, display_name, avatar_hash) VALUES (?, ?, ?) RETURNING id";
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
 
-            if (affectedRows == 0) {
-                throw new SQLException("Failed to insert users");
-            }
-
-            try (ResultSet rs = stmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    user.setId(rs.getInt(1));
-                }
-            }
+            int id = Inserts.insert(conn, sql, user, (stmt, u) -> {
+                stmt.setString(1, u.getUsername());
+                stmt.setString(2, u.getDisplayName());
+                stmt.setString(3, u.getAvatarHash());
+            }, rs -> rs.getInt("id"));
+            user.setId(id);
 
             logger.info("User inserted: {}", user.getUsername());
             return user;
@@ -44,24 +35,19 @@ public class UserRepository {
 
 
     public static User getUserByUsername(String username) throws SQLException {
-        String sql = "SELECT * FROM user WHERE username = ?";
+        String sql = "SELECT id, username, display_name, avatar_hash FROM user WHERE username = ?";
 
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setString(1, username);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    int id = rs.getInt("id");
-                    String displayName = rs.getString("display_name");
-                    byte[] avatar = rs.getBytes("avatar");
-
-                    logger.debug("User found: {}, id: {}, displayName: {}", username, id, displayName);
-                    return new User(id, username, displayName, avatar);
+                    User user = createUser(rs);
+                    logger.debug("User found: {}, id: {}, displayName: {}", username, user.getId(), user.getDisplayName());
+                    return user;
                 }
-            } catch (Exception e) {
-                logger.error("Error retrieving user result: {}", e.getMessage(), e);
             }
         } catch (SQLException ex) {
             logger.error("Unable to get user by username: {}", ex.getMessage(), ex);
@@ -72,19 +58,15 @@ public class UserRepository {
     }
 
     public static User getUserById(int id) throws SQLException {
-        String sql = "SELECT * FROM user WHERE id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT id, username, display_name, avatar_hash FROM user WHERE id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, id);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    String username = rs.getString("username");
-                    String displayName = rs.getString("display_name");
-                    byte[] avatar = rs.getBytes("avatar");
-
-                    return new User(id, username, displayName, avatar);
+                    return createUser(rs);
                 }
             }
         } catch (SQLException e) {
@@ -94,12 +76,12 @@ public class UserRepository {
         return null;
     }
 
-    public static void updateUserAvatar(int userId, byte[] avatarData) throws SQLException {
-        String sql = "UPDATE user SET avatar = ? WHERE id = ?";
+    public static void updateUserAvatar(int userId, String avatarHash) throws SQLException {
+        String sql = "UPDATE user SET avatar_hash = ? WHERE id = ?";
         try (Connection conn = ServerDatabaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setBytes(1, avatarData);
+            stmt.setString(1, avatarHash);
             stmt.setInt(2, userId);
 
             stmt.executeUpdate();
@@ -111,17 +93,13 @@ public class UserRepository {
 
     public static List<User> getAllUsers() throws SQLException {
         List<User> users = new ArrayList<>();
-        String sql = "SELECT * FROM user";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        String sql = "SELECT id, username, display_name, avatar_hash FROM user";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
 
             while (rs.next()) {
-                int id = rs.getInt("id");
-                String username = rs.getString("username");
-                String displayName = rs.getString("display_name");
-                byte[] avatar = rs.getBytes("avatar");
-                users.add(new User(id, username, displayName, avatar));
+                users.add(createUser(rs));
             }
         } catch (SQLException e) {
             logger.error("Error fetching all users: {}", e.getMessage(), e);
@@ -130,27 +108,28 @@ public class UserRepository {
         return users;
     }
 
-    public static List<User> getUsersById(List<Integer> userIds) {
-        List<User> users = new ArrayList<>();
+    /**
+     * Looks all the given users up in one query. Ids that do not exist are left out.
+     */
+    public static List<User> getUsersById(Collection<Integer> userIds) throws SQLException {
+        List<User> users = new ArrayList<>(userIds.size());
         if (userIds.isEmpty()) {
             return users;
         }
+        // Bound as a JSON array so the statement text, and its cached statement, stay the same
+        String sql = "SELECT id, username, display_name, avatar_hash FROM user WHERE id IN (SELECT value FROM json_each(?))";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-        String placeholders = String.join(",", Collections.nCopies(userIds.size(), "?"));
-        String sql = "SELECT * FROM user WHERE id IN (" + placeholders + ")";
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql);
-        ) {
-
-            for (int i = 0; i < userIds.size(); i++) {
-                stmt.setInt(i + 1, userIds.get(i));
-            }
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                users.add(createUser(rs));
+            stmt.setString(1, userIds.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(createUser(rs));
+                }
             }
         } catch (SQLException e) {
             logger.error("Error fetching users by IDs: {}", e.getMessage(), e);
+            throw e;
         }
         return users;
     }
@@ -159,7 +138,7 @@ public class UserRepository {
         int id = rs.getInt("id");
         String username = rs.getString("username");
         String displayName = rs.getString("display_name");
-        byte[] avatar = rs.getBytes("avatar");
-        return new User(id, username, displayName, avatar);
+        String avatarHash = rs.getString("avatar_hash");
+        return new User(id, username, displayName, avatarHash);
     }
 }
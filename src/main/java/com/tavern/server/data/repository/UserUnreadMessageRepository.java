@@ -1,12 +1,14 @@
 package com.tavern.server.data.repository;
 
 import com.tavern.common.model.Message;
+import com.tavern.common.model.UnreadCount;
 import com.tavern.server.utils.ServerDatabaseManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class UserUnreadMessageRepository {
@@ -15,27 +17,63 @@ public class UserUnreadMessageRepository {
     private UserUnreadMessageRepository() {}
     
     public static boolean markMessageAsUnread(int userId, int messageId) throws SQLException {
-        String sql = "INSERT INTO user_unread_message (user_id, message_id) VALUES (?, ?)";
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            return markMessageAsUnread(conn, userId, messageId);
+        }
+    }
+
+    /**
+     * Marks the message as unread on the given connection, as part of whatever transaction it has open.
+     */
+    public static boolean markMessageAsUnread(Connection conn, int userId, int messageId) throws SQLException {
+        // (user_id, message_id) is unique; the driver reports no SQL state for a violation, so skip it in SQL
+        String sql = "INSERT OR IGNORE INTO user_unread_message (user_id, message_id) VALUES (?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
             pstmt.setInt(2, messageId);
-            
+
             int affectedRows = pstmt.executeUpdate();
-            return affectedRows > 0;
-        } catch (SQLException e) {
-            // Handle the case where this combination already exists
-            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+            if (affectedRows == 0) {
                 logger.debug("Message {} is already marked as unread for user {}", messageId, userId);
-                return false;
-            } else {
-                logger.error("Error marking message as unread", e);
-                throw e;
             }
+            return affectedRows > 0;
+        } catch (SQLException e) {
+            logger.error("Error marking message as unread", e);
+            throw e;
         }
     }
-    
+
+    /**
+     * Marks a room message as unread for every member of the room in one statement, except the
+     * sender and the given users (those it was already delivered to).
+     *
+     * @return the number of members it was marked unread for
+     */
+    public static int markRoomMessageAsUnread(Connection conn, int messageId, int roomId, int senderId,
+                                              int[] excludedUserIds) throws SQLException {
+        String sql = """
+                     INSERT OR IGNORE INTO user_unread_message (user_id, message_id)
+                     SELECT rm.user_id, ?
+                     FROM room_member rm
+                     WHERE rm.room_id = ? AND rm.user_id <> ?
+                       AND rm.user_id NOT IN (SELECT value FROM json_each(?));
+                     """;
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, messageId);
+            pstmt.setInt(2, roomId);
+            pstmt.setInt(3, senderId);
+            // Bound as a JSON array so the statement text, and its cached statement, stay the same
+            pstmt.setString(4, Arrays.toString(excludedUserIds));
+
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error marking message {} as unread in room {}", messageId, roomId, e);
+            throw e;
+        }
+    }
+
     public static boolean markMessageAsRead(int userId, int messageId) throws SQLException {
         String sql = "DELETE FROM user_unread_message WHERE user_id = ? AND message_id = ?";
         try (Connection conn = ServerDatabaseManager.getConnection();
@@ -52,6 +90,27 @@ public class UserUnreadMessageRepository {
         }
     }
     
+    /**
+     * Deletes the unread rows of all the given messages for the user in one statement.
+     *
+     * @return the number of messages that were unread
+     */
+    public static int markMessagesAsRead(int userId, int[] messageIds) throws SQLException {
+        String sql = "DELETE FROM user_unread_message WHERE user_id = ? AND message_id IN " +
+                     "(SELECT value FROM json_each(?))";
+        try (Connection conn = ServerDatabaseManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, Arrays.toString(messageIds));
+
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error marking {} messages as read for user {}", messageIds.length, userId, e);
+            throw e;
+        }
+    }
+
     public static boolean markAllMessagesAsRead(int userId, int roomId) throws SQLException {
         String sql = "DELETE FROM user_unread_message WHERE user_id = ? AND message_id IN " +
                      "(SELECT id FROM message WHERE room_id = ?)";
@@ -71,16 +130,12 @@ public class UserUnreadMessageRepository {
     
     public static boolean markAllDirectMessagesAsRead(int userId, int otherUserId) throws SQLException {
         String sql = "DELETE FROM user_unread_message WHERE user_id = ? AND message_id IN " +
-                     "(SELECT id FROM message WHERE direct = 1 AND " +
-                     "((sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?)))";
+                     "(SELECT id FROM message WHERE conversation_id = ?)";
         try (Connection conn = ServerDatabaseManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
-            pstmt.setInt(2, otherUserId);
-            pstmt.setInt(3, userId);
-            pstmt.setInt(4, userId);
-            pstmt.setInt(5, otherUserId);
+            pstmt.setLong(2, Message.directConversationId(userId, otherUserId));
             
             pstmt.executeUpdate();
             return true;
@@ -99,7 +154,7 @@ public class UserUnreadMessageRepository {
                      WHERE um.user_id = ?
                      ORDER BY m.timestamp ASC;
                      """;
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
@@ -123,84 +178,73 @@ public class UserUnreadMessageRepository {
         return unreadMessages;
     }
     
-    public static int getUnreadMessageCount(int userId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_unread_message WHERE user_id = ?";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+    /**
+     * Unread counts of every conversation the user has unread messages in, read from the counters
+     * that the user_unread_message triggers keep.
+     */
+    public static List<UnreadCount> getUnreadCounts(int userId) throws SQLException {
+        List<UnreadCount> counts = new ArrayList<>();
+        String sql = "SELECT scope, scope_id, count FROM unread_counter WHERE user_id = ? AND count > 0";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
             ResultSet rs = pstmt.executeQuery();
 
-            if (rs.next()) {
-                return rs.getInt(1);
+            while (rs.next()) {
+                counts.add(new UnreadCount(rs.getBoolean("scope"), rs.getInt("scope_id"), rs.getInt("count")));
             }
         } catch (SQLException e) {
-            logger.error("Error getting unread message count for user {}", userId, e);
+            logger.error("Error getting unread counts for user {}", userId, e);
             throw e;
         }
-        return 0;
+        return counts;
     }
-    
-    public static int getUnreadMessageCountForRoom(int userId, int roomId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_unread_message um " +
-                     "JOIN message m ON um.message_id = m.id " +
-                     "WHERE um.user_id = ? AND m.room_id = ? AND m.direct = 0";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+
+    public static int getUnreadMessageCount(int userId) throws SQLException {
+        String sql = "SELECT COALESCE(SUM(count), 0) FROM unread_counter WHERE user_id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
-            pstmt.setInt(2, roomId);
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
                 return rs.getInt(1);
             }
         } catch (SQLException e) {
-            logger.error("Error getting unread message count for user {} in room {}", userId, roomId, e);
+            logger.error("Error getting unread message count for user {}", userId, e);
             throw e;
         }
         return 0;
     }
     
+    public static int getUnreadMessageCountForRoom(int userId, int roomId) throws SQLException {
+        return getUnreadCount(userId, false, roomId);
+    }
+    
     public static int getUnreadDirectMessageCount(int userId, int otherUserId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM user_unread_message um " +
-                     "JOIN message m ON um.message_id = m.id " +
-                     "WHERE um.user_id = ? AND m.direct = 1 AND " +
-                     "((m.sender_id = ? AND m.receiver_id = ?) OR (m.sender_id = ? AND m.receiver_id = ?))";
-        try (Connection conn = ServerDatabaseManager.getConnection();
+        return getUnreadCount(userId, true, otherUserId);
+    }
+
+    private static int getUnreadCount(int userId, boolean direct, int scopeId) throws SQLException {
+        String sql = "SELECT count FROM unread_counter WHERE user_id = ? AND scope = ? AND scope_id = ?";
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
-            pstmt.setInt(2, otherUserId);
-            pstmt.setInt(3, userId);
-            pstmt.setInt(4, userId);
-            pstmt.setInt(5, otherUserId);
+            pstmt.setBoolean(2, direct);
+            pstmt.setInt(3, scopeId);
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
                 return rs.getInt(1);
             }
         } catch (SQLException e) {
-            logger.error("Error getting unread direct message count between users {} and {}", userId, otherUserId, e);
+            logger.error("Error getting unread {} count for user {} in {}", direct ? "direct message" : "room message",
+                    userId, scopeId, e);
             throw e;
         }
         return 0;
     }
-
-    public static void cleanupMessages() {
-        String sql = """
-            DELETE FROM message
-            WHERE id NOT IN (SELECT DISTINCT message_id FROM user_unread_message);
-            """;
-
-        try (Connection conn = ServerDatabaseManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.executeUpdate();
-            logger.debug("Successfully cleaned up messages");
-
-        } catch (SQLException e) {
-            logger.error("Unable to cleanup messages", e);
-        }
-    }
 }
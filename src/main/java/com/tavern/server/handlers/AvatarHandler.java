@@ -0,0 +1,26 @@
+package com.tavern.server.handlers;
+
+import com.tavern.common.model.network.GetAvatarRequest;
+import com.tavern.common.model.network.GetAvatarResponse;
+import com.tavern.common.model.network.NetworkMessage;
+import com.tavern.server.core.ClientHandler;
+import com.tavern.server.core.RequestHandler;
+import com.tavern.server.data.manager.AvatarManager;
+
+import java.util.Map;
+
+public class AvatarHandler implements RequestHandler {
+
+    public AvatarHandler(Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+        requestHandlers.put(NetworkMessage.MessageType.GET_AVATAR_REQUEST, this);
+    }
+
+    @Override
+    public void handleRequest(NetworkMessage message, ClientHandler client) {
+        if (message.getMessageType() == NetworkMessage.MessageType.GET_AVATAR_REQUEST) {
+            GetAvatarRequest request = (GetAvatarRequest) message;
+            byte[] image = AvatarManager.getAvatar(request.hash(), request.size());
+            client.sendMessage(new GetAvatarResponse(request.hash(), request.size(), image));
+        }
+    }
+}
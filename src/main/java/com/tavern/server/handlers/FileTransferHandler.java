@@ -2,9 +2,13 @@ package com.tavern.server.handlers;
 
 import com.tavern.common.model.network.*;
 import com.tavern.server.core.ClientHandler;
+import com.tavern.server.core.DataChannelServer;
 import com.tavern.server.core.RequestHandler;
+import com.tavern.server.core.Server;
+import com.tavern.server.core.UploadSession;
+import com.tavern.server.data.manager.FileBlobManager;
+import com.tavern.server.data.manager.UserManager;
 import com.tavern.server.data.repository.FileTransferRepository;
-import com.tavern.server.data.repository.UserRepository;
 import com.tavern.common.utils.AppDataManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,29 +16,58 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.file.*;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class FileTransferHandler implements RequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(FileTransferHandler.class);
-    private final Map<String, String> transferPaths;
-    private final Map<String, Long> transferSizes;
-    private final Map<String, Long> transferredBytes;
+    private final Map<String, UploadSession> uploads;
     private final Map<String, ClientHandler> recipients;
+    // Challenges sent with HAS_BLOB_RESPONSE, by nonce, until an upload answers them or they expire
+    private final Map<String, BlobChallenge> blobChallenges = new ConcurrentHashMap<>();
+    // How far past its first missing block an uploader may send, in whole blocks
+    private final long uploadWindow;
+    private final long uploadIdleNanos;
+    private final long uploadCheckpointBytes;
     private final Path uploadDirectory;
+    private final DataChannelServer dataChannelServer;
+    private static final long BLOB_CHALLENGE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
 
-    public FileTransferHandler(Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
-        this.transferPaths = new HashMap<>();
-        this.transferSizes = new HashMap<>();
-        this.transferredBytes = new HashMap<>();
-        this.recipients = new HashMap<>();
+    private record BlobChallenge(ClientHandler client, String hash, long size, FileBlobManager.Challenge challenge,
+                                 long issuedAt) {
+        boolean expired(long now) {
+            return now - issuedAt > BLOB_CHALLENGE_TIMEOUT_NANOS;
+        }
+    }
+
+    public FileTransferHandler(DataChannelServer dataChannelServer, ScheduledExecutorService maintenance,
+                               Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+        this.dataChannelServer = dataChannelServer;
+        // Transfers from different sessions are handled concurrently on the bulk lane
+        this.uploads = new ConcurrentHashMap<>();
+        this.recipients = new ConcurrentHashMap<>();
+        long window = Long.parseLong(Server.properties.getProperty("server.upload.window.bytes", "4194304"));
+        this.uploadWindow = Math.max(1, (window + FileTransferChunk.BLOCK_SIZE - 1) / FileTransferChunk.BLOCK_SIZE)
+                * FileTransferChunk.BLOCK_SIZE;
+        long idleSeconds = Long.parseLong(Server.properties.getProperty("server.upload.idle.timeout", "30"));
+        this.uploadIdleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.uploadCheckpointBytes = Long.parseLong(Server.properties.getProperty("server.upload.checkpoint.bytes", "67108864"));
         this.uploadDirectory = AppDataManager.getAppDataPath().resolve("uploads");
         requestHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_UPLOAD_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_DOWNLOAD_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_CHUNK, this);
+        requestHandlers.put(NetworkMessage.MessageType.FILE_TRANSFER_RESUME_REQUEST, this);
+        requestHandlers.put(NetworkMessage.MessageType.HAS_BLOB_REQUEST, this);
+
+        if (idleSeconds > 0) {
+            maintenance.scheduleWithFixedDelay(this::closeIdleUploads, idleSeconds, idleSeconds, TimeUnit.SECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::dropExpiredChallenges, 1, 1, TimeUnit.MINUTES);
 
         try {
             Files.createDirectories(uploadDirectory);
@@ -51,6 +84,8 @@ public class FileTransferHandler implements RequestHandler {
             case FILE_TRANSFER_UPLOAD_REQUEST -> handleUploadRequest((FileTransferUploadRequest) message, client);
             case FILE_TRANSFER_DOWNLOAD_REQUEST -> handleDownloadRequest((FileTransferDownloadRequest) message, client);
             case FILE_TRANSFER_CHUNK -> handleTransferChunk((FileTransferChunk) message, client);
+            case FILE_TRANSFER_RESUME_REQUEST -> handleResumeRequest((FileTransferResumeRequest) message, client);
+            case HAS_BLOB_REQUEST -> handleHasBlobRequest((HasBlobRequest) message, client);
             default -> {
             }
         }
@@ -67,11 +102,40 @@ public class FileTransferHandler implements RequestHandler {
                 request.getReceiverId()), client);
     }
 
+    private void handleHasBlobRequest(HasBlobRequest request, ClientHandler client) {
+        if (!FileBlobManager.hasBlob(request.hash(), request.size())) {
+            client.sendMessage(new HasBlobResponse(request.requestId(), request.hash(), request.size(),
+                    false, null, 0, 0));
+            return;
+        }
+        FileBlobManager.Challenge challenge = FileBlobManager.newChallenge(request.size());
+        blobChallenges.put(HexFormat.of().formatHex(challenge.nonce()),
+                new BlobChallenge(client, request.hash(), request.size(), challenge, System.nanoTime()));
+        client.sendMessage(new HasBlobResponse(request.requestId(), request.hash(), request.size(),
+                true, challenge.nonce(), challenge.offset(), challenge.length()));
+    }
+
+    /**
+     * Whether the upload answered a challenge this session was sent for the blob it links to. A
+     * challenge is spent by the first upload that names it, right or wrong.
+     */
+    private boolean provesBlob(FileTransferUploadRequest request, ClientHandler client) {
+        if (request.getBlobChallenge() == null) {
+            return false;
+        }
+        BlobChallenge pending = blobChallenges.remove(HexFormat.of().formatHex(request.getBlobChallenge()));
+        if (pending == null || pending.client() != client || pending.expired(System.nanoTime())
+                || !pending.hash().equals(request.getBlobHash()) || pending.size() != request.getFileSize()) {
+            return false;
+        }
+        return FileBlobManager.verifyProof(pending.hash(), pending.challenge(), request.getBlobProof());
+    }
+
     private void handleUploadRequest(FileTransferUploadRequest request, ClientHandler client) {
         try {
             // Only check recipient for direct transfers
             if (request.isDirect()) {
-                var recipient = UserRepository.getUserById(request.getReceiverId());
+                var recipient = UserManager.getUserById(request.getReceiverId());
                 if (recipient == null) {
                     client.sendMessage(new FileTransferError(null, "Recipient not found"));
                     return;
@@ -88,20 +152,26 @@ public class FileTransferHandler implements RequestHandler {
                 return;
             }
 
-            transferPaths.put(transferId, filePath.toString());
-            transferSizes.put(transferId, request.getFileSize());
-            transferredBytes.put(transferId, 0L);
-            recipients.put(transferId, client);
-
-            // Send response to uploader
-            client.sendMessage(new FileTransferUploadResponse(true, request.getFileName(), transferId));
+            // A file the server already stores needs no data, the upload just points at it
+            if (request.getBlobHash() != null && provesBlob(request, client)
+                    && FileBlobManager.linkUpload(transferId, request.getBlobHash(), request.getFileSize())) {
+                client.sendMessage(new FileTransferUploadResponse(true, request.getFileName(), transferId, true));
+                client.sendMessage(new FileTransferComplete(transferId, null, 0, 0, 0, false, 0));
+            } else {
+                uploads.put(transferId, new UploadSession(filePath, request.getFileSize(), uploadCheckpointBytes));
+                // Removed with the upload once its last chunk is in
+                recipients.put(transferId, client);
+
+                // Send response to uploader, with the credit for its first chunks
+                client.sendMessage(new FileTransferUploadResponse(true, request.getFileName(), transferId));
+                client.sendMessage(new FileTransferCredit(transferId, 0, uploadWindow));
+            }
 
             // Forward request to recipient if direct transfer
             if (request.isDirect()) {
                 try {
-                    var recipientClient = recipients.get(transferId);
-                    if (recipientClient != null && recipientClient.isConnected()) {
-                        recipientClient.sendMessage(request);
+                    if (client.isConnected()) {
+                        client.sendMessage(request);
                     }
                 } catch (Exception e) {
                     logger.error("Error notifying recipient: {}", e.getMessage(), e);
@@ -113,30 +183,53 @@ public class FileTransferHandler implements RequestHandler {
         }
     }
 
-    private void handleDownloadRequest(FileTransferDownloadRequest request, ClientHandler client) {
+    /**
+     * Continues an upload of the requesting user from the blocks the server already has. After a
+     * restart those are the ones recorded by the upload's last checkpoint.
+     */
+    private void handleResumeRequest(FileTransferResumeRequest request, ClientHandler client) {
+        String transferId = request.transferId();
         try {
-            logger.debug("Processing download request for file: {}", request.getFileName());
-            String fileName = request.getFileName();
-
-            // Check if the file exists in uploads
-            File[] files = uploadDirectory.toFile().listFiles();
-            if (files == null) {
-                client.sendMessage(new FileTransferError(null, "File not found: " + fileName));
+            FileTransferRepository.PendingUpload pending = FileTransferRepository.getPendingUpload(transferId);
+            if (pending == null || client.getUser() == null || pending.senderId() != client.getUser().getId()) {
+                client.sendMessage(new FileTransferResumeResponse(transferId, false, null));
                 return;
             }
-            logger.debug("Searching for file matching: {}", fileName);
-            
-            // Look for a file with the requested name
-            File requestedFile = null;
-            for (File file : files) {
-                // Check if the file name contains the requested name after the UUID_
-                if (file.isFile() && file.getName().contains("_" + fileName)) {
-                    requestedFile = file;
-                    break;
+
+            UploadSession upload = uploads.get(transferId);
+            if (upload == null) {
+                upload = UploadSession.resume(Paths.get(pending.filePath()), pending.fileSize(), uploadCheckpointBytes);
+                UploadSession existing = uploads.putIfAbsent(transferId, upload);
+                if (existing != null) {
+                    upload = existing;
                 }
             }
+            recipients.put(transferId, client);
 
-            if (requestedFile == null) {
+            long[] missing = upload.getMissingRanges();
+            logger.info("Resuming upload {} with {} of {} bytes received", transferId,
+                    upload.getReceivedBytes(), upload.getSize());
+            client.sendMessage(new FileTransferResumeResponse(transferId, true, missing));
+            long acknowledged = upload.getContiguousBytes();
+            client.sendMessage(new FileTransferCredit(transferId, acknowledged, acknowledged + uploadWindow));
+        } catch (SQLException e) {
+            logger.error("Database error: {}", e.getMessage(), e);
+            client.sendMessage(new FileTransferError(transferId, "Internal server error"));
+        } catch (IOException e) {
+            logger.error("Error resuming upload {}: {}", transferId, e.getMessage(), e);
+            client.sendMessage(new FileTransferResumeResponse(transferId, false, null));
+        }
+    }
+
+    private void handleDownloadRequest(FileTransferDownloadRequest request, ClientHandler client) {
+        try {
+            logger.debug("Processing download request for file: {}", request.getFileName());
+            String fileName = request.getFileName();
+
+            // Uploads are stored under their content hash, so look the name up rather than the directory
+            String storedPath = FileTransferRepository.getStoredFilePath(fileName);
+            File requestedFile = storedPath == null ? null : new File(storedPath);
+            if (requestedFile == null || !requestedFile.isFile()) {
                 client.sendMessage(new FileTransferError(null, "File not found: " + fileName));
                 return;
             }
@@ -154,64 +247,26 @@ public class FileTransferHandler implements RequestHandler {
             }
             logger.debug("Created transfer record with ID: {}", transferId);
             
-            // Set up transfer data
-            transferPaths.put(transferId, requestedFile.getPath());
-            transferSizes.put(transferId, requestedFile.length());
-            transferredBytes.put(transferId, 0L);
-            recipients.put(transferId, client);
+            // The file itself goes over a data connection that the client opens with the transfer id
+            dataChannelServer.expect(transferId, requestedFile.toPath(), new DataChannelServer.Listener() {
+                @Override
+                public void completed(long bytes) {
+                    client.sendMessage(new FileTransferComplete(
+                            transferId, fileName, bytes, 0, request.getRoomId(), false, request.getRequesterId()));
+                    updateStatus(transferId, "COMPLETED");
+                }
+
+                @Override
+                public void failed(String reason) {
+                    client.sendMessage(new FileTransferError(transferId, "Error sending file: " + reason));
+                    updateStatus(transferId, "FAILED");
+                }
+            });
 
             // Send download response to client
             client.sendMessage(new FileTransferDownloadResponse(
                     true, fileName, transferId, requestedFile.length()));
 
-            // Start sending file chunks in a background thread
-            File finalRequestedFile = requestedFile;
-            new Thread(() -> {
-                try (FileInputStream fis = new FileInputStream(finalRequestedFile)) {
-                    byte[] buffer = new byte[8192]; // 8KB chunks
-                    int totalChunks = (int) Math.ceil((double) finalRequestedFile.length() / 8192);
-                    int chunkNumber = 0;
-                    int bytesRead;
-
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        byte[] chunk = bytesRead < 8192 ? Arrays.copyOf(buffer, bytesRead) : buffer;
-                        FileTransferChunk chunkMessage = new FileTransferChunk(
-                                transferId,
-                                chunk,
-                                chunkNumber,
-                                totalChunks);
-
-                        client.sendMessage(chunkMessage);
-
-                        // Update progress
-                        int progress = (int) ((chunkNumber + 1.0) / totalChunks * 100);
-                        client.sendMessage(new FileTransferProgress(
-                                transferId,
-                                progress,
-                                (chunkNumber + 1) * bytesRead,
-                                finalRequestedFile.length()));
-
-                        chunkNumber++;
-                    }
-
-                    // Send completion message
-                    client.sendMessage(new FileTransferComplete(
-                            transferId, fileName, finalRequestedFile.length(), 0, request.getRoomId(), false,
-                            request.getRequesterId()));
-
-                    // Update database
-                    FileTransferRepository.updateFileTransferStatus(transferId, "COMPLETED");
-                } catch (Exception e) {
-                    logger.error("Error sending file: {}", e.getMessage(), e);
-                    try {
-                        client.sendMessage(new FileTransferError(transferId, "Error sending file: " + e.getMessage()));
-                        FileTransferRepository.updateFileTransferStatus(transferId, "FAILED");
-                    } catch (Exception ex) {
-                        logger.error("Error sending error message: {}", ex.getMessage(), ex);
-                    }
-                }
-            }).start();
-
         } catch (SQLException e) {
             logger.error("Database error: {}", e.getMessage(), e);
             client.sendMessage(new FileTransferError(null, "Internal server error"));
@@ -219,20 +274,21 @@ public class FileTransferHandler implements RequestHandler {
     }
 
     private void handleTransferChunk(FileTransferChunk chunk, ClientHandler client) {
-        String filePath = transferPaths.get(chunk.getTransferId());
-        if (filePath == null) {
-            try {
-                filePath = FileTransferRepository.getFilePath(chunk.getTransferId());
-                if (filePath == null) {
-                    client.sendMessage(new FileTransferError(chunk.getTransferId(), "Transfer not found"));
-                    return;
-                }
-                transferPaths.put(chunk.getTransferId(), filePath);
-            } catch (SQLException e) {
-                logger.error("Database error: {}", e.getMessage(), e);
-                client.sendMessage(new FileTransferError(chunk.getTransferId(), "Internal server error"));
-                return;
-            }
+        UploadSession upload;
+        try {
+            upload = openUpload(chunk.getTransferId(), client);
+        } catch (SQLException e) {
+            logger.error("Database error: {}", e.getMessage(), e);
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Internal server error"));
+            return;
+        } catch (IOException e) {
+            logger.error("Error reopening upload {}: {}", chunk.getTransferId(), e.getMessage(), e);
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Transfer not found"));
+            return;
+        }
+        if (upload == null) {
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Transfer not found"));
+            return;
         }
 
         // Verify checksum before writing
@@ -244,24 +300,44 @@ public class FileTransferHandler implements RequestHandler {
             return;
         }
 
-        try {
-            // Create parent directories if they don't exist
-            Path path = Paths.get(filePath);
-            Files.createDirectories(path.getParent());
+        if (!upload.fits(chunk.getOffset(), chunk.getDataLength())) {
+            logger.error("Chunk {} of transfer {} at offset {} with {} bytes does not fit a {} byte upload",
+                    chunk.getChunkNumber(), chunk.getTransferId(), chunk.getOffset(), chunk.getDataLength(),
+                    upload.getSize());
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Chunk does not fit the file"));
+            return;
+        }
+
+        long limit = upload.getContiguousBytes() + uploadWindow;
+        if (chunk.getOffset() + chunk.getDataLength() > limit) {
+            logger.error("Chunk {} of transfer {} goes past its credit of {} bytes",
+                    chunk.getChunkNumber(), chunk.getTransferId(), limit);
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Chunk sent without credit"));
+            return;
+        }
 
-            // Write chunk with atomic operation
-            Files.write(path, chunk.getData(),
-                    chunk.getChunkNumber() == 0
-                            ? new StandardOpenOption[] { StandardOpenOption.CREATE,
-                                    StandardOpenOption.TRUNCATE_EXISTING }
-                            : new StandardOpenOption[] { StandardOpenOption.APPEND });
+        try {
+            if (upload.write(chunk.getOffset(), chunk.getData()) < 0) {
+                // Retired by the idle sweep since it was looked up; its checkpoint has everything written so far
+                upload = openUpload(chunk.getTransferId(), client);
+                if (upload == null) {
+                    client.sendMessage(new FileTransferError(chunk.getTransferId(), "Transfer not found"));
+                    return;
+                }
+                upload.write(chunk.getOffset(), chunk.getData());
+            }
 
             // Update progress
-            long totalBytes = transferSizes.getOrDefault(chunk.getTransferId(), 0L);
-            long transferred = transferredBytes.compute(chunk.getTransferId(),
-                    (id, bytes) -> (bytes == null ? 0L : bytes) + chunk.getData().length);
+            long totalBytes = upload.getSize();
+            long transferred = upload.getReceivedBytes();
             int progress = totalBytes > 0 ? (int) ((transferred * 100) / totalBytes) : 0;
 
+            // The chunk is on disk, so the uploader may send that much more past the blocks it has filled
+            if (!upload.isComplete()) {
+                long acknowledged = upload.getContiguousBytes();
+                client.sendMessage(new FileTransferCredit(chunk.getTransferId(), acknowledged, acknowledged + uploadWindow));
+            }
+
             // Send progress update to recipient
             ClientHandler recipient = recipients.get(chunk.getTransferId());
             if (recipient != null && recipient.isConnected()) {
@@ -272,45 +348,106 @@ public class FileTransferHandler implements RequestHandler {
                         totalBytes));
             }
 
-            if (chunk.getChunkNumber() == chunk.getTotalChunks() - 1) {
+            // Chunks may arrive in any order, so the transfer ends with its last missing block
+            if (upload.isComplete()) {
+                uploads.remove(chunk.getTransferId());
+                recipients.remove(chunk.getTransferId());
+                upload.finish();
+
                 // Verify final file size
-                long actualSize = Files.size(path);
+                long actualSize = Files.size(upload.getFile());
                 if (actualSize != totalBytes) {
                     logger.error("File size mismatch: expected {}, got {}", totalBytes, actualSize);
                     // Delete the incomplete file
                     try {
-                        Files.deleteIfExists(path);
+                        Files.deleteIfExists(upload.getFile());
                     } catch (IOException ex) {
                         logger.error("Failed to delete incomplete file: {}", ex.getMessage(), ex);
                     }
                     client.sendMessage(new FileTransferError(chunk.getTransferId(),
                             "File size verification failed. Transfer incomplete. Please retry."));
+                    updateStatus(chunk.getTransferId(), "FAILED");
                     return;
                 }
 
-                try {
-                    FileTransferRepository.updateFileTransferStatus(chunk.getTransferId(), "COMPLETED");
-                } catch (SQLException e) {
-                    logger.error("Error updating file transfer status: {}", e.getMessage(), e);
-                }
-
-                // Clean up
-                transferPaths.remove(chunk.getTransferId());
-                transferSizes.remove(chunk.getTransferId());
-                transferredBytes.remove(chunk.getTransferId());
-                recipients.remove(chunk.getTransferId());
-
+                // Kept once per distinct content, however many rooms it is shared into
+                FileBlobManager.storeUpload(chunk.getTransferId(), upload.getFile(), upload.sha256(), totalBytes);
                 client.sendMessage(new FileTransferComplete(chunk.getTransferId(), null, 0, 0, 0, false, 0));
             }
+        } catch (SQLException e) {
+            logger.error("Error storing upload {}: {}", chunk.getTransferId(), e.getMessage(), e);
+            client.sendMessage(new FileTransferError(chunk.getTransferId(), "Internal server error"));
+            updateStatus(chunk.getTransferId(), "FAILED");
         } catch (IOException e) {
             logger.error("Error writing file chunk: {}", e.getMessage(), e);
+            // The upload is marked failed and cannot be resumed, so its file is not kept open
+            uploads.remove(chunk.getTransferId(), upload);
+            recipients.remove(chunk.getTransferId());
+            try {
+                upload.close();
+            } catch (IOException ex) {
+                logger.warn("Error closing failed upload {}: {}", chunk.getTransferId(), ex.getMessage());
+            }
             client.sendMessage(new FileTransferError(chunk.getTransferId(),
                     "Error writing file: " + e.getMessage() + ". Please retry."));
+            updateStatus(chunk.getTransferId(), "FAILED");
+        }
+    }
+
+    /**
+     * The upload a chunk belongs to. One dropped by the idle sweep is picked up again from its
+     * checkpoint, if it is still pending and the client is its sender.
+     *
+     * @return the upload, or null if there is none the client may write to
+     */
+    private UploadSession openUpload(String transferId, ClientHandler client) throws SQLException, IOException {
+        UploadSession upload = uploads.get(transferId);
+        if (upload != null) {
+            return upload;
+        }
+        FileTransferRepository.PendingUpload pending = FileTransferRepository.getPendingUpload(transferId);
+        if (pending == null || client.getUser() == null || pending.senderId() != client.getUser().getId()) {
+            return null;
+        }
+        upload = UploadSession.resume(Paths.get(pending.filePath()), pending.fileSize(), uploadCheckpointBytes);
+        UploadSession existing = uploads.putIfAbsent(transferId, upload);
+        if (existing != null) {
+            return existing;
+        }
+        recipients.put(transferId, client);
+        return upload;
+    }
+
+    /**
+     * Checkpoints and drops uploads that have not sent a chunk for a while, so abandoned uploads
+     * hold neither file handles nor memory. An upload that carries on is reopened from its
+     * checkpoint by its next chunk.
+     */
+    private void closeIdleUploads() {
+        uploads.forEach((transferId, upload) -> {
             try {
-                FileTransferRepository.updateFileTransferStatus(chunk.getTransferId(), "FAILED");
-            } catch (SQLException ex) {
-                logger.error("Error updating file transfer status: {}", ex.getMessage(), ex);
+                upload.retireIfIdle(uploadIdleNanos);
+            } catch (IOException e) {
+                // Retired all the same; whatever came after its last good checkpoint is sent again
+                logger.warn("Error checkpointing idle upload {}: {}", transferId, e.getMessage());
+            }
+            if (upload.isRetired() && uploads.remove(transferId, upload)) {
+                recipients.remove(transferId);
+                logger.debug("Dropped idle upload {}", transferId);
             }
+        });
+    }
+
+    private void dropExpiredChallenges() {
+        long now = System.nanoTime();
+        blobChallenges.values().removeIf(challenge -> challenge.expired(now));
+    }
+
+    private static void updateStatus(String transferId, String status) {
+        try {
+            FileTransferRepository.updateFileTransferStatus(transferId, status);
+        } catch (SQLException e) {
+            logger.error("Error updating file transfer status: {}", e.getMessage(), e);
         }
     }
 }
@@ -2,25 +2,38 @@ package com.tavern.server.handlers;
 
 import com.tavern.common.model.network.*;
 import com.tavern.common.model.Message;
+import com.tavern.common.model.MessageCursor;
+import com.tavern.common.model.UnreadCount;
 import com.tavern.common.model.User;
+import com.tavern.server.core.BroadcastFrame;
 import com.tavern.server.core.ClientHandler;
+import com.tavern.server.core.RequestDispatcher;
 import com.tavern.server.core.RequestHandler;
+import com.tavern.server.core.SessionRegistry;
 import com.tavern.server.data.manager.MessageManager;
 import com.tavern.server.data.manager.RoomManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class MessageHandler implements RequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(MessageHandler.class);
-    private final UserHandler userHandler;
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final int HISTORY_MESSAGES_PER_FRAME = 100;
+    private final SessionRegistry sessionRegistry;
 
-    public MessageHandler(UserHandler userHandler, HashMap<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
-        this.userHandler = userHandler;
+    public MessageHandler(SessionRegistry sessionRegistry, Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+        this.sessionRegistry = sessionRegistry;
         requestHandlers.put(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.GET_UNREAD_MESSAGE_REQUEST, this);
+        requestHandlers.put(NetworkMessage.MessageType.GET_MESSAGES_REQUEST, this);
+        requestHandlers.put(NetworkMessage.MessageType.GET_UNREAD_COUNTS_REQUEST, this);
     }
 
     @Override
@@ -29,69 +42,80 @@ public class MessageHandler implements RequestHandler {
             case SEND_TEXT_MESSAGE_REQUEST -> {
                 SendTextMessageRequest request = (SendTextMessageRequest) message;
                 Message msg = request.message();
-                HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
+                // Stored through the group commit writer; the ack and the delivery only go out once the
+                // message is committed. They run back on this conversation's shard, which keeps the
+                // conversation in commit order while other conversations deliver in parallel
+                Executor shard = Objects.requireNonNullElse(RequestDispatcher.currentQueue(), Runnable::run);
                 if (msg.isDirect()) {
-                    Message createdMsg = MessageManager.createMessage(msg);
-                    if (createdMsg == null) {
-                        client.sendMessage(new SendTextMessageResponse(msg, false));
-                        return;
-                    }
-                    
-                    // Send response to sender
-                    client.sendMessage(new SendTextMessageResponse(msg, true));
-                    
-                    User receiver = new User();
-                    receiver.setId(msg.getReceiverId());
-                    
-                    // If receiver is active, send the message directly
-                    if (activeUsers.containsKey(receiver)) {
-                        boolean delivered = false;
-                        if (activeUsers.get(receiver).isConnected()) {
-                            delivered = activeUsers.get(receiver).sendMessage(new ReceiveTextMessageRequest(msg));
+                    MessageManager.createMessageAsync(msg).thenAcceptAsync(createdMsg -> {
+                        if (createdMsg == null) {
+                            client.sendMessage(new SendTextMessageResponse(msg, false));
+                            return;
                         }
-                        
-                        // If delivery failed or user not connected, mark as unread
-                        if (!delivered) {
-                            activeUsers.remove(receiver);
-                            logger.debug("Marking message as unread for receiver: {}", msg.getReceiverId());
-                            MessageManager.markMessageAsUnread(msg.getReceiverId(), createdMsg);
+
+                        boolean markingUnread = false;
+                        try {
+                            // Send response to sender
+                            client.sendMessage(new SendTextMessageResponse(msg, true));
+
+                            // Deliver to every open session of the receiver; if none took it, keep it as unread
+                            if (sessionRegistry.sendToUser(msg.getReceiverId(), new ReceiveTextMessageRequest(msg)) == 0) {
+                                logger.debug("Receiver not reachable, marking message as unread: {}", msg.getReceiverId());
+                                MessageManager.markMessageAsUnreadAsync(msg.getReceiverId(), createdMsg);
+                                markingUnread = true;
+                            }
+                        } finally {
+                            // Otherwise the collector would never get past this message
+                            if (!markingUnread) {
+                                MessageManager.finishFanout(createdMsg);
+                            }
                         }
-                    } else {
-                        // Receiver is not active, mark message as unread
-                        logger.debug("Receiver not active, marking message as unread: {}", msg.getReceiverId());
-                        MessageManager.markMessageAsUnread(msg.getReceiverId(), createdMsg);
-                    }
+                    }, shard).exceptionally(e -> logDeliveryFailure(msg, e));
                 } else {
-                    List<User> roomUsers = RoomManager.getMembersOfRoom(msg.getRoomId());
-                    if (roomUsers == null) {
+                    int[] memberIds = RoomManager.getMemberIdsOfRoom(msg.getRoomId());
+                    if (memberIds == null) {
                         return;
                     }
 
-                    Message createdMsg = MessageManager.createMessage(msg);
-                    if (createdMsg == null) {
-                        client.sendMessage(new SendTextMessageResponse(msg, false));
-                        return;
-                    }
-
-                    logger.debug("Room users: {}", roomUsers);
-                    for (User user : roomUsers) {
-                        if (user.getId() == (msg.getSenderId())) {
-                            client.sendMessage(new SendTextMessageResponse(msg, true));
-                            continue;
+                    MessageManager.createMessageAsync(msg).thenAcceptAsync(createdMsg -> {
+                        if (createdMsg == null) {
+                            client.sendMessage(new SendTextMessageResponse(msg, false));
+                            return;
                         }
 
-                        if (activeUsers.containsKey(user)) {
-                            logger.debug("Active user: {}, connected: {}", 
-                                    user.getUsername(), activeUsers.get(user).isConnected());
-                            if (activeUsers.get(user).isConnected()) {
-                                activeUsers.get(user).sendMessage(new ReceiveTextMessageRequest(msg));
-                                continue;
+                        boolean markingUnread = false;
+                        try {
+                            logger.debug("Fanning out message to {} members of room {}", memberIds.length, msg.getRoomId());
+                            // Encoded once and shared by every recipient's session
+                            BroadcastFrame delivery = new BroadcastFrame(new ReceiveTextMessageRequest(msg));
+                            int[] delivered = new int[memberIds.length];
+                            int deliveredCount = 0;
+                            int unreachable = 0;
+                            for (int memberId : memberIds) {
+                                if (memberId == msg.getSenderId()) {
+                                    client.sendMessage(new SendTextMessageResponse(msg, true));
+                                    continue;
+                                }
+
+                                if (sessionRegistry.sendToUser(memberId, delivery) > 0) {
+                                    delivered[deliveredCount++] = memberId;
+                                } else {
+                                    unreachable++;
+                                }
+                            }
+
+                            // Everyone it did not reach gets an unread row, written in one statement
+                            if (unreachable > 0) {
+                                logger.debug("Marking message as unread for {} members of room {}", unreachable, msg.getRoomId());
+                                MessageManager.markRoomMessageAsUnreadAsync(createdMsg, Arrays.copyOf(delivered, deliveredCount));
+                                markingUnread = true;
+                            }
+                        } finally {
+                            if (!markingUnread) {
+                                MessageManager.finishFanout(createdMsg);
                             }
-                            activeUsers.remove(user);
                         }
-                        logger.debug("Marking user {} as unread", user.getUsername());
-                        MessageManager.markMessageAsUnread(user, createdMsg);
-                    }
+                    }, shard).exceptionally(e -> logDeliveryFailure(msg, e));
                 }
             }
             case GET_UNREAD_MESSAGE_REQUEST -> {
@@ -103,16 +127,70 @@ public class MessageHandler implements RequestHandler {
                     return;
                 }
 
-                if (userHandler.getActiveUsers().containsKey(request.user())) {
-                    logger.debug("Sending {} unread messages to user {}", 
-                            messages.size(), request.user().getUsername());
-                    userHandler.getActiveUsers().get(request.user()).sendMessage(new GetUnreadMessagesResponse(messages));
-                    for (Message m : messages) {
-                        MessageManager.markMessageAsRead(request.user().getId(), m.getId());
-                    }
+                logger.debug("Sending {} unread messages to user {}",
+                        messages.size(), request.user().getUsername());
+                if (client.sendMessage(new GetUnreadMessagesResponse(messages)) && !messages.isEmpty()) {
+                    MessageManager.markMessagesAsRead(request.user().getId(),
+                            messages.stream().mapToInt(Message::getId).toArray());
+                }
+            }
+            case GET_MESSAGES_REQUEST -> sendHistoryPage((GetMessagesRequest) message, client);
+            case GET_UNREAD_COUNTS_REQUEST -> {
+                User user = client.getUser();
+                if (user == null) {
+                    return;
+                }
+                List<UnreadCount> counts = MessageManager.getUnreadCounts(user.getId());
+                if (counts != null) {
+                    client.sendMessage(new GetUnreadCountsResponse(counts));
                 }
-                MessageManager.cleanupMessages();
             }
         }
     }
+
+    /**
+     * Delivery runs after the request's handler has returned, so its failures are logged here.
+     */
+    private static Void logDeliveryFailure(Message msg, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        logger.error("Error delivering message from user {}: {}", msg.getSenderId(), cause.getMessage(), cause);
+        return null;
+    }
+
+    private void sendHistoryPage(GetMessagesRequest request, ClientHandler client) {
+        User user = client.getUser();
+        List<Message> page = null;
+        int limit = Math.clamp(request.limit(), 1, MAX_HISTORY_PAGE);
+        boolean older = request.direction() != GetMessagesRequest.Direction.NEWER;
+        if (user != null) {
+            // One extra row tells whether there is more history past this page
+            page = MessageManager.getMessagePage(user.getId(), request.direct(), request.conversationId(),
+                    request.cursor(), older, limit + 1);
+        }
+        if (page == null) {
+            client.sendMessage(new GetMessagesResponse(request.requestId(), null, null, true));
+            return;
+        }
+
+        MessageCursor next = null;
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+            next = MessageCursor.of(page.getLast());
+        }
+        // Pages come back nearest to the cursor first; every frame holds them oldest first
+        List<Message> ascending = older ? page.reversed() : page;
+
+        // Large pages go out in bounded frames, so a single response never holds up the session's queue
+        int from = 0;
+        do {
+            int to = Math.min(from + HISTORY_MESSAGES_PER_FRAME, ascending.size());
+            boolean last = to == ascending.size();
+            if (!client.sendMessage(new GetMessagesResponse(request.requestId(), List.copyOf(ascending.subList(from, to)),
+                    last ? next : null, last))) {
+                logger.debug("Stopped sending history page {} to user {}", request.requestId(), user.getUsername());
+                return;
+            }
+            from = to;
+        } while (from < ascending.size());
+    }
 }
@@ -12,13 +12,13 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class RoomHandler implements RequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(RoomHandler.class);
 
-    public RoomHandler(HashMap<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+    public RoomHandler(Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
         requestHandlers.put(NetworkMessage.MessageType.GET_ROOMS_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.GET_ROOM_USERS_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.CREATE_ROOM_REQUEST, this);
@@ -4,21 +4,23 @@ import com.tavern.common.model.User;
 import com.tavern.common.model.network.*;
 import com.tavern.server.core.ClientHandler;
 import com.tavern.server.core.RequestHandler;
+import com.tavern.server.core.SessionRegistry;
 import com.tavern.server.data.manager.UserManager;
 import com.tavern.server.data.repository.UserRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class UserHandler implements RequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(UserHandler.class);
-    private final HashMap<User, ClientHandler> activeUsers;
+    private final SessionRegistry sessionRegistry;
 
-    public UserHandler(HashMap<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
-        this.activeUsers = new HashMap<>();
+    public UserHandler(SessionRegistry sessionRegistry, Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+        this.sessionRegistry = sessionRegistry;
         requestHandlers.put(NetworkMessage.MessageType.LOGIN_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.SIGNUP_REQUEST, this);
         requestHandlers.put(NetworkMessage.MessageType.GET_ROOM_USERS_REQUEST, this);
@@ -26,10 +28,6 @@ public class UserHandler implements RequestHandler {
         requestHandlers.put(NetworkMessage.MessageType.GET_ALL_USERS_REQUEST, this);
     }
 
-    public HashMap<User, ClientHandler> getActiveUsers() {
-        return activeUsers;
-    }
-
     @Override
     public void handleRequest(NetworkMessage message, ClientHandler clientHandler) {
         switch (message.getMessageType()) {
@@ -41,8 +39,7 @@ public class UserHandler implements RequestHandler {
                     response = new SignupResponse(false, "Invalid", null);
                 } else {
                     response = new SignupResponse(true, null, user);
-                    activeUsers.put(user, clientHandler);
-                    clientHandler.setUser(user);
+                    bindSession(user, clientHandler);
                 }
                 clientHandler.sendMessage(response);
             }
@@ -54,15 +51,19 @@ public class UserHandler implements RequestHandler {
                     response = new LoginResponse(false, "Invalid Username", null);
                 else {
                     response = new LoginResponse(true, null, user);
-                    activeUsers.put(user, clientHandler);
-                    clientHandler.setUser(user);
+                    bindSession(user, clientHandler);
                 }
                 clientHandler.sendMessage(response);
             }
             case GET_USERS_INFO_REQUEST -> {
                 GetUsersInfoRequest msg = (GetUsersInfoRequest) message;
-                List<User> users = UserRepository.getUsersById(msg.userIds());
-                clientHandler.sendMessage(new GetUsersInfoResponse(users));
+                try {
+                    List<User> users = UserManager.getUsersById(msg.userIds());
+                    clientHandler.sendMessage(new GetUsersInfoResponse(users));
+                } catch (SQLException e) {
+                    logger.error("Error getting info of {} users", msg.userIds().size(), e);
+                    clientHandler.sendMessage(new GetUsersInfoResponse(new ArrayList<>()));
+                }
             }
             case GET_ALL_USERS_REQUEST -> {
                 try {
@@ -75,4 +76,11 @@ public class UserHandler implements RequestHandler {
             }
         }
     }
+
+    private void bindSession(User user, ClientHandler clientHandler) {
+        // A session that logs in again as someone else stops receiving the previous user's messages
+        sessionRegistry.unregister(clientHandler);
+        clientHandler.setUser(user);
+        sessionRegistry.register(user.getId(), clientHandler);
+    }
 }
@@ -4,17 +4,18 @@ import com.tavern.common.model.User;
 import com.tavern.common.model.network.*;
 import com.tavern.server.core.ClientHandler;
 import com.tavern.server.core.RequestHandler;
+import com.tavern.server.core.SessionRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.Map;
 
 public class VideoChatHandler implements RequestHandler {
     private static final Logger logger = LoggerFactory.getLogger(VideoChatHandler.class);
-    private final UserHandler userHandler;
+    private final SessionRegistry sessionRegistry;
 
-    public VideoChatHandler(UserHandler userHandler, HashMap<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
-        this.userHandler = userHandler;
+    public VideoChatHandler(SessionRegistry sessionRegistry, Map<NetworkMessage.MessageType, RequestHandler> requestHandlers) {
+        this.sessionRegistry = sessionRegistry;
         
         // Register for video chat message types
         requestHandlers.put(NetworkMessage.MessageType.VIDEO_CALL_REQUEST, this);
@@ -59,14 +60,8 @@ public class VideoChatHandler implements RequestHandler {
         logger.info("Video call request from {} to {}", 
                 request.caller().getUsername(), request.callee().getUsername());
         
-        // Get the client handler for the callee
-        HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
-        ClientHandler calleeClient = activeUsers.get(request.callee());
-        
-        if (calleeClient != null && calleeClient.isConnected()) {
-            // Forward the call request to the callee
-            calleeClient.sendMessage(request);
-        } else {
+        // Ring every device the callee is logged in on
+        if (sessionRegistry.sendToUser(request.callee().getId(), request) == 0) {
             // Callee is not online, send a rejection response
             logger.info("Callee {} is not online, automatically rejecting call", request.callee().getUsername());
             client.sendMessage(new VideoCallResponse(
@@ -83,12 +78,7 @@ public class VideoChatHandler implements RequestHandler {
                 (response.accepted() ? "Accepted" : "Rejected"));
         
         // Forward the response to the caller
-        HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
-        ClientHandler callerClient = activeUsers.get(response.caller());
-        
-        if (callerClient != null && callerClient.isConnected()) {
-            callerClient.sendMessage(response);
-        } else {
+        if (sessionRegistry.sendToUser(response.caller().getId(), response) == 0) {
             logger.warn("Caller {} is no longer online", response.caller().getUsername());
         }
     }
@@ -98,12 +88,7 @@ public class VideoChatHandler implements RequestHandler {
                 offer.caller().getUsername(), offer.callee().getUsername());
         
         // Forward the offer to the callee
-        HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
-        ClientHandler calleeClient = activeUsers.get(offer.callee());
-        
-        if (calleeClient != null && calleeClient.isConnected()) {
-            calleeClient.sendMessage(offer);
-        } else {
+        if (sessionRegistry.sendToUser(offer.callee().getId(), offer) == 0) {
             logger.warn("Callee {} is no longer online", offer.callee().getUsername());
         }
     }
@@ -113,12 +98,7 @@ public class VideoChatHandler implements RequestHandler {
                 answer.callee().getUsername(), answer.caller().getUsername());
         
         // Forward the answer to the caller
-        HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
-        ClientHandler callerClient = activeUsers.get(answer.caller());
-        
-        if (callerClient != null && callerClient.isConnected()) {
-            callerClient.sendMessage(answer);
-        } else {
+        if (sessionRegistry.sendToUser(answer.caller().getId(), answer) == 0) {
             logger.warn("Caller {} is no longer online", answer.caller().getUsername());
         }
     }
@@ -128,12 +108,7 @@ public class VideoChatHandler implements RequestHandler {
                 end.sender().getUsername(), end.receiver().getUsername());
         
         // Forward the call end message to the receiver
-        HashMap<User, ClientHandler> activeUsers = userHandler.getActiveUsers();
-        ClientHandler receiverClient = activeUsers.get(end.receiver());
-        
-        if (receiverClient != null && receiverClient.isConnected()) {
-            receiverClient.sendMessage(end);
-        } else {
+        if (sessionRegistry.sendToUser(end.receiver().getId(), end) == 0) {
             logger.debug("Receiver {} is not online to receive call end notification", 
                     end.receiver().getUsername());
         }
@@ -1,6 +1,9 @@
 package com.tavern.server.utils;
 
 import com.tavern.common.utils.DatabaseManager;
+import com.tavern.common.utils.GroupCommitWriter;
+import com.tavern.common.utils.SchemaMigrations;
+import com.tavern.common.utils.SchemaMigrations.Migration;
 import com.tavern.server.core.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,19 +11,149 @@ import org.slf4j.LoggerFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class ServerDatabaseManager extends DatabaseManager {
     private static final Logger logger = LoggerFactory.getLogger(ServerDatabaseManager.class);
+
+    /**
+     * Changes to the schema made after the tables in {@link #initDatabase()} were first created.
+     * Append new migrations with the next version number; never edit one that has shipped.
+     */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "indexes for unread, history and membership lookups",
+                    // Keep the oldest of any duplicate unread rows so that the pair can become unique
+                    """
+                    DELETE FROM user_unread_message
+                    WHERE id NOT IN (SELECT MIN(id) FROM user_unread_message GROUP BY user_id, message_id)
+                    """,
+                    "CREATE UNIQUE INDEX IF NOT EXISTS ux_user_unread_message_user_message ON user_unread_message (user_id, message_id)",
+                    "CREATE INDEX IF NOT EXISTS idx_user_unread_message_message_id ON user_unread_message (message_id)",
+                    "CREATE INDEX IF NOT EXISTS idx_message_room_timestamp ON message (room_id, timestamp)",
+                    "CREATE INDEX IF NOT EXISTS idx_message_sender_receiver_timestamp ON message (sender_id, receiver_id, timestamp)",
+                    "CREATE INDEX IF NOT EXISTS idx_room_member_user ON room_member (user_id)"),
+            new Migration(2, "conversation id for direct messages",
+                    "ALTER TABLE message ADD COLUMN conversation_id INTEGER",
+                    // Same key as Message.directConversationId
+                    """
+                    UPDATE message
+                    SET conversation_id = (min(sender_id, receiver_id) << 32) | max(sender_id, receiver_id)
+                    WHERE direct = 1
+                    """,
+                    "CREATE INDEX IF NOT EXISTS idx_message_conversation_timestamp ON message (conversation_id, timestamp) " +
+                    "WHERE conversation_id IS NOT NULL",
+                    // Only the two-sided OR lookups of direct messages used it
+                    "DROP INDEX IF EXISTS idx_message_sender_receiver_timestamp"),
+            new Migration(3, "per-user unread counters",
+                    // scope is message.direct; scope_id is the room, or the other user of a direct conversation
+                    """
+                    CREATE TABLE IF NOT EXISTS unread_counter (
+                        user_id INTEGER NOT NULL,
+                        scope INTEGER NOT NULL CHECK ( scope IN (0, 1) ),
+                        scope_id INTEGER NOT NULL,
+                        count INTEGER NOT NULL,
+                        PRIMARY KEY (user_id, scope, scope_id)
+                    ) WITHOUT ROWID
+                    """,
+                    """
+                    INSERT INTO unread_counter (user_id, scope, scope_id, count)
+                    SELECT um.user_id, m.direct,
+                           CASE WHEN m.direct = 0 THEN m.room_id
+                                WHEN m.sender_id = um.user_id THEN m.receiver_id
+                                ELSE m.sender_id END,
+                           COUNT(*)
+                    FROM user_unread_message um JOIN message m ON m.id = um.message_id
+                    GROUP BY 1, 2, 3
+                    """,
+                    // Kept by triggers so that every write to user_unread_message updates them in its own transaction
+                    """
+                    CREATE TRIGGER IF NOT EXISTS trg_unread_counter_insert AFTER INSERT ON user_unread_message
+                    BEGIN
+                        INSERT INTO unread_counter (user_id, scope, scope_id, count)
+                        SELECT NEW.user_id, m.direct,
+                               CASE WHEN m.direct = 0 THEN m.room_id
+                                    WHEN m.sender_id = NEW.user_id THEN m.receiver_id
+                                    ELSE m.sender_id END,
+                               1
+                        FROM message m WHERE m.id = NEW.message_id
+                        ON CONFLICT (user_id, scope, scope_id) DO UPDATE SET count = count + 1;
+                    END
+                    """,
+                    """
+                    CREATE TRIGGER IF NOT EXISTS trg_unread_counter_delete AFTER DELETE ON user_unread_message
+                    BEGIN
+                        UPDATE unread_counter SET count = count - 1
+                        WHERE (user_id, scope, scope_id) = (
+                            SELECT OLD.user_id, m.direct,
+                                   CASE WHEN m.direct = 0 THEN m.room_id
+                                        WHEN m.sender_id = OLD.user_id THEN m.receiver_id
+                                        ELSE m.sender_id END
+                            FROM message m WHERE m.id = OLD.message_id);
+                    END
+                    """),
+            new Migration(4, "content-addressed avatar store",
+                    // One row per rendered size; the images already in user and room are moved at startup
+                    """
+                    CREATE TABLE IF NOT EXISTS avatar (
+                        hash TEXT NOT NULL,
+                        size INTEGER NOT NULL,
+                        image BLOB NOT NULL,
+                        PRIMARY KEY (hash, size)
+                    )
+                    """,
+                    "ALTER TABLE user ADD COLUMN avatar_hash TEXT",
+                    "ALTER TABLE room ADD COLUMN avatar_hash TEXT"),
+            new Migration(5, "content-addressed upload store",
+                    // One row per distinct file content; ref_count is the number of uploads pointing at it
+                    """
+                    CREATE TABLE IF NOT EXISTS file_blob (
+                        hash TEXT PRIMARY KEY,
+                        size INTEGER NOT NULL,
+                        ref_count INTEGER NOT NULL
+                    )
+                    """,
+                    "ALTER TABLE file_transfer ADD COLUMN blob_hash TEXT",
+                    "CREATE INDEX IF NOT EXISTS idx_file_transfer_file_name_status ON file_transfer (file_name, status)"),
+            new Migration(6, "file messages linked to their uploads",
+                    "ALTER TABLE message ADD COLUMN transfer_id TEXT",
+                    // One message per upload, so the upload can go with it
+                    "CREATE UNIQUE INDEX IF NOT EXISTS ux_message_transfer_id ON message (transfer_id) " +
+                    "WHERE transfer_id IS NOT NULL")
+    );
+
     private final static ServerDatabaseManager instance = new ServerDatabaseManager();
+    private final GroupCommitWriter groupCommitWriter;
 
     private ServerDatabaseManager() {
-        super(Server.properties.getProperty("db.name"));
+        super(Server.properties.getProperty("db.name"),
+                Integer.parseInt(Server.properties.getProperty("db.readers", "4")));
+        groupCommitWriter = new GroupCommitWriter(this::getDriverConnection,
+                Integer.parseInt(Server.properties.getProperty("db.group.commit.max.rows", "256")),
+                Long.parseLong(Server.properties.getProperty("db.group.commit.max.delay.ms", "0")));
     }
 
     public static Connection getConnection() throws SQLException {
         return instance.getDriverConnection();
     }
 
+    public static Connection getReadConnection() throws SQLException {
+        return instance.getReadOnlyConnection();
+    }
+
+    /**
+     * Queues a write to be committed together with other writes arriving at about the same time.
+     * The future completes once the transaction holding it has committed.
+     */
+    public static <T> CompletableFuture<T> submitWrite(GroupCommitWriter.Work<T> work) {
+        return instance.groupCommitWriter.submit(work);
+    }
+
+    public static void close() {
+        instance.groupCommitWriter.close();
+        instance.closeConnections();
+    }
+
     @Override
     protected void initDatabase() {
         try (Connection conn = getDriverConnection();
@@ -104,6 +237,7 @@ public class ServerDatabaseManager extends DatabaseManager {
                     """;
             stmt.execute(createFileTransferTable);
 
+            SchemaMigrations.migrate(conn, MIGRATIONS);
         } catch (SQLException e) {
             logger.error("Error initializing database: {}", e.getMessage(), e);
         }
@@ -0,0 +1,232 @@
+package com.tavern.server.core;
+
+import com.tavern.common.model.Message;
+import com.tavern.common.model.User;
+import com.tavern.common.model.network.NetworkMessage;
+import com.tavern.common.model.network.ReceiveTextMessageRequest;
+import com.tavern.common.model.network.SendTextMessageRequest;
+import com.tavern.common.model.network.SendTextMessageResponse;
+import com.tavern.server.handlers.MessageHandler;
+import com.tavern.server.utils.ServerDatabaseManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.Socket;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends chat from many sessions at once through the dispatcher and the real message handler, and
+ * checks that every room is delivered in the order it was stored and that a shard never runs two
+ * handlers at the same time.
+ */
+class ConversationOrderingTest {
+    private static final int ROOMS = 16;
+    private static final int MEMBERS = 200;
+    private static final int SENDERS = 100;
+    private static final int MESSAGES_PER_SENDER = 20;
+
+    @TempDir
+    static Path dataDir;
+
+    @BeforeAll
+    static void createRooms() throws SQLException {
+        Server.properties.getProperties().setProperty("db.name", dataDir.resolve("ordering.db").toString());
+        try (Connection conn = ServerDatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement room = conn.prepareStatement("INSERT INTO room (id, name) VALUES (?, ?)");
+                 PreparedStatement user = conn.prepareStatement("INSERT INTO user (id, username, display_name) VALUES (?, ?, ?)");
+                 PreparedStatement member = conn.prepareStatement("INSERT INTO room_member (room_id, user_id) VALUES (?, ?)")) {
+                for (int roomId = 1; roomId <= ROOMS; roomId++) {
+                    room.setInt(1, roomId);
+                    room.setString(2, "room" + roomId);
+                    room.executeUpdate();
+                    for (int i = 0; i < MEMBERS; i++) {
+                        int userId = userId(roomId, i);
+                        user.setInt(1, userId);
+                        user.setString(2, "user" + userId);
+                        user.setString(3, "User " + userId);
+                        user.executeUpdate();
+                        member.setInt(1, roomId);
+                        member.setInt(2, userId);
+                        member.executeUpdate();
+                    }
+                }
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @AfterAll
+    static void closeDatabase() {
+        ServerDatabaseManager.close();
+    }
+
+    @Test
+    void roomsAreDeliveredInStoreOrderAndShardsNeverOverlap() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        EnumMap<NetworkMessage.MessageType, RequestHandler> handlers = new EnumMap<>(NetworkMessage.MessageType.class);
+        new MessageHandler(registry, handlers);
+
+        // Counts the handlers running on each shard at any moment
+        Map<Executor, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        RequestHandler sendHandler = handlers.get(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST);
+        handlers.put(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST, (message, client) -> {
+            AtomicInteger onShard = running.computeIfAbsent(RequestDispatcher.currentQueue(), shard -> new AtomicInteger());
+            if (onShard.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                sendHandler.handleRequest(message, client);
+            } finally {
+                onShard.decrementAndGet();
+            }
+        });
+
+        RequestDispatcher dispatcher = new RequestDispatcher(handlers, Server.properties);
+        dispatcher.orderByConversation(NetworkMessage.MessageType.SEND_TEXT_MESSAGE_REQUEST,
+                message -> ConversationShards.keyOf(((SendTextMessageRequest) message).message()));
+
+        RecordingSession[] sessions = new RecordingSession[ROOMS * MEMBERS + 1];
+        for (int userId = 1; userId < sessions.length; userId++) {
+            sessions[userId] = new RecordingSession(userId);
+            registry.register(userId, sessions[userId]);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+        for (int s = 0; s < SENDERS; s++) {
+            int roomId = s % ROOMS + 1;
+            int senderId = userId(roomId, s / ROOMS);
+            senders.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int seq = 0; seq < MESSAGES_PER_SENDER; seq++) {
+                    Message message = new Message(0, senderId, 0, roomId, senderId + ":" + seq, false);
+                    dispatcher.dispatch(new SendTextMessageRequest(message), sessions[senderId]);
+                }
+            });
+        }
+        start.countDown();
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(30, TimeUnit.SECONDS));
+        awaitDeliveries(sessions, (long) SENDERS * MESSAGES_PER_SENDER * MEMBERS);
+        dispatcher.shutdown();
+
+        assertEquals(0, overlaps.get(), "handlers overlapped on a shard");
+        for (int roomId = 1; roomId <= ROOMS; roomId++) {
+            List<String> stored = storedContents(roomId);
+            assertEquals(SENDERS / ROOMS * MESSAGES_PER_SENDER + (roomId <= SENDERS % ROOMS ? MESSAGES_PER_SENDER : 0),
+                    stored.size(), "messages stored in room " + roomId);
+            assertSendersInOrder(stored, roomId);
+            for (int i = 0; i < MEMBERS; i++) {
+                int userId = userId(roomId, i);
+                assertEquals(stored, sessions[userId].received, "delivery order of room " + roomId + " to user " + userId);
+            }
+        }
+    }
+
+    private static int userId(int roomId, int member) {
+        return (roomId - 1) * MEMBERS + member + 1;
+    }
+
+    private static List<String> storedContents(int roomId) throws SQLException {
+        List<String> contents = new ArrayList<>();
+        try (Connection conn = ServerDatabaseManager.getReadConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT content FROM message WHERE room_id = ? ORDER BY id")) {
+            stmt.setInt(1, roomId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    contents.add(rs.getString(1));
+                }
+            }
+        }
+        return contents;
+    }
+
+    private static void assertSendersInOrder(List<String> contents, int roomId) {
+        Map<String, Integer> last = new HashMap<>();
+        for (String content : contents) {
+            String[] parts = content.split(":");
+            int seq = Integer.parseInt(parts[1]);
+            assertTrue(last.getOrDefault(parts[0], -1) < seq, "sender " + parts[0] + " out of order in room " + roomId);
+            last.put(parts[0], seq);
+        }
+    }
+
+    private static void awaitDeliveries(RecordingSession[] sessions, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        long delivered = 0;
+        while (System.nanoTime() < deadline) {
+            delivered = 0;
+            for (int userId = 1; userId < sessions.length; userId++) {
+                delivered += sessions[userId].received.size();
+            }
+            if (delivered >= expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(expected, delivered, "messages delivered");
+    }
+
+    /**
+     * A logged-in session that keeps the content of every chat message pushed to it, the sender's
+     * own acknowledgements included.
+     */
+    private static class RecordingSession extends ClientHandler {
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingSession(int userId) {
+            super(new Socket(), null);
+            setUser(new User(userId, "user" + userId, "User " + userId, null));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean sendMessage(NetworkMessage msg) {
+            if (msg instanceof SendTextMessageResponse response && response.status()) {
+                received.add(response.message().getContent());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean sendMessage(BroadcastFrame frame) {
+            if (frame.getMessage() instanceof ReceiveTextMessageRequest request) {
+                received.add(request.message().getContent());
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.tavern.server.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Logs the same few users in and out from many threads at once, the way sessions of one user on
+ * several devices do, and checks the registry ends up exactly as the last operations left it.
+ */
+class SessionRegistryTest {
+    private static final int THREADS = 16;
+    private static final int SESSIONS_PER_THREAD = 4;
+    private static final int USERS = 8;
+    private static final int ROUNDS = 20_000;
+
+    @Test
+    void churnLeavesNoStaleSessions() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        ClientHandler[][] sessions = newSessions();
+
+        runConcurrently(thread -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                int userId = i % USERS + 1;
+                ClientHandler session = sessions[thread][i % SESSIONS_PER_THREAD];
+                registry.register(userId, session);
+                assertTrue(registry.getSessions(userId).contains(session));
+                registry.unregister(userId, session);
+            }
+        });
+
+        assertEquals(0, registry.getOnlineUserCount());
+        for (int userId = 1; userId <= USERS; userId++) {
+            assertFalse(registry.isOnline(userId));
+            assertTrue(registry.getSessions(userId).isEmpty());
+        }
+    }
+
+    @Test
+    void concurrentLoginsAreAllListed() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        ClientHandler[][] sessions = newSessions();
+
+        // Every thread logs its sessions in to every user, and logs one of them out again
+        runConcurrently(thread -> {
+            for (int userId = 1; userId <= USERS; userId++) {
+                for (ClientHandler session : sessions[thread]) {
+                    registry.register(userId, session);
+                }
+                registry.unregister(userId, sessions[thread][0]);
+            }
+        });
+
+        assertEquals(USERS, registry.getOnlineUserCount());
+        for (int userId = 1; userId <= USERS; userId++) {
+            List<ClientHandler> expected = new ArrayList<>();
+            for (ClientHandler[] threadSessions : sessions) {
+                expected.addAll(List.of(threadSessions).subList(1, SESSIONS_PER_THREAD));
+            }
+            List<ClientHandler> listed = registry.getSessions(userId);
+            assertEquals(expected.size(), listed.size(), "sessions listed for user " + userId);
+            assertEquals(new HashSet<>(expected), Set.copyOf(listed));
+        }
+    }
+
+    private static ClientHandler[][] newSessions() {
+        ClientHandler[][] sessions = new ClientHandler[THREADS][SESSIONS_PER_THREAD];
+        for (int t = 0; t < THREADS; t++) {
+            for (int s = 0; s < SESSIONS_PER_THREAD; s++) {
+                sessions[t][s] = new ClientHandler(new Socket(), null);
+            }
+        }
+        return sessions;
+    }
+
+    private interface ThreadBody {
+        void run(int thread);
+    }
+
+    /**
+     * Starts every thread at once and rethrows the first assertion any of them failed.
+     */
+    private static void runConcurrently(ThreadBody body) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    body.run(thread);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS), "churn did not finish");
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                throw new AssertionError(failures.getFirst());
+            }
+        }
+    }
+}